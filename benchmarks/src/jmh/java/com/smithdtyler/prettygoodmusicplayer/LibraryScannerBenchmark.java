@@ -0,0 +1,218 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The library scan and the naming and sorting done on its results, over a
+ * generated tree of artist/album/song directories in the temp directory.
+ * Each album also holds cover art and a playlist, which the scan has to
+ * skip, like a real library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibraryScannerBenchmark {
+	private static final int ALBUMS_PER_ARTIST = 5;
+	private static final int SONGS_PER_ALBUM = 12;
+	private static final String[] EXTENSIONS = { "mp3", "flac", "m4a", "ogg" };
+	private static final String[] WORDS = { "Blue", "Night", "River", "Song", "of", "the",
+		"Morning", "Light", "Road", "Home", "Fire", "Rain" };
+
+	@Param({"20", "200"})
+	int artists;
+
+	private File root;
+	private File[] songs;
+	private String[] songNames;
+	private List<File> albums;
+
+	@Setup(Level.Trial)
+	public void createLibrary() throws IOException {
+		root = File.createTempFile("library", "");
+		if (!root.delete() || !root.mkdir()) {
+			throw new IOException("Unable to create " + root);
+		}
+		Random random = new Random(42);
+		List<File> allSongs = new ArrayList<File>();
+		albums = new ArrayList<File>();
+		for (int a = 0; a < artists; a++) {
+			File artist = mkdir(new File(root, title(random) + " " + a));
+			for (int b = 0; b < ALBUMS_PER_ARTIST; b++) {
+				File album = mkdir(new File(artist, title(random) + " " + b));
+				albums.add(album);
+				touch(new File(album, "cover.jpg"));
+				touch(new File(album, "album.m3u"));
+				for (int s = 1; s <= SONGS_PER_ALBUM; s++) {
+					String name = String.format("%02d %s.%s", s, title(random),
+							EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+					allSongs.add(touch(new File(album, name)));
+				}
+			}
+		}
+		Collections.shuffle(allSongs, random);
+		Collections.shuffle(albums, random);
+		songs = allSongs.toArray(new File[allSongs.size()]);
+		songNames = new String[songs.length];
+		for (int i = 0; i < songs.length; i++) {
+			songNames[i] = songs[i].getName();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteLibrary() {
+		delete(root);
+	}
+
+	@Benchmark
+	public List<File> getAllSongsInDirRecursive() {
+		return LibraryScanner.getAllSongsInDirRecursive(root);
+	}
+
+	@Benchmark
+	public List<File> getAllAlbumsInDirRecursive() {
+		return LibraryScanner.getAllAlbumsInDirRecursive(root);
+	}
+
+	/**
+	 * Per song file, including the stat calls.
+	 */
+	@Benchmark
+	public int isValidSongFile() {
+		int valid = 0;
+		for (File song : songs) {
+			if (LibraryScanner.isValidSongFile(song)) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Per song name, without touching the file system.
+	 */
+	@Benchmark
+	public int isSongFileName() {
+		int valid = 0;
+		for (String name : songNames) {
+			if (LibraryScanner.isSongFileName(name)) {
+				valid++;
+			}
+		}
+		return valid;
+	}
+
+	@Benchmark
+	public int getPrettySongName() {
+		int length = 0;
+		for (String name : songNames) {
+			length += LibraryScanner.getPrettySongName(name).length();
+		}
+		return length;
+	}
+
+	@Benchmark
+	public List<File> sortSongs() {
+		List<File> sorted = new ArrayList<File>(songs.length);
+		Collections.addAll(sorted, songs);
+		Collections.sort(sorted, LibraryScanner.SONG_FILE_COMPARATOR);
+		return sorted;
+	}
+
+	@Benchmark
+	public List<File> sortAlbums() {
+		List<File> sorted = new ArrayList<File>(albums);
+		Collections.sort(sorted, LibraryScanner.ALBUM_FILE_COMPARATOR);
+		return sorted;
+	}
+
+	/**
+	 * A whole playlist worth of shuffle draws, the way the service makes
+	 * them when every track is skipped.
+	 */
+	@Benchmark
+	public int shufflePlaylist() {
+		ShuffleEngine engine = new ShuffleEngine(songs.length, 42);
+		int sum = 0;
+		for (int i = 0; i < songs.length; i++) {
+			sum += engine.next();
+		}
+		return sum;
+	}
+
+	private static String title(Random random) {
+		int words = 1 + random.nextInt(3);
+		StringBuilder title = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				title.append(' ');
+			}
+			title.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return title.toString();
+	}
+
+	private static File mkdir(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdir()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	private static File touch(File file) throws IOException {
+		if (!file.exists() && !file.createNewFile()) {
+			throw new IOException("Unable to create " + file);
+		}
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
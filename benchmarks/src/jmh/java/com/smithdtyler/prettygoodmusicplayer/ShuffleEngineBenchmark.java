@@ -0,0 +1,103 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking the next shuffled track, compared with the boxed
+ * ArrayList front/back lists the service used before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShuffleEngineBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	int size;
+
+	private ShuffleEngine engine;
+	private List<Integer> legacyFront;
+	private List<Integer> legacyBack;
+	private Random random;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		engine = new ShuffleEngine(size, 42);
+		random = new Random(42);
+		legacyFront = new ArrayList<Integer>();
+		legacyBack = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			legacyFront.add(i);
+		}
+	}
+
+	@Benchmark
+	public int next() {
+		return engine.next();
+	}
+
+	/**
+	 * The old grabNextShuffledPosition, minus the logging.
+	 */
+	@Benchmark
+	public int legacyNext() {
+		int threshold = (size + 1) / 2;
+		if (legacyFront.size() < threshold) {
+			legacyFront.add(legacyBack.get(0));
+			legacyBack.remove(0);
+		}
+		int rand = Math.abs(random.nextInt()) % legacyFront.size();
+		int loc = legacyFront.get(rand);
+		legacyFront.remove(rand);
+		legacyBack.add(loc);
+		return loc;
+	}
+
+	/**
+	 * Starting a new shuffle, e.g. when a playlist is loaded.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	public ShuffleEngine create() {
+		return new ShuffleEngine(size, 42);
+	}
+}
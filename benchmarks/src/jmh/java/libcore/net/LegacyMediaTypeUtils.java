@@ -29,10 +29,10 @@ import java.util.Properties;
 import java.util.Set;
 
 /**
- * Utilities for dealing with MIME types.
- * Used to implement java.net.URLConnection and android.webkit.MimeTypeMap.
+ * The HashMap based MediaTypeUtils that the sorted array registry replaced,
+ * kept for comparison in MediaTypeUtilsBenchmark.
  */
-public final class MediaTypeUtils {
+final class LegacyMediaTypeUtils {
 	private static final Map<String, List<String>> mimeTypeToExtensionMap = new HashMap<>();
 	private static final Map<String, List<String>> extensionToMimeTypeMap = new HashMap<>();
 
@@ -183,7 +183,7 @@ public final class MediaTypeUtils {
 		}
 	}
 
-	private MediaTypeUtils() {
+	private LegacyMediaTypeUtils() {
 	}
 
 	/**
@@ -0,0 +1,101 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package libcore.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extension and MIME type lookups in the case-insensitive registry,
+ * compared with the HashMaps MediaTypeUtils used before. The lookups are a mix of
+ * hits and misses, roughly like a library scan sees them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaTypeUtilsBenchmark {
+	private static final String[] EXTENSIONS = {
+		"mp3", "m4a", "flac", "ogg", "jpg", "txt", "opus", "wav", "nfo", "m3u",
+		"aac", "mp3", "mp3", "cue", "wma", "log", "mkv", "png", "m4p", "3gp"
+	};
+	private static final String[] MIME_TYPES = {
+		"audio/mpeg", "audio/mp4a-latm", "audio/flac", "audio/vorbis", "audio/opus",
+		"audio/raw", "audio/ac3", "audio/3gpp", "audio/amr-wb", "audio/g711-alaw"
+	};
+
+	@Benchmark
+	@OperationsPerInvocation(20)
+	public int hasExtension() {
+		int found = 0;
+		for (String extension : EXTENSIONS) {
+			if (MediaTypeUtils.hasExtension(extension)) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(20)
+	public int legacyHasExtension() {
+		int found = 0;
+		for (String extension : EXTENSIONS) {
+			if (LegacyMediaTypeUtils.hasExtension(extension)) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(10)
+	public int getExtensionsFromMimeType() {
+		int count = 0;
+		for (String mimeType : MIME_TYPES) {
+			count += MediaTypeUtils.getExtensionsFromMimeType(mimeType).size();
+		}
+		return count;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(10)
+	public int legacyGetExtensionsFromMimeType() {
+		int count = 0;
+		for (String mimeType : MIME_TYPES) {
+			// The old version returns null for unknown types
+			if (LegacyMediaTypeUtils.getExtensionsFromMimeType(mimeType) != null) {
+				count += LegacyMediaTypeUtils.getExtensionsFromMimeType(mimeType).size();
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,217 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes a music library laid out the way real ones are: an artist
+ * directory per artist, with albums inside it. Tracks are named
+ * "NN Title.ext". Along the way it mixes in the things a scan has to cope
+ * with:
+ * - multi-disc albums, one directory deeper
+ * - a "Various Artists" tree two directories deeper
+ * - loose tracks directly in an artist directory
+ * - cover art, playlists and notes
+ * - hidden files and hidden directories
+ *
+ * Every track starts with a small but valid header for its format, so
+ * anything that sniffs file contents sees real audio. The same seed and
+ * track count always produce the same tree.
+ */
+public class LibraryGenerator {
+	private static final String[] WORDS = { "Blue", "Night", "River", "Song", "of", "the",
+		"Morning", "Light", "Road", "Home", "Fire", "Rain", "Last", "Summer", "Ghost",
+		"Train", "Heart", "Glass", "Northern", "Electric", "Golden", "Quiet", "Storm", "Echo" };
+	private static final String[] EXTENSIONS = { "mp3", "mp3", "mp3", "flac", "m4a", "ogg", "wav" };
+	private static final String[] EXTRAS = { "cover.jpg", "folder.jpg", "album.nfo", "playlist.m3u", "notes.txt" };
+	private static final String[] HIDDEN = { ".DS_Store", "._01 Track.mp3", ".nomedia" };
+
+	// ID3v2.4 header with no frames, then one MPEG-1 Layer III frame header
+	private static final byte[] MP3 = {
+		'I', 'D', '3', 4, 0, 0, 0, 0, 0, 0,
+		(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x64 };
+	// "fLaC", then the last-metadata-block flag and a 34 byte STREAMINFO
+	private static final byte[] FLAC = concat(new byte[] { 'f', 'L', 'a', 'C', (byte) 0x80, 0, 0, 34,
+		0x10, 0, 0x10, 0, 0, 0, 0, 0, 0, 0, 0x0a, (byte) 0xc4, 0x42, (byte) 0xf0 }, new byte[16]);
+	// An ftyp box for an M4A file
+	private static final byte[] M4A = { 0, 0, 0, 0x14, 'f', 't', 'y', 'p', 'M', '4', 'A', ' ',
+		0, 0, 0, 0, 'M', '4', 'A', ' ' };
+	// The first page header of an Ogg stream, followed by a Vorbis identification header
+	private static final byte[] OGG = { 'O', 'g', 'g', 'S', 0, 2, 0, 0, 0, 0, 0, 0, 0, 0,
+		1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 30,
+		1, 'v', 'o', 'r', 'b', 'i', 's' };
+	// A RIFF/WAVE header for 44.1kHz 16 bit stereo PCM with no samples
+	private static final byte[] WAV = { 'R', 'I', 'F', 'F', 36, 0, 0, 0, 'W', 'A', 'V', 'E',
+		'f', 'm', 't', ' ', 16, 0, 0, 0, 1, 0, 2, 0, 0x44, (byte) 0xac, 0, 0,
+		0x10, (byte) 0xb1, 2, 0, 4, 0, 16, 0, 'd', 'a', 't', 'a', 0, 0, 0, 0 };
+
+	private final File root;
+	private final Random random;
+
+	private int tracks;
+	private int files;
+	private int directories;
+
+	public LibraryGenerator(File root, long seed) {
+		this.root = root;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Write a library of about trackCount tracks (it stops at the end of the
+	 * album that reaches the count).
+	 */
+	public void generate(int trackCount) throws IOException {
+		mkdir(root);
+		int artistNumber = 0;
+		while (tracks < trackCount) {
+			artistNumber++;
+			if (artistNumber % 50 == 0) {
+				// Compilations: Various Artists/<label>/<album>
+				File label = mkdir(new File(mkdir(new File(root, "Various Artists")), title(2) + " Records"));
+				writeAlbum(new File(label, title(3) + " " + artistNumber), 1);
+				continue;
+			}
+			File artist = mkdir(new File(root, title(2) + " " + artistNumber));
+			int albums = 1 + random.nextInt(8);
+			for (int a = 0; a < albums && tracks < trackCount; a++) {
+				int discs = random.nextInt(10) == 0 ? 2 : 1;
+				writeAlbum(new File(artist, title(3) + " " + a), discs);
+			}
+			if (random.nextInt(10) == 0) {
+				// A few loose tracks outside any album
+				writeTracks(artist, 1 + random.nextInt(3));
+			}
+			if (random.nextInt(20) == 0) {
+				File hidden = mkdir(new File(artist, ".thumbnails"));
+				touch(new File(hidden, "thumb0001.jpg"), null);
+			}
+		}
+	}
+
+	private void writeAlbum(File album, int discs) throws IOException {
+		mkdir(album);
+		int trackCount = 8 + random.nextInt(9);
+		if (discs == 1) {
+			writeTracks(album, trackCount);
+		} else {
+			for (int d = 1; d <= discs; d++) {
+				writeTracks(mkdir(new File(album, "Disc " + d)), trackCount);
+			}
+		}
+		int extras = random.nextInt(EXTRAS.length + 1);
+		for (int i = 0; i < extras; i++) {
+			touch(new File(album, EXTRAS[i]), null);
+		}
+		if (random.nextInt(8) == 0) {
+			touch(new File(album, HIDDEN[random.nextInt(HIDDEN.length)]), null);
+		}
+	}
+
+	private void writeTracks(File dir, int count) throws IOException {
+		String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+		for (int t = 1; t <= count; t++) {
+			String name = String.format("%02d %s.%s", t, title(1 + random.nextInt(4)), extension);
+			touch(new File(dir, name), header(extension));
+			tracks++;
+		}
+	}
+
+	private static byte[] header(String extension) {
+		if (extension.equals("mp3")) {
+			return MP3;
+		} else if (extension.equals("flac")) {
+			return FLAC;
+		} else if (extension.equals("m4a")) {
+			return M4A;
+		} else if (extension.equals("ogg")) {
+			return OGG;
+		}
+		return WAV;
+	}
+
+	private String title(int words) {
+		StringBuilder title = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				title.append(' ');
+			}
+			title.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return title.toString();
+	}
+
+	private File mkdir(File dir) throws IOException {
+		if (!dir.isDirectory()) {
+			if (!dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir);
+			}
+			directories++;
+		}
+		return dir;
+	}
+
+	private void touch(File file, byte[] contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			if (contents != null) {
+				out.write(contents);
+			}
+		} finally {
+			out.close();
+		}
+		files++;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	public int getTrackCount() {
+		return tracks;
+	}
+
+	public int getFileCount() {
+		return files;
+	}
+
+	public int getDirectoryCount() {
+		return directories;
+	}
+
+	/**
+	 * Delete a generated library.
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
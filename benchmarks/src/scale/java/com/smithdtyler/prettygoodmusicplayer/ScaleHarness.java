@@ -0,0 +1,353 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs the player's core through a whole session against generated
+ * libraries of increasing size, and reports the time, peak heap and
+ * allocations of each phase:
+ *
+ *   generate  write the library (see {@link LibraryGenerator})
+ *   scan      find the album directories, as the album list does
+ *   sniff     the same scan judging files by their contents, with an empty
+ *             format cache, so every song is read once
+ *   rescan    the sniffing scan again after a restart, with the saved cache
+ *   list      list and name the songs in every album, as the song list does
+ *   play-all  queue every song and step through it, naming each track and
+ *             saving the session, as the service does
+ *   shuffle   one full pass of shuffle draws over the queue
+ *   skip      rapid next/previous presses, each saving a bookmark and the session
+ *   restore   load the saved session and rebuild the queue, as after a restart
+ *
+ * Usage: ScaleHarness [--dir DIR] [--keep] [--csv FILE] [--seed N] [SIZE...]
+ * with sizes in tracks, e.g. "10000 100000 500000". Libraries are built in
+ * the temp directory unless --dir is given, and deleted afterwards unless
+ * --keep is given. Allocations are counted on the harness thread only, so
+ * work done by the stores' writer threads shows up in time but not in bytes.
+ */
+public class ScaleHarness {
+	private static final int MAX_SKIPS = 10000;
+
+	/**
+	 * One measured step; returns a short description of what it did.
+	 */
+	private interface Step {
+		String run() throws Exception;
+	}
+
+	private static final class Result {
+		final String phase;
+		final long nanos;
+		final long peakHeap;
+		final long allocated;
+		final String detail;
+
+		Result(String phase, long nanos, long peakHeap, long allocated, String detail) {
+			this.phase = phase;
+			this.nanos = nanos;
+			this.peakHeap = peakHeap;
+			this.allocated = allocated;
+			this.detail = detail;
+		}
+	}
+
+	private final int size;
+	private final File dir;
+	private final long seed;
+	private final List<Result> results = new ArrayList<Result>();
+
+	// Carried from one phase to the next
+	private File library;
+	private List<File> albums;
+	private String[] playlist;
+	private PlayQueue queue;
+	private SessionStore sessionStore;
+	private ResumeStore resumeStore;
+
+	ScaleHarness(int size, File dir, long seed) {
+		this.size = size;
+		this.dir = dir;
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File parent = new File(System.getProperty("java.io.tmpdir"));
+		File csv = null;
+		boolean keep = false;
+		long seed = 42;
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--dir")) {
+				parent = new File(args[++i]);
+			} else if (args[i].equals("--csv")) {
+				csv = new File(args[++i]);
+			} else if (args[i].equals("--keep")) {
+				keep = true;
+			} else if (args[i].equals("--seed")) {
+				seed = Long.parseLong(args[++i]);
+			} else {
+				sizes.add(Integer.parseInt(args[i].replace("_", "").replace("k", "000")));
+			}
+		}
+		if (sizes.isEmpty()) {
+			sizes.add(10000);
+		}
+
+		// Keep the core's log messages out of the report
+		CoreLog.setSink(new CoreLog.Sink() {
+			@Override
+			public void info(String tag, String message) {
+			}
+
+			@Override
+			public void warn(String tag, String message, Throwable error) {
+				System.err.println(tag + ": " + message);
+			}
+		});
+
+		for (int size : sizes) {
+			File dir = new File(parent, "pgmp-scale-" + size);
+			if (dir.exists()) {
+				LibraryGenerator.delete(dir);
+			}
+			ScaleHarness harness = new ScaleHarness(size, dir, seed);
+			try {
+				harness.run();
+			} finally {
+				if (!keep) {
+					LibraryGenerator.delete(dir);
+				}
+			}
+			harness.print(new PrintWriter(System.out, true));
+			if (csv != null) {
+				harness.appendCsv(csv);
+			}
+		}
+	}
+
+	void run() throws Exception {
+		library = new File(dir, "library");
+		final File state = new File(dir, "state");
+		if (!state.mkdirs()) {
+			throw new IOException("Unable to create " + state);
+		}
+
+		measure("generate", new Step() {
+			@Override
+			public String run() throws IOException {
+				LibraryGenerator generator = new LibraryGenerator(library, seed);
+				generator.generate(size);
+				return generator.getTrackCount() + " tracks, " + generator.getFileCount() + " files, "
+						+ generator.getDirectoryCount() + " dirs";
+			}
+		});
+
+		measure("scan", new Step() {
+			@Override
+			public String run() {
+				albums = LibraryScanner.getAllAlbumsInDirRecursive(library);
+				Collections.sort(albums, LibraryScanner.ALBUM_FILE_COMPARATOR);
+				return albums.size() + " albums";
+			}
+		});
+
+		final File formats = new File(state, FormatCache.FILE_NAME);
+		measure("sniff", new Step() {
+			@Override
+			public String run() throws Exception {
+				FormatCache cache = new FormatCache(formats);
+				LibraryScanner.setFormatCache(cache);
+				int found = LibraryScanner.getAllAlbumsInDirRecursive(library).size();
+				cache.flush().get();
+				return found + " albums, " + cache.size() + " files sniffed";
+			}
+		});
+
+		measure("rescan", new Step() {
+			@Override
+			public String run() {
+				FormatCache cache = new FormatCache(formats);
+				LibraryScanner.setFormatCache(cache);
+				int found = LibraryScanner.getAllAlbumsInDirRecursive(library).size();
+				return found + " albums, " + cache.size() + " formats cached";
+			}
+		});
+		// The rest of the session goes by names, as before
+		LibraryScanner.setFormatCache(null);
+
+		measure("list", new Step() {
+			@Override
+			public String run() {
+				List<String> paths = new ArrayList<String>();
+				long nameLength = 0;
+				for (File album : albums) {
+					for (File song : LibraryScanner.getAllSongsInDirRecursive(album)) {
+						nameLength += LibraryScanner.getPrettySongName(song.getName()).length();
+						paths.add(song.getAbsolutePath());
+					}
+				}
+				playlist = paths.toArray(new String[paths.size()]);
+				return playlist.length + " tracks, " + nameLength + " name chars";
+			}
+		});
+
+		sessionStore = new SessionStore(state);
+		resumeStore = new ResumeStore(new File(state, ResumeStore.JOURNAL_NAME), ResumeStore.DEFAULT_LIMIT);
+		final String root = library.getAbsolutePath();
+
+		measure("play-all", new Step() {
+			@Override
+			public String run() throws Exception {
+				queue = new PlayQueue(playlist, 0, seed);
+				long nameLength = 0;
+				for (int i = 0; i < playlist.length; i++) {
+					File song = new File(queue.next(false));
+					nameLength += LibraryScanner.getArtistName(song, root).length()
+							+ LibraryScanner.getPrettySongName(song.getName()).length();
+					saveSession(0);
+				}
+				sessionStore.flush();
+				// Runs on the writer thread after the flush, so this waits for it
+				sessionStore.loadAsync().get();
+				return playlist.length + " tracks, " + nameLength + " name chars";
+			}
+		});
+
+		measure("shuffle", new Step() {
+			@Override
+			public String run() {
+				queue.reshuffle(seed);
+				for (int i = 0; i < playlist.length; i++) {
+					queue.next(true);
+				}
+				return playlist.length + " draws";
+			}
+		});
+
+		measure("skip", new Step() {
+			@Override
+			public String run() throws Exception {
+				Random random = new Random(seed);
+				int skips = Math.min(MAX_SKIPS, playlist.length * 2);
+				for (int i = 0; i < skips; i++) {
+					File song = new File(random.nextInt(4) == 0 ? queue.previous() : queue.next(true));
+					int position = random.nextInt(300000);
+					resumeStore.put(song.getParent(), song.getName(), position);
+					saveSession(position);
+				}
+				sessionStore.flush();
+				sessionStore.loadAsync().get();
+				resumeStore.flush();
+				return skips + " skips, " + resumeStore.size() + " bookmarks";
+			}
+		});
+
+		measure("restore", new Step() {
+			@Override
+			public String run() throws Exception {
+				SessionStore restarted = new SessionStore(state);
+				SessionStore.Session session = restarted.loadAsync().get();
+				if (session == null) {
+					throw new IllegalStateException("No session saved");
+				}
+				PlayQueue restored = PlayQueue.restore(session.queue, session.index,
+						session.shuffleSeed, session.shuffleDraws);
+				return restored.size() + " tracks, " + session.shuffleDraws + " draws replayed";
+			}
+		});
+	}
+
+	private void saveSession(int position) {
+		sessionStore.save(new SessionStore.Session(queue.getTracks(), queue.getPosition(), position, true,
+				queue.getShuffleSeed(), queue.getShuffleDraws(), null, null, null));
+	}
+
+	private void measure(String phase, Step step) throws Exception {
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		String detail = step.run();
+		long nanos = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		results.add(new Result(phase, nanos, peak, allocatedBefore < 0 ? -1 : allocated, detail));
+	}
+
+	/**
+	 * Bytes allocated so far by this thread, or -1 if the JVM can't say.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	void print(PrintWriter out) {
+		out.println();
+		out.println(String.format(Locale.US, "%,d tracks", size));
+		out.println(String.format(Locale.US, "  %-9s %10s %12s %12s  %s", "phase", "ms", "peak heap MB", "alloc MB", ""));
+		for (Result r : results) {
+			out.println(String.format(Locale.US, "  %-9s %10.1f %12.1f %12s  %s", r.phase, r.nanos / 1e6,
+					r.peakHeap / 1048576.0, r.allocated < 0 ? "n/a" : String.format(Locale.US, "%.1f", r.allocated / 1048576.0),
+					r.detail));
+		}
+	}
+
+	void appendCsv(File csv) throws IOException {
+		boolean header = !csv.exists();
+		PrintWriter out = new PrintWriter(new FileWriter(csv, true));
+		try {
+			if (header) {
+				out.println("tracks,phase,ms,peak_heap_bytes,allocated_bytes");
+			}
+			for (Result r : results) {
+				out.println(String.format(Locale.US, "%d,%s,%.3f,%d,%d", size, r.phase, r.nanos / 1e6,
+						r.peakHeap, r.allocated));
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,515 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds cover art for a song or an album directory without reading whole
+ * files: embedded art is located by walking the tag headers (ID3v2 APIC,
+ * FLAC PICTURE, MP4 covr) and seeking past everything else, so only the
+ * image bytes themselves are ever read.
+ *
+ * Folder images (cover.jpg and friends) are remembered as the library scan
+ * walks past them, so looking one up usually costs no directory listing.
+ */
+public final class ArtworkLocator {
+	private static final String TAG = "ArtworkLocator";
+
+	// ID3v2 and FLAC picture type for the front cover
+	private static final int FRONT_COVER = 3;
+	// Enough of a picture frame to hold its mime type and description
+	private static final int PICTURE_HEADER_MAX = 1024;
+	// Embedded art larger than this is assumed to be a corrupt tag
+	private static final int MAX_IMAGE_BYTES = 16 * 1024 * 1024;
+
+	private static final String[] PREFERRED_NAMES = { "cover", "folder", "front", "album" };
+
+	// Album directory path -> best image file seen in it by the scan
+	private static final ConcurrentHashMap<String, File> folderImages = new ConcurrentHashMap<>();
+
+	/**
+	 * Where an image lives: a whole file, or a range of bytes inside one.
+	 */
+	public static final class Artwork {
+		public final File file;
+		public final long offset;
+		public final int length;
+		public final String mimeType;
+		// ID3v2 or FLAC picture type, or -1 for folder images
+		final int pictureType;
+		// ID3v2 unsynchronised frames are read whole, undone, then this
+		// many bytes of frame header are dropped
+		final boolean unsynchronised;
+		final int skip;
+
+		Artwork(File file, long offset, int length, String mimeType, int pictureType) {
+			this(file, offset, length, mimeType, pictureType, false, 0);
+		}
+
+		Artwork(File file, long offset, int length, String mimeType, int pictureType,
+				boolean unsynchronised, int skip) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.mimeType = mimeType;
+			this.pictureType = pictureType;
+			this.unsynchronised = unsynchronised;
+			this.skip = skip;
+		}
+
+		/**
+		 * @return true if the image is the whole file, e.g. a cover.jpg
+		 */
+		public boolean isWholeFile() {
+			return offset == 0 && length == file.length();
+		}
+
+		@Override
+		public String toString() {
+			return file + "@" + offset + "+" + length + " (" + mimeType + ")";
+		}
+	}
+
+	private ArtworkLocator() {
+	}
+
+	/**
+	 * @return true if the name looks like an image a folder might hold
+	 */
+	public static boolean isImageFileName(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0) {
+			return false;
+		}
+		String extension = name.substring(dot + 1).toLowerCase(Locale.US);
+		return extension.equals("jpg") || extension.equals("jpeg")
+				|| extension.equals("png") || extension.equals("webp");
+	}
+
+	/**
+	 * Called by the library scan for every image it walks past, so the best
+	 * one in each directory is known before anyone asks for it.
+	 */
+	static void noteImageFile(File image) {
+		if (image.isHidden()) {
+			return;
+		}
+		File dir = image.getParentFile();
+		if (dir == null) {
+			return;
+		}
+		String key = dir.getAbsolutePath();
+		File current = folderImages.get(key);
+		if (current == null || rank(image.getName()) < rank(current.getName())) {
+			folderImages.put(key, image);
+		}
+	}
+
+	/**
+	 * Forget everything the scan has seen, e.g. when the music directory
+	 * changes.
+	 */
+	public static void clearFolderImages() {
+		folderImages.clear();
+	}
+
+	/**
+	 * Find art for a song: its own embedded picture, or else its folder's.
+	 * @return null if there's none
+	 */
+	public static Artwork forSong(File song) {
+		Artwork art = findEmbedded(song);
+		if (art == null) {
+			art = findFolderImage(song.getParentFile());
+		}
+		return art;
+	}
+
+	/**
+	 * Find art for an album directory: a folder image, or else the picture
+	 * embedded in its first song.
+	 * @return null if there's none
+	 */
+	public static Artwork forAlbum(File album) {
+		if (album == null || !album.isDirectory()) {
+			return null;
+		}
+		Artwork art = findFolderImage(album);
+		if (art != null) {
+			return art;
+		}
+		File[] files = album.listFiles();
+		if (files == null) {
+			return null;
+		}
+		Arrays.sort(files, LibraryScanner.SONG_FILE_COMPARATOR);
+		for (File f : files) {
+			if (LibraryScanner.isValidSongFile(f)) {
+				return findEmbedded(f);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the preferred image file in a directory, or null
+	 */
+	public static Artwork findFolderImage(File dir) {
+		if (dir == null) {
+			return null;
+		}
+		File image = folderImages.get(dir.getAbsolutePath());
+		if (image == null || !image.isFile()) {
+			// Not scanned yet (or changed since), so look for ourselves
+			image = null;
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					if (isImageFileName(f.getName()) && f.isFile() && !f.isHidden()
+							&& (image == null || rank(f.getName()) < rank(image.getName()))) {
+						image = f;
+					}
+				}
+			}
+			if (image == null) {
+				return null;
+			}
+			folderImages.put(dir.getAbsolutePath(), image);
+		}
+		long length = image.length();
+		if (length <= 0 || length > MAX_IMAGE_BYTES) {
+			return null;
+		}
+		return new Artwork(image, 0, (int) length, null, -1);
+	}
+
+	/**
+	 * Lower is better: cover.jpg beats folder.jpg beats some_scan.jpg.
+	 */
+	private static int rank(String name) {
+		String lower = name.toLowerCase(Locale.US);
+		for (int i = 0; i < PREFERRED_NAMES.length; i++) {
+			if (lower.startsWith(PREFERRED_NAMES[i])) {
+				return i;
+			}
+		}
+		return PREFERRED_NAMES.length;
+	}
+
+	/**
+	 * Find a picture embedded in the song's tags.
+	 * @return null if there's none, or the tags can't be parsed
+	 */
+	public static Artwork findEmbedded(File song) {
+		if (song == null || !song.isFile()) {
+			return null;
+		}
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(song, "r");
+			byte[] magic = new byte[12];
+			if (in.read(magic) < magic.length) {
+				return null;
+			}
+			long audioStart = 0;
+			if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+				Artwork art = findId3(song, in);
+				if (art != null) {
+					return art;
+				}
+				// FLAC files sometimes carry an ID3v2 tag in front of "fLaC"
+				audioStart = 10 + TagReader.syncsafe(magic, 6) + ((magic[5] & 0x10) != 0 ? 10 : 0);
+				in.seek(audioStart);
+				if (in.read(magic, 0, 4) < 4) {
+					return null;
+				}
+			}
+			if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C') {
+				return findFlac(song, in, audioStart + 4);
+			}
+			if (audioStart == 0 && magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+				return findMp4(song, in);
+			}
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read tags from " + song, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the image bytes, undoing ID3v2 unsynchronisation if needed.
+	 */
+	public static byte[] read(Artwork art) throws IOException {
+		byte[] data = new byte[art.length];
+		RandomAccessFile in = new RandomAccessFile(art.file, "r");
+		try {
+			in.seek(art.offset);
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		if (!art.unsynchronised) {
+			return data;
+		}
+		int length = resynchronise(data, data.length);
+		return Arrays.copyOfRange(data, art.skip, length);
+	}
+
+	/**
+	 * Undo ID3v2 unsynchronisation in place: a 0x00 was written after every
+	 * 0xFF that could have looked like an MPEG sync.
+	 * @return the new length
+	 */
+	private static int resynchronise(byte[] data, int length) {
+		int out = 0;
+		for (int i = 0; i < length; i++) {
+			data[out++] = data[i];
+			if (data[i] == (byte) 0xFF && i + 1 < length && data[i + 1] == 0) {
+				i++;
+			}
+		}
+		return out;
+	}
+
+	// ID3v2.2 - 2.4: walk the frame headers looking for APIC (or PIC in 2.2)
+	private static Artwork findId3(File song, RandomAccessFile in) throws IOException {
+		byte[] header = new byte[10];
+		in.seek(0);
+		in.readFully(header);
+		int version = header[3];
+		int flags = header[5] & 0xFF;
+		long end = 10 + TagReader.syncsafe(header, 6);
+		if (version < 2 || version > 4) {
+			return null;
+		}
+		boolean tagUnsync = (flags & 0x80) != 0;
+		if (version == 2 && (flags & 0x40) != 0) {
+			// 2.2 compression was never defined, so nobody can read it
+			return null;
+		}
+		long pos = 10;
+		if (version > 2 && (flags & 0x40) != 0) {
+			in.seek(pos);
+			in.readFully(header, 0, 4);
+			// 2.3 doesn't count the size field itself, 2.4 does
+			pos += version == 3 ? 4 + TagReader.int32(header, 0) : TagReader.syncsafe(header, 0);
+		}
+		int headerSize = version == 2 ? 6 : 10;
+		Artwork best = null;
+		while (pos + headerSize <= end) {
+			in.seek(pos);
+			in.readFully(header, 0, headerSize);
+			if (header[0] == 0) {
+				break; // padding
+			}
+			int size;
+			int frameFlags = 0;
+			boolean picture;
+			if (version == 2) {
+				size = ((header[3] & 0xFF) << 16) | ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+				picture = header[0] == 'P' && header[1] == 'I' && header[2] == 'C';
+			} else {
+				size = version == 4 ? TagReader.syncsafe(header, 4) : TagReader.int32(header, 4);
+				frameFlags = ((header[8] & 0xFF) << 8) | (header[9] & 0xFF);
+				picture = header[0] == 'A' && header[1] == 'P' && header[2] == 'I' && header[3] == 'C';
+			}
+			long body = pos + headerSize;
+			if (size <= 0 || body + size > end) {
+				break;
+			}
+			if (picture) {
+				Artwork art = readId3Picture(song, in, version, frameFlags, tagUnsync, body, size);
+				if (art != null) {
+					if (art.pictureType == FRONT_COVER) {
+						return art;
+					}
+					if (best == null) {
+						best = art;
+					}
+				}
+			}
+			pos = body + size;
+		}
+		return best;
+	}
+
+	private static Artwork readId3Picture(File song, RandomAccessFile in, int version, int frameFlags,
+			boolean tagUnsync, long body, int size) throws IOException {
+		boolean unsync = tagUnsync;
+		if (version == 4) {
+			if ((frameFlags & 0x000C) != 0) {
+				return null; // compressed or encrypted
+			}
+			unsync |= (frameFlags & 0x0002) != 0;
+			if ((frameFlags & 0x0001) != 0) {
+				body += 4; // data length indicator
+				size -= 4;
+			}
+		} else if (version == 3 && (frameFlags & 0x00C0) != 0) {
+			return null; // compressed or encrypted
+		}
+		if (size > MAX_IMAGE_BYTES) {
+			return null;
+		}
+		byte[] buf = new byte[Math.min(size, PICTURE_HEADER_MAX)];
+		in.seek(body);
+		in.readFully(buf);
+		int bufLength = unsync ? resynchronise(buf, buf.length) : buf.length;
+		if (bufLength < buf.length) {
+			buf = Arrays.copyOf(buf, bufLength);
+		}
+		int encoding = buf[0];
+		int p = 1;
+		String mime;
+		if (version == 2) {
+			// Three character image format, e.g. "JPG"
+			mime = p + 3 <= buf.length ? "image/" + new String(buf, p, 3, "ISO-8859-1").toLowerCase(Locale.US) : null;
+			p += 3;
+		} else {
+			int start = p;
+			while (p < buf.length && buf[p] != 0) {
+				p++;
+			}
+			mime = new String(buf, start, p - start, "ISO-8859-1");
+			p++;
+		}
+		if (p >= buf.length) {
+			return null;
+		}
+		int pictureType = buf[p++] & 0xFF;
+		// Skip the description, terminated by a one or two byte zero
+		boolean wide = encoding == 1 || encoding == 2;
+		if (wide) {
+			while (p + 1 < buf.length && (buf[p] != 0 || buf[p + 1] != 0)) {
+				p += 2;
+			}
+			p += 2;
+		} else {
+			while (p < buf.length && buf[p] != 0) {
+				p++;
+			}
+			p++;
+		}
+		if (p >= buf.length || size - p <= 0) {
+			return null;
+		}
+		if (unsync) {
+			// Where the image starts in the file isn't known until the
+			// frame is undone, so read it all and drop the header then
+			return new Artwork(song, body, size, mime, pictureType, true, p);
+		}
+		return new Artwork(song, body + p, size - p, mime, pictureType);
+	}
+
+	// FLAC: metadata blocks follow "fLaC", type 6 is PICTURE
+	private static Artwork findFlac(File song, RandomAccessFile in, long pos) throws IOException {
+		byte[] header = new byte[4];
+		Artwork best = null;
+		long fileLength = in.length();
+		boolean last = false;
+		while (!last && pos + 4 <= fileLength) {
+			in.seek(pos);
+			in.readFully(header);
+			last = (header[0] & 0x80) != 0;
+			int type = header[0] & 0x7F;
+			int size = ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+			long body = pos + 4;
+			if (type == 6) {
+				byte[] buf = new byte[Math.min(size, PICTURE_HEADER_MAX)];
+				in.readFully(buf);
+				int pictureType = TagReader.int32(buf, 0);
+				int mimeLength = TagReader.int32(buf, 4);
+				if (mimeLength < 0 || 8 + mimeLength + 4 > buf.length) {
+					return best;
+				}
+				String mime = new String(buf, 8, mimeLength, "US-ASCII");
+				int p = 8 + mimeLength;
+				int descriptionLength = TagReader.int32(buf, p);
+				// description, then width, height, depth, colours
+				p += 4 + descriptionLength + 16;
+				if (descriptionLength < 0 || p + 4 > buf.length) {
+					return best;
+				}
+				int dataLength = TagReader.int32(buf, p);
+				p += 4;
+				if (dataLength > 0 && p + dataLength <= size) {
+					Artwork art = new Artwork(song, body + p, dataLength, mime, pictureType);
+					if (pictureType == FRONT_COVER) {
+						return art;
+					}
+					if (best == null) {
+						best = art;
+					}
+				}
+			}
+			pos = body + size;
+		}
+		return best;
+	}
+
+	// MP4: moov/udta/meta/ilst/covr/data
+	private static Artwork findMp4(File song, RandomAccessFile in) throws IOException {
+		long[] box = TagReader.findBox(in, 0, in.length(), "moov");
+		if (box != null) {
+			box = TagReader.findBox(in, box[0], box[1], "udta");
+		}
+		if (box != null) {
+			box = TagReader.findBox(in, box[0], box[1], "meta");
+		}
+		if (box != null) {
+			// meta is a full box: skip its version and flags
+			box = TagReader.findBox(in, box[0] + 4, box[1], "ilst");
+		}
+		if (box != null) {
+			box = TagReader.findBox(in, box[0], box[1], "covr");
+		}
+		if (box != null) {
+			box = TagReader.findBox(in, box[0], box[1], "data");
+		}
+		if (box == null || box[1] - box[0] <= 8) {
+			return null;
+		}
+		byte[] type = new byte[4];
+		in.seek(box[0]);
+		in.readFully(type);
+		// The well known type says what the image is; then 4 bytes of locale
+		int wellKnown = TagReader.int32(type, 0) & 0xFFFFFF;
+		String mime = wellKnown == 13 ? "image/jpeg" : wellKnown == 14 ? "image/png" : null;
+		long start = box[0] + 8;
+		long length = box[1] - start;
+		if (length > MAX_IMAGE_BYTES) {
+			return null;
+		}
+		return new Artwork(song, start, (int) length, mime, FRONT_COVER);
+	}
+}
@@ -0,0 +1,431 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The chapters of a song, usually a long audiobook file, as start times
+ * and titles in order.
+ *
+ * Read from ID3v2.3/2.4 CHAP frames in MP3s, and from either a QuickTime
+ * chapter track or a Nero "chpl" box in MP4/M4B files.
+ */
+public final class ChapterIndex {
+	/** For songs without (at least two) chapters. */
+	public static final ChapterIndex NONE = new ChapterIndex(new int[0], new String[0]);
+
+	private static final int MAX_CHAPTERS = 4096;
+	// CHAP frames can hold pictures; the title is near the front
+	private static final int CHAP_FRAME_MAX = 4096;
+	private static final int TITLE_MAX = 1024;
+	// Sample tables of a chapter track are small; anything bigger isn't one
+	private static final int TABLE_MAX = 256 * 1024;
+
+	private final int[] starts;
+	private final String[] titles;
+
+	private ChapterIndex(int[] starts, String[] titles) {
+		this.starts = starts;
+		this.titles = titles;
+	}
+
+	public int size() {
+		return starts.length;
+	}
+
+	public int getStartMs(int chapter) {
+		return starts[chapter];
+	}
+
+	/**
+	 * @return the chapter's title, which may be empty
+	 */
+	public String getTitle(int chapter) {
+		return titles[chapter];
+	}
+
+	/**
+	 * @return the chapter playing at the given time, or -1 if that's before
+	 * the first chapter (or there aren't any)
+	 */
+	public int chapterAt(int ms) {
+		int i = Arrays.binarySearch(starts, ms);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	@Override
+	public String toString() {
+		return "ChapterIndex[chapters=" + starts.length + "]";
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(starts.length);
+		for (int i = 0; i < starts.length; i++) {
+			out.writeInt(starts[i]);
+			out.writeUTF(titles[i]);
+		}
+	}
+
+	static ChapterIndex readFrom(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_CHAPTERS) {
+			throw new IOException("Bad chapter count " + count);
+		}
+		if (count == 0) {
+			return NONE;
+		}
+		int[] starts = new int[count];
+		String[] titles = new String[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = in.readInt();
+			titles[i] = in.readUTF();
+		}
+		return new ChapterIndex(starts, titles);
+	}
+
+	/**
+	 * Read a song's chapters. Only the tags and, for MP4, the box headers
+	 * and chapter track are read, so this is quick, but it's still file IO.
+	 * @return NONE if the song has fewer than two chapters
+	 */
+	public static ChapterIndex read(File song) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(song, "r");
+		try {
+			if (in.length() < 12) {
+				return NONE;
+			}
+			byte[] magic = new byte[12];
+			in.readFully(magic);
+			List<Chapter> chapters = null;
+			if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+				chapters = readId3(in);
+			} else if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+				chapters = readMp4(in);
+			}
+			return chapters == null ? NONE : fromList(chapters);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static final class Chapter {
+		final int startMs;
+		final String title;
+
+		Chapter(int startMs, String title) {
+			this.startMs = startMs;
+			this.title = title;
+		}
+	}
+
+	private static ChapterIndex fromList(List<Chapter> chapters) {
+		// ID3 doesn't require CHAP frames to be in order
+		Collections.sort(chapters, new Comparator<Chapter>() {
+			@Override
+			public int compare(Chapter lhs, Chapter rhs) {
+				return lhs.startMs < rhs.startMs ? -1 : (lhs.startMs == rhs.startMs ? 0 : 1);
+			}
+		});
+		int[] starts = new int[chapters.size()];
+		String[] titles = new String[chapters.size()];
+		int count = 0;
+		for (Chapter chapter : chapters) {
+			if (chapter.startMs < 0 || (count > 0 && chapter.startMs == starts[count - 1])) {
+				continue;
+			}
+			starts[count] = chapter.startMs;
+			titles[count] = chapter.title;
+			count++;
+		}
+		if (count < 2) {
+			return NONE;
+		}
+		return new ChapterIndex(Arrays.copyOf(starts, count), Arrays.copyOf(titles, count));
+	}
+
+	// ID3v2.3/2.4: CHAP frames, each with its title in a TIT2 sub-frame
+	private static List<Chapter> readId3(RandomAccessFile in) throws IOException {
+		byte[] header = new byte[10];
+		in.seek(0);
+		in.readFully(header);
+		int version = header[3];
+		int flags = header[5] & 0xFF;
+		// 2.2 has no chapters; a 2.3 tag wide unsynchronisation isn't worth undoing
+		if (version < 3 || version > 4 || (version == 3 && (flags & 0x80) != 0)) {
+			return null;
+		}
+		long end = 10 + TagReader.syncsafe(header, 6);
+		long pos = 10;
+		if ((flags & 0x40) != 0) {
+			in.readFully(header, 0, 4);
+			pos += version == 3 ? 4 + TagReader.int32(header, 0) : TagReader.syncsafe(header, 0);
+		}
+		List<Chapter> chapters = new ArrayList<Chapter>();
+		while (pos + 10 <= end && chapters.size() < MAX_CHAPTERS) {
+			in.seek(pos);
+			in.readFully(header);
+			if (header[0] == 0) {
+				break; // padding
+			}
+			int size = version == 4 ? TagReader.syncsafe(header, 4) : TagReader.int32(header, 4);
+			int frameFlags = ((header[8] & 0xFF) << 8) | (header[9] & 0xFF);
+			long body = pos + 10;
+			if (size <= 0 || body + size > end) {
+				break;
+			}
+			boolean plain = version == 4 ? (frameFlags & 0x000F) == 0 : (frameFlags & 0x00C0) == 0;
+			if (plain && header[0] == 'C' && header[1] == 'H' && header[2] == 'A' && header[3] == 'P') {
+				byte[] buf = new byte[Math.min(size, CHAP_FRAME_MAX)];
+				in.readFully(buf);
+				Chapter chapter = readChapFrame(buf, version);
+				if (chapter != null) {
+					chapters.add(chapter);
+				}
+			}
+			pos = body + size;
+		}
+		return chapters;
+	}
+
+	private static Chapter readChapFrame(byte[] buf, int version) throws IOException {
+		// Element id, then start and end times and byte offsets
+		int p = 0;
+		while (p < buf.length && buf[p] != 0) {
+			p++;
+		}
+		p++;
+		if (p + 16 > buf.length) {
+			return null;
+		}
+		int startMs = TagReader.int32(buf, p);
+		p += 16;
+		String title = "";
+		while (p + 10 <= buf.length && buf[p] != 0) {
+			int size = version == 4 ? TagReader.syncsafe(buf, p + 4) : TagReader.int32(buf, p + 4);
+			int body = p + 10;
+			if (size <= 0) {
+				break;
+			}
+			if (buf[p] == 'T' && buf[p + 1] == 'I' && buf[p + 2] == 'T' && buf[p + 3] == '2') {
+				title = TagReader.id3Text(buf, body, Math.min(size, buf.length - body));
+				break;
+			}
+			p = body + size;
+		}
+		return new Chapter(startMs, title);
+	}
+
+	// MP4: a QuickTime chapter track if there is one, otherwise Nero's chpl
+	private static List<Chapter> readMp4(RandomAccessFile in) throws IOException {
+		long[] moov = TagReader.findBox(in, 0, in.length(), "moov");
+		if (moov == null) {
+			return null;
+		}
+		List<long[]> traks = new ArrayList<long[]>();
+		Set<Integer> chapterTracks = new HashSet<Integer>();
+		long pos = moov[0];
+		long[] trak;
+		while ((trak = TagReader.findBox(in, pos, moov[1], "trak")) != null) {
+			traks.add(trak);
+			pos = trak[1];
+			long[] chap = TagReader.findBox(in, trak[0], trak[1], "tref");
+			if (chap != null) {
+				chap = TagReader.findBox(in, chap[0], chap[1], "chap");
+			}
+			if (chap != null) {
+				byte[] ids = readBox(in, chap);
+				for (int i = 0; i + 4 <= ids.length; i += 4) {
+					chapterTracks.add(TagReader.int32(ids, i));
+				}
+			}
+		}
+		for (long[] t : traks) {
+			if (chapterTracks.contains(trackId(in, t))) {
+				List<Chapter> chapters = readChapterTrack(in, t);
+				if (chapters != null && chapters.size() > 1) {
+					return chapters;
+				}
+			}
+		}
+		long[] chpl = TagReader.findBox(in, moov[0], moov[1], "udta");
+		if (chpl != null) {
+			chpl = TagReader.findBox(in, chpl[0], chpl[1], "chpl");
+		}
+		return chpl == null ? null : readChpl(readBox(in, chpl));
+	}
+
+	private static int trackId(RandomAccessFile in, long[] trak) throws IOException {
+		long[] tkhd = TagReader.findBox(in, trak[0], trak[1], "tkhd");
+		if (tkhd == null || tkhd[1] - tkhd[0] < 24) {
+			return -1;
+		}
+		byte[] buf = new byte[24];
+		in.seek(tkhd[0]);
+		in.readFully(buf);
+		// Version 1 has 64 bit creation and modification times
+		return TagReader.int32(buf, buf[0] == 1 ? 20 : 12);
+	}
+
+	/**
+	 * A text track: each sample is a 16 bit length and the chapter title,
+	 * lasting as long as the sample does.
+	 */
+	private static List<Chapter> readChapterTrack(RandomAccessFile in, long[] trak) throws IOException {
+		long[] mdia = TagReader.findBox(in, trak[0], trak[1], "mdia");
+		long[] mdhd = mdia == null ? null : TagReader.findBox(in, mdia[0], mdia[1], "mdhd");
+		long[] stbl = mdia == null ? null : TagReader.findBox(in, mdia[0], mdia[1], "minf");
+		if (stbl != null) {
+			stbl = TagReader.findBox(in, stbl[0], stbl[1], "stbl");
+		}
+		if (mdhd == null || stbl == null) {
+			return null;
+		}
+		byte[] header = readBox(in, mdhd);
+		// Version 1 has 64 bit creation and modification times here too
+		int timescaleAt = header.length > 0 && header[0] == 1 ? 20 : 12;
+		int timescale = header.length >= timescaleAt + 4 ? TagReader.int32(header, timescaleAt) : 0;
+		byte[] stts = readTable(in, stbl, "stts");
+		byte[] stsz = readTable(in, stbl, "stsz");
+		byte[] stsc = readTable(in, stbl, "stsc");
+		byte[] stco = readTable(in, stbl, "stco");
+		boolean co64 = stco == null;
+		if (co64) {
+			stco = readTable(in, stbl, "co64");
+		}
+		if (timescale <= 0 || stts == null || stsz == null || stsc == null || stco == null
+				|| stsz.length < 12) {
+			return null;
+		}
+
+		int sampleSize = TagReader.int32(stsz, 4);
+		int samples = TagReader.int32(stsz, 8);
+		if (samples <= 0 || samples > MAX_CHAPTERS || (sampleSize == 0 && stsz.length < 12 + 4 * samples)) {
+			return null;
+		}
+		int[] sizes = new int[samples];
+		for (int i = 0; i < samples; i++) {
+			sizes[i] = sampleSize != 0 ? sampleSize : TagReader.int32(stsz, 12 + 4 * i);
+		}
+
+		// Sample offsets: chunks from stco/co64, samples per chunk from stsc
+		long[] offsets = new long[samples];
+		int chunks = Math.min(TagReader.int32(stco, 4), (stco.length - 8) / (co64 ? 8 : 4));
+		int runs = Math.min(TagReader.int32(stsc, 4), (stsc.length - 8) / 12);
+		if (runs <= 0) {
+			return null;
+		}
+		int sample = 0;
+		int run = 0;
+		for (int chunk = 0; chunk < chunks && sample < samples; chunk++) {
+			// stsc chunk numbers count from one
+			while (run + 1 < runs && TagReader.int32(stsc, 8 + 12 * (run + 1)) <= chunk + 1) {
+				run++;
+			}
+			int perChunk = TagReader.int32(stsc, 8 + 12 * run + 4);
+			long offset = co64
+					? ((long) TagReader.int32(stco, 8 + 8 * chunk) << 32) | (TagReader.int32(stco, 12 + 8 * chunk) & 0xFFFFFFFFL)
+					: TagReader.int32(stco, 8 + 4 * chunk) & 0xFFFFFFFFL;
+			for (int i = 0; i < perChunk && sample < samples; i++) {
+				offsets[sample] = offset;
+				offset += sizes[sample];
+				sample++;
+			}
+		}
+		if (sample < samples) {
+			return null;
+		}
+
+		List<Chapter> chapters = new ArrayList<Chapter>(samples);
+		int entries = Math.min(TagReader.int32(stts, 4), (stts.length - 8) / 8);
+		long time = 0;
+		sample = 0;
+		for (int e = 0; e < entries && sample < samples; e++) {
+			int count = TagReader.int32(stts, 8 + 8 * e);
+			long delta = TagReader.int32(stts, 12 + 8 * e) & 0xFFFFFFFFL;
+			for (int i = 0; i < count && sample < samples; i++) {
+				chapters.add(new Chapter((int) (time * 1000 / timescale), readTextSample(in, offsets[sample], sizes[sample])));
+				time += delta;
+				sample++;
+			}
+		}
+		return chapters;
+	}
+
+	private static String readTextSample(RandomAccessFile in, long offset, int size) throws IOException {
+		if (size < 2 || offset + size > in.length()) {
+			return "";
+		}
+		byte[] buf = new byte[Math.min(size, 2 + TITLE_MAX)];
+		in.seek(offset);
+		in.readFully(buf);
+		int length = Math.min(((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF), buf.length - 2);
+		if (length >= 2 && buf[2] == (byte) 0xFE && buf[3] == (byte) 0xFF) {
+			return new String(buf, 2, length, "UTF-16").trim();
+		}
+		return new String(buf, 2, length, "UTF-8").trim();
+	}
+
+	// Nero: version and flags, a count, then 100ns start times and titles
+	private static List<Chapter> readChpl(byte[] buf) throws IOException {
+		if (buf.length < 5) {
+			return null;
+		}
+		int p = buf[0] != 0 ? 8 : 4;
+		if (p >= buf.length) {
+			return null;
+		}
+		int count = buf[p++] & 0xFF;
+		List<Chapter> chapters = new ArrayList<Chapter>(count);
+		for (int i = 0; i < count && p + 9 <= buf.length; i++) {
+			long start = ((long) TagReader.int32(buf, p) << 32) | (TagReader.int32(buf, p + 4) & 0xFFFFFFFFL);
+			int length = Math.min(buf[p + 8] & 0xFF, buf.length - p - 9);
+			chapters.add(new Chapter((int) (start / 10000), new String(buf, p + 9, length, "UTF-8").trim()));
+			p += 9 + length;
+		}
+		return chapters;
+	}
+
+	private static byte[] readTable(RandomAccessFile in, long[] stbl, String type) throws IOException {
+		long[] box = TagReader.findBox(in, stbl[0], stbl[1], type);
+		if (box == null || box[1] - box[0] < 8 || box[1] - box[0] > TABLE_MAX) {
+			return null;
+		}
+		return readBox(in, box);
+	}
+
+	private static byte[] readBox(RandomAccessFile in, long[] box) throws IOException {
+		byte[] buf = new byte[(int) Math.min(box[1] - box[0], TABLE_MAX)];
+		in.seek(box[0]);
+		in.readFully(buf);
+		return buf;
+	}
+}
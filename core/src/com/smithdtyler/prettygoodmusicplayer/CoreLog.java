@@ -0,0 +1,78 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+/**
+ * Logging for the core module, which can't use android.util.Log. The app
+ * installs a sink that forwards to logcat; until then, and on a plain JVM,
+ * messages go to standard error.
+ */
+public final class CoreLog {
+
+	/**
+	 * Where log messages end up.
+	 */
+	public interface Sink {
+		void info(String tag, String message);
+
+		/**
+		 * @param error may be null
+		 */
+		void warn(String tag, String message, Throwable error);
+	}
+
+	private static final Sink STANDARD_ERROR = new Sink() {
+		@Override
+		public void info(String tag, String message) {
+			System.err.println(tag + ": " + message);
+		}
+
+		@Override
+		public void warn(String tag, String message, Throwable error) {
+			System.err.println(tag + ": " + message);
+			if (error != null) {
+				error.printStackTrace();
+			}
+		}
+	};
+
+	private static volatile Sink sink = STANDARD_ERROR;
+
+	private CoreLog() {
+	}
+
+	/**
+	 * @param newSink the sink to use, or null for standard error
+	 */
+	public static void setSink(Sink newSink) {
+		sink = newSink == null ? STANDARD_ERROR : newSink;
+	}
+
+	public static void i(String tag, String message) {
+		sink.info(tag, message);
+	}
+
+	public static void w(String tag, String message) {
+		sink.warn(tag, message, null);
+	}
+
+	public static void w(String tag, String message, Throwable error) {
+		sink.warn(tag, message, error);
+	}
+}
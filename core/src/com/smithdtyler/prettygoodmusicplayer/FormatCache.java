@@ -0,0 +1,258 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+/**
+ * Remembers what {@link FormatSniffer} made of each file, so a scan only
+ * reads a file the first time it sees it, or after it changes.
+ *
+ * Entries are keyed by path. Where the file's extension disagrees with
+ * what was found in it, or it has none, the entry is also checked against
+ * the file's length and modification time. The cache is loaded on first
+ * use, so like sniffing that happens on whichever thread is scanning, and
+ * that mustn't be the UI thread. It's saved whole, to a temp file renamed
+ * into place, on a background thread shortly after the last change. Beyond the cap the least recently used entries are dropped,
+ * which also takes care of files that have gone away.
+ *
+ * File format: magic, version, entry count, then per entry the path (UTF),
+ * length, modification time and format, and an adler32 of all that.
+ */
+public class FormatCache {
+	private static final String TAG = "FormatCache";
+
+	public static final String FILE_NAME = "formats.cache";
+	private static final int MAGIC = 0x50474d46; // "PGMF"
+	private static final int VERSION = 1;
+
+	private static final int MAX_ENTRIES = 100000;
+
+	/**
+	 * How long to collect new entries before writing them out.
+	 */
+	private static final long WRITE_DELAY_MS = 5000;
+
+	private static final class CachedFormat {
+		final long length;
+		final long modified;
+		final int format;
+
+		CachedFormat(long length, long modified, int format) {
+			this.length = length;
+			this.modified = modified;
+			this.format = format;
+		}
+	}
+
+	private final File file;
+	private boolean loaded = false;
+	private boolean writeScheduled = false;
+
+	// In access order, so the eldest entry is the least recently used
+	private final LinkedHashMap<String, CachedFormat> entries = new LinkedHashMap<String, CachedFormat>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedFormat> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "FormatCacheWriter");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	public FormatCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param extension the file's lower case extension, or "" if it has none
+	 * @return the file's format, as one of the FormatSniffer constants,
+	 * reading the start of the file if it's new or has changed
+	 */
+	public int getFormat(File song, String extension) {
+		String path = song.getPath();
+		synchronized (this) {
+			if (!loaded) {
+				load();
+			}
+			// A file still named for what it was found to hold is taken at its
+			// word, which saves two stats per file on every scan. Only misnamed
+			// and extensionless files are checked for changes.
+			CachedFormat entry = entries.get(path);
+			if (entry != null && extension.length() > 0
+					&& FormatSniffer.formatOfExtension(extension) == entry.format) {
+				Metrics.FORMAT_CACHE_HITS.increment();
+				return entry.format;
+			}
+		}
+		long length = song.length();
+		long modified = song.lastModified();
+		synchronized (this) {
+			CachedFormat entry = entries.get(path);
+			if (entry != null && entry.length == length && entry.modified == modified) {
+				Metrics.FORMAT_CACHE_HITS.increment();
+				return entry.format;
+			}
+		}
+		int format;
+		try {
+			format = FormatSniffer.sniff(song);
+		} catch (IOException e) {
+			// Maybe it's better next time, so don't remember this
+			CoreLog.w(TAG, "Unable to read " + song, e);
+			return FormatSniffer.UNKNOWN;
+		}
+		synchronized (this) {
+			entries.put(path, new CachedFormat(length, modified, format));
+			if (!writeScheduled) {
+				writeScheduled = true;
+				writer.schedule(writeTask, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+		return format;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Write out new entries without waiting for the usual delay.
+	 * @return a future that's done once they're written
+	 */
+	public Future<?> flush() {
+		return writer.submit(writeTask);
+	}
+
+	private void load() {
+		loaded = true;
+		if (!file.exists()) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			byte[] data = new byte[(int) file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(data);
+			} finally {
+				in.close();
+			}
+			if (data.length < 4) {
+				throw new IOException("Truncated");
+			}
+			Adler32 adler = new Adler32();
+			adler.update(data, 0, data.length - 4);
+			if (TagReader.int32(data, data.length - 4) != (int) adler.getValue()) {
+				throw new IOException("Bad checksum");
+			}
+			in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Unrecognized format");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				entries.put(path, new CachedFormat(in.readLong(), in.readLong(), in.readByte()));
+			}
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read " + file + ", starting over", e);
+			entries.clear();
+		}
+		CoreLog.i(TAG, "Loaded " + entries.size() + " formats in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+
+	private void write() {
+		String[] paths;
+		CachedFormat[] values;
+		synchronized (this) {
+			if (!writeScheduled) {
+				return;
+			}
+			writeScheduled = false;
+			paths = entries.keySet().toArray(new String[entries.size()]);
+			values = entries.values().toArray(new CachedFormat[entries.size()]);
+		}
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(paths.length * 96 + 16);
+			DataOutputStream out = new DataOutputStream(buffer);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(paths.length);
+			for (int i = 0; i < paths.length; i++) {
+				out.writeUTF(paths[i]);
+				out.writeLong(values[i].length);
+				out.writeLong(values[i].modified);
+				out.writeByte(values[i].format);
+			}
+			byte[] data = buffer.toByteArray();
+			Adler32 adler = new Adler32();
+			adler.update(data, 0, data.length);
+			out.writeInt((int) adler.getValue());
+
+			File parent = file.getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Unable to create " + parent);
+			}
+			File temp = new File(file.getPath() + ".tmp");
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			try {
+				buffer.writeTo(fileOut);
+			} finally {
+				fileOut.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to save " + file, e);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Works out what kind of audio a file holds from its first few KB, so
+ * that misnamed and extensionless files are judged by what's in them.
+ *
+ * Recognizes MP3 (and MPEG layer 1/2), ADTS AAC, MP4/M4A, FLAC, Ogg and
+ * WAV, skipping an ID3v2 tag first. A few common non-audio signatures
+ * (images, archives, PDFs, web pages) are recognized too, so they can be
+ * turned away; anything else is UNKNOWN, and the caller falls back to the
+ * file name.
+ */
+public final class FormatSniffer {
+	public static final int UNKNOWN = 0;
+	public static final int NOT_AUDIO = 1;
+	public static final int MP3 = 2;
+	public static final int AAC = 3;
+	public static final int MP4 = 4;
+	public static final int FLAC = 5;
+	public static final int OGG = 6;
+	public static final int WAV = 7;
+
+	private static final String[] EXTENSIONS = { null, null, "mp3", "aac", "m4a", "flac", "ogg", "wav" };
+
+	/**
+	 * How much of a file to look at. A few frames of MP3 at any bitrate,
+	 * and the ID3 tag header if there is one.
+	 */
+	static final int PEEK_BYTES = 4096;
+
+	// Scans can run on several threads, and each reuses its own buffer
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[PEEK_BYTES];
+		}
+	};
+
+	private FormatSniffer() {
+	}
+
+	/**
+	 * @return the usual extension for an audio format, for checking that a
+	 * decoder handles it, or null for UNKNOWN and NOT_AUDIO
+	 */
+	public static String extensionOf(int format) {
+		return format >= 0 && format < EXTENSIONS.length ? EXTENSIONS[format] : null;
+	}
+
+	/**
+	 * @param extension a lower case file extension without the '.'
+	 * @return the format a file named like this ought to hold, or UNKNOWN if
+	 * it's not one the sniffer recognizes
+	 */
+	public static int formatOfExtension(String extension) {
+		switch (extension) {
+		case "mp3":
+		case "mp2":
+		case "mpga":
+			return MP3;
+		case "aac":
+			return AAC;
+		case "m4a":
+		case "m4b":
+		case "mp4":
+			return MP4;
+		case "flac":
+			return FLAC;
+		case "ogg":
+		case "oga":
+		case "opus":
+			return OGG;
+		case "wav":
+			return WAV;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	public static boolean isAudio(int format) {
+		return extensionOf(format) != null;
+	}
+
+	/**
+	 * Read the start of a file and classify it. This is one small read, or
+	 * two if an ID3 tag (usually holding cover art) is bigger than the peek.
+	 */
+	public static int sniff(File file) throws IOException {
+		long start = System.nanoTime();
+		byte[] b = buffers.get();
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			int length = read(in, 0, b);
+			if (length == 0) {
+				// Nothing to play
+				return NOT_AUDIO;
+			}
+			if (length >= 10 && b[0] == 'I' && b[1] == 'D' && b[2] == '3') {
+				long skip = 10 + TagReader.syncsafe(b, 6);
+				if ((b[5] & 0x10) != 0) {
+					skip += 10; // footer
+				}
+				if (skip + 4 > length) {
+					length = read(in, skip, b);
+					// A tag with nothing after it, or only junk: call it MP3
+					// like everything else does
+					int format = classify(b, length);
+					return isAudio(format) ? format : MP3;
+				}
+				int format = classifyAt(b, (int) skip, length);
+				return isAudio(format) ? format : MP3;
+			}
+			return classify(b, length);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			Metrics.FORMAT_SNIFF.record(Metrics.microsSince(start));
+		}
+	}
+
+	private static int read(RandomAccessFile in, long pos, byte[] b) throws IOException {
+		if (pos >= in.length()) {
+			return 0;
+		}
+		in.seek(pos);
+		int length = 0;
+		while (length < b.length) {
+			int n = in.read(b, length, b.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		return length;
+	}
+
+	/**
+	 * Classify the start of a file.
+	 * @param length how many bytes of b are valid
+	 */
+	static int classify(byte[] b, int length) {
+		return classifyAt(b, 0, length);
+	}
+
+	private static int classifyAt(byte[] b, int off, int length) {
+		int n = length - off;
+		if (n < 4) {
+			return UNKNOWN;
+		}
+		int magic = TagReader.int32(b, off);
+		if (magic == 0x664C6143) { // "fLaC"
+			return FLAC;
+		}
+		if (magic == 0x4F676753) { // "OggS"
+			return OGG;
+		}
+		if (n >= 12 && magic == 0x52494646 && TagReader.int32(b, off + 8) == 0x57415645) { // "RIFF", "WAVE"
+			return WAV;
+		}
+		if (n >= 8 && TagReader.int32(b, off + 4) == 0x66747970) { // "ftyp"
+			return MP4;
+		}
+		if (isNotAudio(b, off, n, magic)) {
+			return NOT_AUDIO;
+		}
+		return mpegSync(b, off, length);
+	}
+
+	private static boolean isNotAudio(byte[] b, int off, int n, int magic) {
+		if ((magic & 0xFFFFFF00) == 0xFFD8FF00 // JPEG
+				|| magic == 0x89504E47 // PNG
+				|| magic == 0x47494638 // "GIF8"
+				|| magic == 0x25504446 // "%PDF"
+				|| magic == 0x504B0304) { // "PK", a zip
+			return true;
+		}
+		// Web pages saved in place of a download
+		int i = off;
+		while (i < off + n && (b[i] == ' ' || b[i] == '\t' || b[i] == '\r' || b[i] == '\n')) {
+			i++;
+		}
+		return i < off + n && b[i] == '<';
+	}
+
+	/**
+	 * Look for an MPEG audio or ADTS frame header followed by another like
+	 * it. Junk or padding before the first frame is allowed, as long as the
+	 * frame is in the peek.
+	 */
+	private static int mpegSync(byte[] b, int off, int length) {
+		for (int pos = off; pos + 4 <= length; pos++) {
+			if ((b[pos] & 0xFF) != 0xFF || (b[pos + 1] & 0xE0) != 0xE0) {
+				continue;
+			}
+			int header = TagReader.int32(b, pos);
+			int frame;
+			int format;
+			if ((header & 0xFFF60000) == 0xFFF00000) {
+				frame = adtsFrameLength(b, pos, length);
+				format = AAC;
+			} else {
+				frame = SeekIndex.mp3FrameLength(header);
+				format = MP3;
+			}
+			if (frame <= 0) {
+				continue;
+			}
+			int next = pos + frame;
+			if (next + 2 > length) {
+				// The next frame is past the peek; a lone valid header at
+				// the very start is still a good sign
+				if (pos == off) {
+					return format;
+				}
+				continue;
+			}
+			if ((b[next] & 0xFF) == 0xFF && (b[next + 1] & 0xFE) == (b[pos + 1] & 0xFE)) {
+				return format;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return the length of the ADTS frame at pos, or -1 if the header isn't valid
+	 */
+	private static int adtsFrameLength(byte[] b, int pos, int length) {
+		if (pos + 7 > length) {
+			return -1;
+		}
+		int rateIndex = (b[pos + 2] >> 2) & 0x0F;
+		if (rateIndex > 12) {
+			return -1;
+		}
+		int frame = ((b[pos + 3] & 0x03) << 11) | ((b[pos + 4] & 0xFF) << 3) | ((b[pos + 5] & 0xE0) >> 5);
+		return frame >= 7 ? frame : -1;
+	}
+}
@@ -0,0 +1,257 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import libcore.net.MediaTypeUtils;
+
+/**
+ * Walks the music directory and names what it finds.
+ *
+ * This is the part of Utils that doesn't touch the Android framework, so
+ * that it can be benchmarked and tested on a plain JVM.
+ */
+public final class LibraryScanner {
+	public static final Comparator<File> SONG_FILE_COMPARATOR = new NameComparator();
+	public static final Comparator<File> ALBUM_FILE_COMPARATOR = new NameComparator();
+
+	private static final Pattern leadingTrackNumber = Pattern.compile("^\\d+\\s");
+
+	// Null until CodecRegistry knows what the device can decode
+	private static volatile Set<String> decodableExtensions;
+	// Null unless song files should be judged by their contents
+	private static volatile FormatCache formatCache;
+
+	/**
+	 * Matches any known music file extension. It's built on first use
+	 * rather than when the class is loaded, since it covers every extension.
+	 */
+	private static class MediaFileEnding {
+		static final Pattern PATTERN = build();
+
+		private static Pattern build() {
+			StringBuilder regex = new StringBuilder("(?i)");
+			boolean first = true;
+			for (String ending : MediaTypeUtils.getAllExtensions()) {
+				if (!first) {
+					regex.append('|');
+				}
+				regex.append("(\\.").append(ending).append(')');
+				first = false;
+			}
+			return Pattern.compile(regex.toString());
+		}
+	}
+
+	private LibraryScanner() {
+	}
+
+	/**
+	 * Restrict song files to these lower case extensions, or accept every
+	 * known audio extension if null.
+	 */
+	public static void setDecodableExtensions(Set<String> extensions) {
+		decodableExtensions = extensions;
+	}
+
+	public static Set<String> getDecodableExtensions() {
+		return decodableExtensions;
+	}
+
+	/**
+	 * Judge song files by what's in them, not just their names, remembering
+	 * the answers in this cache. Null goes back to names only.
+	 */
+	public static void setFormatCache(FormatCache cache) {
+		formatCache = cache;
+	}
+
+	/**
+	 * @param extension a lower case file extension without the '.'
+	 * @return false only if we know none of the device's decoders handle it
+	 */
+	public static boolean canDecodeExtension(String extension) {
+		Set<String> extensions = decodableExtensions;
+		return extensions == null || extensions.contains(extension);
+	}
+
+	public static boolean isValidDirectory(File dir) {
+		return dir != null && dir.isDirectory();
+	}
+
+	/**
+	 * Checks whether this file is a song.
+	 * @return True if the song is not hidden, and either holds audio we can
+	 * decode or, without a format cache, ends with a music file extension.
+	 * With a format cache this may read the file, so keep it off the UI thread.
+	 */
+	public static boolean isValidSongFile(File song) {
+		if (song == null || !song.isFile() || song.isHidden()) {
+			return false;
+		}
+		String name = song.getName();
+		FormatCache cache = formatCache;
+		if (cache == null) {
+			return isSongFileName(name);
+		}
+		String extension = getFileExtension(name).toLowerCase(Locale.US);
+		if (extension.length() > 0 && !MediaTypeUtils.hasExtension(extension)) {
+			// Cover art, notes and the like aren't worth reading
+			return false;
+		}
+		// Misnamed and extensionless files go by their contents
+		int format = cache.getFormat(song, extension);
+		if (FormatSniffer.isAudio(format)) {
+			return canDecodeExtension(FormatSniffer.extensionOf(format));
+		}
+		if (format == FormatSniffer.NOT_AUDIO) {
+			return false;
+		}
+		// Formats the sniffer doesn't know, like WMA or MIDI
+		return extension.length() > 0 && canDecodeExtension(extension);
+	}
+
+	/**
+	 * @return true if the name ends with an extension we can play
+	 */
+	public static boolean isSongFileName(String name) {
+		String extension = getFileExtension(name).toLowerCase(Locale.US);
+		return MediaTypeUtils.hasExtension(extension) && canDecodeExtension(extension);
+	}
+
+	private static String getFileExtension(String name) {
+		int i = name.lastIndexOf('.');
+		if (i > 0) {
+			return name.substring(i + 1);
+		}
+		return "";
+	}
+
+	/**
+	 * Get all directories which contain music files
+	 */
+	public static List<File> getAllAlbumsInDirRecursive(File directory){
+		long start = System.nanoTime();
+		List<File> albums = new ArrayList<>();
+		getAllAlbumsInDirRecursive(directory, albums);
+		Metrics.SCAN_ALBUMS.record(Metrics.microsSince(start));
+		return albums;
+	}
+
+	private static void getAllAlbumsInDirRecursive(File target, List<File> albums){
+		File[] files = target.isDirectory() ? target.listFiles() : null;
+		if(files != null){
+			Metrics.FILES_SCANNED.add(files.length);
+			boolean hasSong = false;
+			for(File f : files){
+				if(isValidSongFile(f)){
+					hasSong = true;
+				} else if(ArtworkLocator.isImageFileName(f.getName())){
+					ArtworkLocator.noteImageFile(f);
+				}
+				if(f.isDirectory()){
+					getAllAlbumsInDirRecursive(f, albums);
+				}
+			}
+			if(hasSong){
+				albums.add(target);
+			}
+		}
+	}
+
+	/**
+	 * Get all songs under a directory. Songs in each directory are sorted,
+	 * and come after the songs from its subdirectories.
+	 */
+	public static List<File> getAllSongsInDirRecursive(File directory){
+		long start = System.nanoTime();
+		List<File> songFiles = new ArrayList<>();
+		getAllSongsInDirRecursive(directory, songFiles);
+		Metrics.SCAN_SONGS.record(Metrics.microsSince(start));
+		return songFiles;
+	}
+
+	private static void getAllSongsInDirRecursive(File target, List<File> songFiles){
+		if(target != null && target.isDirectory()) {
+			File[] files = target.listFiles();
+			if (files != null) {
+				Metrics.FILES_SCANNED.add(files.length);
+				List<File> songsInDir = new ArrayList<>();
+				for (File f : files) {
+					if (f.isFile() && isValidSongFile(f)) {
+						songsInDir.add(f);
+					} else {
+						if (ArtworkLocator.isImageFileName(f.getName())) {
+							ArtworkLocator.noteImageFile(f);
+						}
+						getAllSongsInDirRecursive(f, songFiles);
+					}
+				}
+				Collections.sort(songsInDir, SONG_FILE_COMPARATOR);
+				songFiles.addAll(songsInDir);
+			}
+		}
+	}
+
+	/**
+	 * Gets the display name for the song file name: the name without a
+	 * leading track number or a music file extension.
+	 */
+	public static String getPrettySongName(String songName) {
+		Matcher trackNumber = leadingTrackNumber.matcher(songName);
+		if (trackNumber.find()) {
+			songName = songName.substring(trackNumber.end());
+		}
+		return MediaFileEnding.PATTERN.matcher(songName).replaceAll("");
+	}
+
+	/**
+	 * Gets the artist name to display for a given song.
+	 */
+	public static String getArtistName(File songFile, String musicRoot) {
+		File albumDir = songFile.getParentFile().getParentFile();
+		if (albumDir.getAbsolutePath().equals(musicRoot)) {
+			return songFile.getParentFile().getName();
+		}
+		return songFile.getParentFile().getParentFile().getName();
+	}
+
+	/**
+	 * Orders files by name, ignoring case.
+	 */
+	private static class NameComparator implements Comparator<File> {
+
+		@Override
+		public int compare(File arg0, File arg1) {
+			String name0 = arg0.getName().toUpperCase(Locale.getDefault());
+			String name1 = arg1.getName().toUpperCase(Locale.getDefault());
+			return name0.compareTo(name1);
+		}
+
+	}
+}
@@ -0,0 +1,346 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process wide counters and latency histograms.
+ *
+ * The histograms use HDR style buckets: 16 linear buckets for each power of
+ * two, so every recorded value is kept to within about 6%, in a fixed
+ * array and without allocating. Latencies are recorded in microseconds.
+ *
+ * The service prints everything in its dump, and can write it out as JSON
+ * and CSV for comparing one build with another:
+ * "adb shell dumpsys activity service MusicPlaybackService export".
+ */
+public final class Metrics {
+
+	// Declared ahead of the metrics below, which register themselves in it
+	private static final Map<String, Object> registry = new LinkedHashMap<>();
+
+	// Playback
+	public static final Histogram PREPARE = histogram("playback.prepare");
+	public static final Histogram SKIP_TO_AUDIO = histogram("playback.skip_to_audio");
+	public static final Histogram TRACK_GAP = histogram("playback.track_gap");
+	public static final Counter TRACKS_STARTED = counter("playback.tracks_started");
+	public static final Counter PREPARE_FAILURES = counter("playback.prepare_failures");
+	public static final Histogram TICK = histogram("scheduler.tick");
+	// From a media button event to its command having run
+	public static final Histogram MEDIA_BUTTON_LATENCY = histogram("playback.media_button");
+	// Pauses go through stop, prepare and seek, which reopens the decoder
+	public static final Counter PAUSE_REPREPARES = counter("playback.pause_reprepares");
+
+	// Audio focus
+	public static final Counter FOCUS_PAUSES = counter("focus.pauses");
+	// Each of these would have been a pause and a re-prepare
+	public static final Counter FOCUS_DUCKS = counter("focus.ducks");
+
+	// Library scans
+	public static final Histogram SCAN_ARTISTS = histogram("scan.artists");
+	public static final Histogram SCAN_ALBUMS = histogram("scan.albums");
+	public static final Histogram SCAN_SONGS = histogram("scan.songs");
+	public static final Counter FILES_SCANNED = counter("scan.files");
+	public static final Histogram FORMAT_SNIFF = histogram("scan.format_sniff");
+	public static final Counter FORMAT_CACHE_HITS = counter("scan.format_cache_hits");
+
+	// Notification
+	public static final Counter NOTIFICATIONS_POSTED = counter("notification.posted");
+	public static final Counter NOTIFICATIONS_SKIPPED = counter("notification.unchanged");
+	public static final Histogram NOTIFY = histogram("notification.post");
+
+	// Readahead
+	public static final Counter READAHEAD_FILES = counter("readahead.files");
+	public static final Counter READAHEAD_BYTES = counter("readahead.bytes");
+	public static final Histogram READAHEAD_READ = histogram("readahead.read");
+
+	// Album art
+	public static final Counter ARTWORK_MEMORY_HITS = counter("artwork.memory_hits");
+	public static final Counter ARTWORK_DISK_HITS = counter("artwork.disk_hits");
+	public static final Counter ARTWORK_MISSING = counter("artwork.missing");
+	public static final Histogram ARTWORK_DECODE = histogram("artwork.decode");
+
+	// Seek indexes
+	public static final Histogram SEEK_INDEX_BUILD = histogram("seekindex.build");
+
+	// Shared playback state
+	public static final Counter STATE_BLOCK_RETRIES = counter("stateblock.read_retries");
+	public static final Counter STATE_BLOCK_FAILED_READS = counter("stateblock.failed_reads");
+
+	private Metrics() {
+	}
+
+	private static synchronized Counter counter(String name) {
+		Counter counter = new Counter();
+		registry.put(name, counter);
+		return counter;
+	}
+
+	private static synchronized Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		registry.put(name, histogram);
+		return histogram;
+	}
+
+	/**
+	 * Microseconds since a System.nanoTime() reading.
+	 */
+	public static long microsSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static final class Counter {
+		private long value;
+
+		private Counter() {
+		}
+
+		public synchronized void increment() {
+			value++;
+		}
+
+		public synchronized void add(long delta) {
+			value += delta;
+		}
+
+		public synchronized long get() {
+			return value;
+		}
+
+		synchronized void reset() {
+			value = 0;
+		}
+	}
+
+	/**
+	 * A distribution of non-negative values, usually microseconds.
+	 */
+	public static final class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		// Anything larger (about 19 hours in microseconds) goes in the last bucket
+		private static final long HIGHEST = (1L << 36) - 1;
+		private static final int BUCKETS = (36 - SUB_BITS + 1) * SUB_COUNT;
+
+		private final long[] counts = new long[BUCKETS];
+		private long count;
+		private long sum;
+		private long min = Long.MAX_VALUE;
+		private long max;
+
+		private Histogram() {
+		}
+
+		public synchronized void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			counts[bucketOf(Math.min(value, HIGHEST))]++;
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		static int bucketOf(long value) {
+			if (value < SUB_COUNT) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+		}
+
+		static long lowestIn(int bucket) {
+			if (bucket < SUB_COUNT) {
+				return bucket;
+			}
+			int shift = bucket / SUB_COUNT - 1;
+			return (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+		}
+
+		static long highestIn(int bucket) {
+			return bucket < SUB_COUNT ? bucket : lowestIn(bucket + 1) - 1;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the highest value in the bucket holding that percentile,
+		 * capped at the largest value recorded
+		 */
+		public synchronized long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestIn(i), max);
+				}
+			}
+			return max;
+		}
+
+		synchronized Snapshot snapshot() {
+			Snapshot s = new Snapshot();
+			s.count = count;
+			s.min = count == 0 ? 0 : min;
+			s.max = max;
+			s.mean = count == 0 ? 0 : (double) sum / count;
+			s.p50 = getPercentile(50);
+			s.p90 = getPercentile(90);
+			s.p99 = getPercentile(99);
+			s.p999 = getPercentile(99.9);
+			for (int i = 0; i < BUCKETS; i++) {
+				if (counts[i] != 0) {
+					s.buckets.add(new long[] { lowestIn(i), counts[i] });
+				}
+			}
+			return s;
+		}
+
+		synchronized void reset() {
+			Arrays.fill(counts, 0);
+			count = 0;
+			sum = 0;
+			min = Long.MAX_VALUE;
+			max = 0;
+		}
+	}
+
+	/**
+	 * A consistent copy of one histogram, for printing.
+	 */
+	static final class Snapshot {
+		long count;
+		long min;
+		long max;
+		double mean;
+		long p50;
+		long p90;
+		long p99;
+		long p999;
+		// {lowest value in bucket, count} for the non-empty buckets
+		final List<long[]> buckets = new ArrayList<>();
+	}
+
+	private static synchronized Map<String, Object> copyRegistry() {
+		return new LinkedHashMap<>(registry);
+	}
+
+	/**
+	 * Zero everything, e.g. before a measurement run.
+	 */
+	public static void reset() {
+		for (Object metric : copyRegistry().values()) {
+			if (metric instanceof Counter) {
+				((Counter) metric).reset();
+			} else {
+				((Histogram) metric).reset();
+			}
+		}
+	}
+
+	public static void dump(PrintWriter writer) {
+		writer.println("Metrics (latencies in us):");
+		for (Map.Entry<String, Object> entry : copyRegistry().entrySet()) {
+			Object metric = entry.getValue();
+			if (metric instanceof Counter) {
+				writer.println("  " + entry.getKey() + ": " + ((Counter) metric).get());
+			} else {
+				Snapshot s = ((Histogram) metric).snapshot();
+				writer.println(String.format(Locale.US,
+						"  %s: n=%d min=%d p50=%d p90=%d p99=%d p99.9=%d max=%d mean=%.1f",
+						entry.getKey(), s.count, s.min, s.p50, s.p90, s.p99, s.p999, s.max, s.mean));
+			}
+		}
+	}
+
+	/**
+	 * Write every metric as one JSON object. Histograms include their
+	 * non-empty buckets, so two exports can be compared in full.
+	 */
+	public static void writeJson(Writer out, String build) throws IOException {
+		out.write("{\n  \"build\": \"" + escape(build) + "\",\n");
+		out.write("  \"timeMillis\": " + System.currentTimeMillis() + ",\n");
+		out.write("  \"unit\": \"us\",\n  \"metrics\": {");
+		boolean first = true;
+		for (Map.Entry<String, Object> entry : copyRegistry().entrySet()) {
+			out.write(first ? "\n" : ",\n");
+			first = false;
+			out.write("    \"" + escape(entry.getKey()) + "\": ");
+			Object metric = entry.getValue();
+			if (metric instanceof Counter) {
+				out.write("{\"type\": \"counter\", \"value\": " + ((Counter) metric).get() + "}");
+			} else {
+				Snapshot s = ((Histogram) metric).snapshot();
+				StringBuilder buckets = new StringBuilder();
+				for (long[] bucket : s.buckets) {
+					if (buckets.length() > 0) {
+						buckets.append(", ");
+					}
+					buckets.append('[').append(bucket[0]).append(", ").append(bucket[1]).append(']');
+				}
+				out.write(String.format(Locale.US, "{\"type\": \"histogram\", \"count\": %d, \"min\": %d, "
+						+ "\"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d, "
+						+ "\"buckets\": [%s]}",
+						s.count, s.min, s.mean, s.p50, s.p90, s.p99, s.p999, s.max, buckets));
+			}
+		}
+		out.write("\n  }\n}\n");
+	}
+
+	/**
+	 * Write one row per metric. Counters only fill in the count column.
+	 */
+	public static void writeCsv(Writer out) throws IOException {
+		out.write("name,type,count,min,mean,p50,p90,p99,p999,max\n");
+		for (Map.Entry<String, Object> entry : copyRegistry().entrySet()) {
+			Object metric = entry.getValue();
+			if (metric instanceof Counter) {
+				out.write(entry.getKey() + ",counter," + ((Counter) metric).get() + ",,,,,,,\n");
+			} else {
+				Snapshot s = ((Histogram) metric).snapshot();
+				out.write(String.format(Locale.US, "%s,histogram,%d,%d,%.1f,%d,%d,%d,%d,%d\n",
+						entry.getKey(), s.count, s.min, s.mean, s.p50, s.p90, s.p99, s.p999, s.max));
+			}
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,127 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+/**
+ * The tracks the service is playing, and which one is current.
+ *
+ * Moving forward either steps through the tracks in order or draws from a
+ * {@link ShuffleEngine}, depending on whether shuffle is on. Moving back
+ * always steps back in order. Both wrap around at the ends.
+ *
+ * This class isn't thread safe.
+ */
+public final class PlayQueue {
+	private final String[] tracks;
+	private int position;
+	private ShuffleEngine shuffle;
+
+	/**
+	 * @param tracks absolute paths of the tracks, which must not be modified afterwards
+	 * @param position the index of the current track
+	 * @param shuffleSeed seeds the shuffle order
+	 */
+	public PlayQueue(String[] tracks, int position, long shuffleSeed) {
+		this(tracks, position, new ShuffleEngine(tracks.length, shuffleSeed));
+	}
+
+	private PlayQueue(String[] tracks, int position, ShuffleEngine shuffle) {
+		if (tracks.length == 0) {
+			throw new IllegalArgumentException("Empty play queue");
+		}
+		if (position < 0 || position >= tracks.length) {
+			throw new IndexOutOfBoundsException("Position " + position + " of " + tracks.length);
+		}
+		this.tracks = tracks;
+		this.position = position;
+		this.shuffle = shuffle;
+	}
+
+	/**
+	 * Rebuild a queue whose shuffle has already made shuffleDraws draws.
+	 */
+	public static PlayQueue restore(String[] tracks, int position, long shuffleSeed, long shuffleDraws) {
+		return new PlayQueue(tracks, position, ShuffleEngine.restore(tracks.length, shuffleSeed, shuffleDraws));
+	}
+
+	/**
+	 * @return the tracks; don't modify the array
+	 */
+	public String[] getTracks() {
+		return tracks;
+	}
+
+	public int size() {
+		return tracks.length;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public String getCurrent() {
+		return tracks[position];
+	}
+
+	/**
+	 * Move to the next track.
+	 * @param shuffling draw the next track from the shuffle instead
+	 * @return the new current track
+	 */
+	public String next(boolean shuffling) {
+		if (shuffling) {
+			position = shuffle.next();
+		} else {
+			position = (position + 1) % tracks.length;
+		}
+		return tracks[position];
+	}
+
+	/**
+	 * Move to the previous track in order.
+	 * @return the new current track
+	 */
+	public String previous() {
+		position = position == 0 ? tracks.length - 1 : position - 1;
+		return tracks[position];
+	}
+
+	/**
+	 * Start a new shuffle order over the same tracks.
+	 */
+	public void reshuffle(long seed) {
+		shuffle = new ShuffleEngine(tracks.length, seed);
+	}
+
+	public long getShuffleSeed() {
+		return shuffle.getSeed();
+	}
+
+	public long getShuffleDraws() {
+		return shuffle.getDrawCount();
+	}
+
+	/**
+	 * A short description for logging; doesn't list the tracks.
+	 */
+	@Override
+	public String toString() {
+		return "PlayQueue[position=" + position + " of " + tracks.length + " " + shuffle + "]";
+	}
+}
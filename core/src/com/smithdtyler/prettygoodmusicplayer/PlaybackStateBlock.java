@@ -0,0 +1,216 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The few playback fields the UI needs many times a second, in a small
+ * memory mapped file that the service writes and anyone in the app can
+ * read without asking the service.
+ *
+ * Writes are guarded by a seqlock: the sequence number is odd while a write
+ * is in progress, and a reader that sees it odd, or changed by the time it
+ * has read the fields, tries again. There's one writer, and readers never
+ * block it.
+ */
+public final class PlaybackStateBlock {
+	public static final int STOPPED = 0;
+	public static final int PAUSED = 1;
+	public static final int PLAYING = 2;
+
+	// Layout
+	private static final int SEQUENCE = 0;
+	private static final int LAYOUT = 4;
+	private static final int STATE = 8;
+	private static final int DURATION = 12;
+	private static final int POSITION = 16;
+	private static final int RATE = 20;
+	private static final int ANCHOR_TIME = 24;
+	private static final int TRACK_ID = 32;
+	static final int SIZE = 64;
+
+	private static final int LAYOUT_VERSION = 1;
+	// A write is a few dozen stores, so this many tries means the writer died
+	private static final int MAX_READ_ATTEMPTS = 100;
+
+	private final ByteBuffer buffer;
+	// The writer's next even sequence number
+	private int sequence;
+	private volatile int barrier;
+
+	/**
+	 * The fields as of one write.
+	 */
+	public static final class Snapshot {
+		public long sequence;
+		public int state;
+		public long trackId;
+		public int durationMs;
+		public int positionMs;
+		public long anchorTime;
+		public float rate;
+
+		/**
+		 * @param now on the same clock as the anchor (elapsedRealtime)
+		 * @return the extrapolated position
+		 */
+		public int positionAt(long now) {
+			return positionMs + (int) ((now - anchorTime) * rate);
+		}
+	}
+
+	PlaybackStateBlock(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Map the block for writing, creating the file if need be. Whatever it
+	 * held before is cleared.
+	 */
+	public static PlaybackStateBlock create(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(SIZE);
+			PlaybackStateBlock block = new PlaybackStateBlock(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE));
+			block.write(STOPPED, 0, 0, 0, 0, 0);
+			return block;
+		} finally {
+			// The mapping outlives the file handle
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map an existing block for reading.
+	 * @return null if there isn't one yet
+	 */
+	public static PlaybackStateBlock open(File file) throws IOException {
+		if (!file.isFile() || file.length() < SIZE) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new PlaybackStateBlock(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Publish new state. Only one thread (or process) may write a block.
+	 */
+	public synchronized void write(int state, long trackId, int durationMs, int positionMs, long anchorTime,
+			float rate) {
+		if (sequence == 0) {
+			// Carry on from the last writer, so readers still see a change
+			sequence = (buffer.getInt(SEQUENCE) + 2) & ~1;
+		}
+		buffer.putInt(SEQUENCE, sequence + 1);
+		fence();
+		buffer.putInt(LAYOUT, LAYOUT_VERSION);
+		buffer.putInt(STATE, state);
+		buffer.putInt(DURATION, durationMs);
+		buffer.putInt(POSITION, positionMs);
+		buffer.putFloat(RATE, rate);
+		buffer.putLong(ANCHOR_TIME, anchorTime);
+		buffer.putLong(TRACK_ID, trackId);
+		fence();
+		sequence += 2;
+		buffer.putInt(SEQUENCE, sequence);
+	}
+
+	/**
+	 * Read a consistent copy of the fields.
+	 * @return false if the block hasn't been written, or a write never
+	 * finished; the snapshot is unchanged then
+	 */
+	public boolean read(Snapshot into) {
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+			if (attempt > 0) {
+				Metrics.STATE_BLOCK_RETRIES.increment();
+				Thread.yield();
+			}
+			int before = buffer.getInt(SEQUENCE);
+			if ((before & 1) != 0) {
+				continue;
+			}
+			fence();
+			int layout = buffer.getInt(LAYOUT);
+			int state = buffer.getInt(STATE);
+			int duration = buffer.getInt(DURATION);
+			int position = buffer.getInt(POSITION);
+			float rate = buffer.getFloat(RATE);
+			long anchorTime = buffer.getLong(ANCHOR_TIME);
+			long trackId = buffer.getLong(TRACK_ID);
+			fence();
+			if (buffer.getInt(SEQUENCE) != before) {
+				continue;
+			}
+			if (layout != LAYOUT_VERSION) {
+				return false;
+			}
+			into.sequence = before;
+			into.state = state;
+			into.trackId = trackId;
+			into.durationMs = duration;
+			into.positionMs = position;
+			into.anchorTime = anchorTime;
+			into.rate = rate;
+			return true;
+		}
+		Metrics.STATE_BLOCK_FAILED_READS.increment();
+		return false;
+	}
+
+	/**
+	 * @return an id for a track, e.g. to tell whether the track in a
+	 * snapshot is the one on screen
+	 */
+	public static long trackId(String path) {
+		if (path == null) {
+			return 0;
+		}
+		// 64 bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			h ^= path.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * A full memory barrier. Java 7 has no fence API, but a volatile store
+	 * followed by a volatile load needs a StoreLoad barrier, which the VM
+	 * emits as a full fence (dmb on ARM, mfence on x86). That orders the
+	 * plain buffer accesses on either side of it too.
+	 */
+	private void fence() {
+		barrier = 0;
+		if (barrier != 0) {
+			throw new AssertionError();
+		}
+	}
+}
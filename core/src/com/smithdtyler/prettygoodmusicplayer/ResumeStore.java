@@ -0,0 +1,569 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+/**
+ * Stores bookmarks: where to resume each track, grouped by the folder the
+ * track is in. The number of bookmarks is capped; when the cap is reached the
+ * least recently updated bookmark is dropped. Each folder's latest bookmark
+ * doesn't count towards the cap and is never dropped, so however much music
+ * is played, every audiobook can still be resumed where it was left.
+ *
+ * Lookups are served from memory. Updates are appended to a binary journal
+ * on a background thread, and several updates share a single fsync. When the
+ * journal gets much bigger than the data it describes, it is rewritten.
+ *
+ * Journal format: a header (magic, version), then records of
+ * [length][payload][adler32 of payload]. A payload is either a string
+ * definition (type, id, UTF string) or a bookmark (type, folder string
+ * id, track string id, position in ms). Replaying the journal in order
+ * rebuilds the recency order, so evictions don't need records of their own. A torn or corrupt record at the end
+ * of the journal (e.g. from a crash mid-write) ends the replay.
+ */
+public class ResumeStore {
+	private static final String TAG = "ResumeStore";
+
+	public static final String JOURNAL_NAME = "resume.journal";
+	private static final int MAGIC = 0x50474d52; // "PGMR"
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_STRING = 1;
+	private static final byte RECORD_POSITION = 2;
+
+	/**
+	 * How long to collect updates before writing them out together.
+	 */
+	private static final long FLUSH_DELAY_MS = 2000;
+
+	/**
+	 * Don't bother compacting journals smaller than this many records.
+	 */
+	private static final int COMPACT_MIN_RECORDS = 512;
+
+	/**
+	 * Compact when the journal holds this many records per live entry.
+	 */
+	private static final int COMPACT_RATIO = 4;
+
+	/**
+	 * How many bookmarks to keep, besides each folder's latest, if no limit
+	 * has been configured.
+	 */
+	public static final int DEFAULT_LIMIT = 1000;
+
+	/**
+	 * A position in a track.
+	 */
+	public static final class Bookmark {
+		public final String folder;
+		public final String trackName;
+		public final int position;
+		// Bigger is more recent
+		private final long sequence;
+
+		Bookmark(String folder, String trackName, int position, long sequence) {
+			this.folder = folder;
+			this.trackName = trackName;
+			this.position = position;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Bookmark)) {
+				return false;
+			}
+			Bookmark other = (Bookmark) o;
+			return position == other.position && trackName.equals(other.trackName)
+					&& folder.equals(other.folder);
+		}
+
+		@Override
+		public int hashCode() {
+			return (folder.hashCode() * 31 + trackName.hashCode()) * 31 + position;
+		}
+
+		@Override
+		public String toString() {
+			return folder + File.separator + trackName + "~" + position;
+		}
+	}
+
+	private final File journal;
+	private int limit;
+	private long sequence = 0;
+
+	// All bookmarks, least recently updated first
+	private final LinkedHashMap<String, Bookmark> bookmarks = new LinkedHashMap<String, Bookmark>();
+	// folder -> track name -> bookmark
+	private final Map<String, Map<String, Bookmark>> folders = new HashMap<String, Map<String, Bookmark>>();
+	// folder -> its most recently updated bookmark, which is never evicted
+	private final Map<String, Bookmark> latest = new HashMap<String, Bookmark>();
+
+	// String table used to encode records. Ids are only meaningful within one journal file.
+	private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	// Records waiting to be written, and how many records the journal has on disk.
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+	private boolean flushScheduled = false;
+	private int pendingRecords = 0;
+	private int journalRecords = 0;
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ResumeStoreWriter");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	/**
+	 * Load the store from a journal, creating it if needed.
+	 * @param limit how many bookmarks to keep, besides each folder's latest
+	 */
+	public ResumeStore(File journal, int limit) {
+		this.journal = journal;
+		this.limit = Math.max(1, limit);
+		load();
+	}
+
+	/**
+	 * Get the most recently updated bookmark in the given folder, or null if
+	 * there's nothing to resume there.
+	 */
+	public synchronized Bookmark getLatest(String folder) {
+		return latest.get(folder);
+	}
+
+	/**
+	 * Get the bookmarked position in a track, or -1 if it doesn't have one.
+	 */
+	public synchronized int getPosition(String folder, String trackName) {
+		Map<String, Bookmark> inFolder = folders.get(folder);
+		if (inFolder == null) {
+			return -1;
+		}
+		Bookmark bookmark = inFolder.get(trackName);
+		return bookmark == null ? -1 : bookmark.position;
+	}
+
+	/**
+	 * Change how many bookmarks to keep besides each folder's latest, dropping
+	 * the oldest if there are too many.
+	 */
+	public synchronized void setLimit(int limit) {
+		this.limit = Math.max(1, limit);
+		evict();
+	}
+
+	public synchronized int size() {
+		return bookmarks.size();
+	}
+
+	/**
+	 * Record a position. This only touches memory; the journal is
+	 * written shortly afterwards on a background thread.
+	 */
+	public synchronized void put(String folder, String trackName, int position) {
+		Bookmark old = bookmarks.get(key(folder, trackName));
+		if (old != null && old.position == position && old.sequence == sequence) {
+			// Already the latest bookmark and nothing changed
+			return;
+		}
+		insert(folder, trackName, position);
+		try {
+			appendPosition(pendingOut, folder, trackName, position);
+		} catch (IOException e) {
+			// Can't happen writing to memory
+			CoreLog.w(TAG, "Unable to encode resume position", e);
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			writer.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write out any pending updates now rather than waiting for the next batch.
+	 * Returns immediately; the write happens on the background thread.
+	 */
+	public void flush() {
+		writer.execute(flushTask);
+	}
+
+	private static String key(String folder, String trackName) {
+		return folder + File.separator + trackName;
+	}
+
+	/**
+	 * Add or update a bookmark in memory, making it the most recent one.
+	 */
+	private void insert(String folder, String trackName, int position) {
+		String key = key(folder, trackName);
+		Bookmark bookmark = new Bookmark(folder, trackName, position, ++sequence);
+		// Remove first so it moves to the end of the recency order
+		bookmarks.remove(key);
+		bookmarks.put(key, bookmark);
+		Map<String, Bookmark> inFolder = folders.get(folder);
+		if (inFolder == null) {
+			inFolder = new HashMap<String, Bookmark>();
+			folders.put(folder, inFolder);
+		}
+		inFolder.put(trackName, bookmark);
+		latest.put(folder, bookmark);
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Bookmark> oldest = bookmarks.values().iterator();
+		// Folders never empty out, since their latest bookmarks stay
+		while (bookmarks.size() - latest.size() > limit && oldest.hasNext()) {
+			Bookmark bookmark = oldest.next();
+			if (latest.get(bookmark.folder) != bookmark) {
+				oldest.remove();
+				folders.get(bookmark.folder).remove(bookmark.trackName);
+			}
+		}
+	}
+
+	private synchronized void load() {
+		bookmarks.clear();
+		folders.clear();
+		latest.clear();
+		stringIds.clear();
+		journalRecords = 0;
+		if (!journal.exists()) {
+			return;
+		}
+		Map<Integer, String> strings = new HashMap<Integer, String>();
+		DataInputStream in = null;
+		long validLength = 0;
+		boolean corrupt = false;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				CoreLog.w(TAG, "Unrecognized resume journal, starting over");
+				corrupt = true;
+			} else {
+				validLength = 8;
+				Adler32 checksum = new Adler32();
+				while (true) {
+					int length;
+					try {
+						length = in.readUnsignedShort();
+					} catch (EOFException e) {
+						break;
+					}
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					checksum.reset();
+					checksum.update(payload, 0, length);
+					if (in.readInt() != (int) checksum.getValue()) {
+						corrupt = true;
+						break;
+					}
+					DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+					byte type = record.readByte();
+					if (type == RECORD_STRING) {
+						int id = record.readInt();
+						String value = record.readUTF();
+						strings.put(id, value);
+						stringIds.put(value, id);
+					} else if (type == RECORD_POSITION) {
+						String folder = strings.get(record.readInt());
+						String track = strings.get(record.readInt());
+						int position = record.readInt();
+						if (folder != null && track != null) {
+							insert(folder, track, position);
+						}
+					}
+					journalRecords++;
+					validLength += 2 + length + 4;
+				}
+			}
+		} catch (EOFException e) {
+			// A record was cut off part way through.
+			corrupt = true;
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read resume journal", e);
+			corrupt = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		CoreLog.i(TAG, "Loaded " + bookmarks.size() + " bookmarks from " + journalRecords + " records");
+		if (corrupt) {
+			CoreLog.w(TAG, "Resume journal was damaged after " + validLength + " bytes, rewriting it");
+			// The string ids no longer match what's on disk, so rewrite from memory.
+			stringIds.clear();
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					compact();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Older versions kept resume positions in shared preferences as
+	 * albumPath -> "songName~position". Copy them into the store; entries
+	 * that don't look like resume positions are ignored.
+	 * @return the keys that were imported, which the caller can now remove
+	 */
+	public List<String> importLegacyPositions(Map<String, ?> prefs) {
+		List<String> imported = new ArrayList<String>();
+		for (Map.Entry<String, ?> pref : prefs.entrySet()) {
+			String key = pref.getKey();
+			if (!(pref.getValue() instanceof String) || !key.startsWith(File.separator)) {
+				continue;
+			}
+			String value = (String) pref.getValue();
+			int split = value.lastIndexOf('~');
+			if (split <= 0) {
+				continue;
+			}
+			try {
+				int position = Integer.parseInt(value.substring(split + 1));
+				put(key, value.substring(0, split), position);
+				imported.add(key);
+			} catch (NumberFormatException e) {
+				CoreLog.w(TAG, "Skipping unparseable resume position " + key + " = " + value);
+			}
+		}
+		if (!imported.isEmpty()) {
+			CoreLog.i(TAG, "Imported " + imported.size() + " resume positions from preferences");
+			flush();
+		}
+		return imported;
+	}
+
+	private void appendPosition(DataOutputStream out, String folder, String track, int position) throws IOException {
+		int folderId = stringId(out, folder);
+		int trackId = stringId(out, track);
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(13);
+		DataOutputStream p = new DataOutputStream(payload);
+		p.writeByte(RECORD_POSITION);
+		p.writeInt(folderId);
+		p.writeInt(trackId);
+		p.writeInt(position);
+		writeRecord(out, payload.toByteArray());
+	}
+
+	private int stringId(DataOutputStream out, String value) throws IOException {
+		Integer id = stringIds.get(value);
+		if (id != null) {
+			return id;
+		}
+		id = stringIds.size();
+		stringIds.put(value, id);
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(value.length() + 7);
+		DataOutputStream p = new DataOutputStream(payload);
+		p.writeByte(RECORD_STRING);
+		p.writeInt(id);
+		p.writeUTF(value);
+		writeRecord(out, payload.toByteArray());
+		return id;
+	}
+
+	private void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+		Adler32 checksum = new Adler32();
+		checksum.update(payload, 0, payload.length);
+		out.writeShort(payload.length);
+		out.write(payload);
+		out.writeInt((int) checksum.getValue());
+		pendingRecords++;
+	}
+
+	/**
+	 * Runs on the writer thread. Appends the pending records and syncs once.
+	 */
+	private void writePending() {
+		byte[] data;
+		boolean needsCompaction;
+		synchronized (this) {
+			flushScheduled = false;
+			if (pending.size() == 0) {
+				return;
+			}
+			data = pending.toByteArray();
+			pending = new ByteArrayOutputStream();
+			pendingOut = new DataOutputStream(pending);
+			journalRecords += pendingRecords;
+			pendingRecords = 0;
+			needsCompaction = journalRecords > COMPACT_MIN_RECORDS
+					&& journalRecords > COMPACT_RATIO * bookmarks.size();
+		}
+		if (!append(data)) {
+			// The journal can't be trusted to match our string ids any more.
+			needsCompaction = true;
+		}
+		if (needsCompaction) {
+			compact();
+		}
+	}
+
+	private boolean append(byte[] data) {
+		FileOutputStream out = null;
+		try {
+			boolean isNew = !journal.exists() || journal.length() == 0;
+			out = new FileOutputStream(journal, true);
+			if (isNew) {
+				DataOutputStream header = new DataOutputStream(out);
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+			}
+			out.write(data);
+			out.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to write resume journal", e);
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs on the writer thread. Rewrites the journal with just the live
+	 * entries, then swaps it in place of the old one.
+	 */
+	private void compact() {
+		byte[] data;
+		synchronized (this) {
+			// Anything pending is already reflected in the bookmarks, and is
+			// encoded with string ids from the old journal, so drop it.
+			pending = new ByteArrayOutputStream();
+			pendingOut = new DataOutputStream(pending);
+			flushScheduled = false;
+			stringIds.clear();
+			pendingRecords = 0;
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				// Oldest first, so replaying keeps the recency order
+				for (Bookmark bookmark : bookmarks.values()) {
+					appendPosition(out, bookmark.folder, bookmark.trackName, bookmark.position);
+				}
+			} catch (IOException e) {
+				// Can't happen writing to memory
+			}
+			data = buffer.toByteArray();
+			journalRecords = pendingRecords;
+			pendingRecords = 0;
+		}
+
+		// Updates made while we write go to pending with the new string ids,
+		// and are appended after the new journal is in place.
+		File temp = new File(journal.getPath() + ".tmp");
+		FileOutputStream out = null;
+		boolean success = false;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(data);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			success = temp.renameTo(journal);
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to compact resume journal", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		if (success) {
+			CoreLog.i(TAG, "Compacted resume journal to " + journalRecords + " records");
+		} else {
+			// Start a fresh journal with everything we know rather than
+			// appending to one whose string ids don't match ours.
+			CoreLog.w(TAG, "Unable to replace " + journal + ", starting a new journal");
+			temp.delete();
+			synchronized (this) {
+				journal.delete();
+				pending = new ByteArrayOutputStream();
+				pendingOut = new DataOutputStream(pending);
+				stringIds.clear();
+				pendingRecords = 0;
+				journalRecords = 0;
+				for (Bookmark bookmark : bookmarks.values()) {
+					try {
+						appendPosition(pendingOut, bookmark.folder, bookmark.trackName, bookmark.position);
+					} catch (IOException e) {
+						// Can't happen writing to memory
+					}
+				}
+				if (!flushScheduled) {
+					flushScheduled = true;
+					writer.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+}
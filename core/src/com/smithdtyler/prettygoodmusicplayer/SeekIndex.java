@@ -0,0 +1,795 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A time to byte offset table for one audio file, built by walking its MP3
+ * frame headers, FLAC frame headers or Ogg pages once.
+ *
+ * Entries are about a second apart and always start on a frame (or page)
+ * boundary, with the exact time of that frame; positions in between are
+ * interpolated. Lookups either way are binary searches, and
+ * {@link #seek(File, int)} walks at most one entry's worth of MP3 frame
+ * headers from there to find the exact frame.
+ *
+ * MediaPlayer seeks in a VBR MP3 without a Xing or VBRI table of contents
+ * as if the file were CBR at the bitrate of its first frame, so it lands in
+ * the wrong place, and reports positions from where it thought it landed.
+ * {@link #seek(File, int)} gives the time to ask it for so that it lands
+ * at the right byte instead.
+ */
+public final class SeekIndex {
+	public static final int MP3 = 1;
+	public static final int FLAC = 2;
+	public static final int OGG = 3;
+
+	// How far apart entries are
+	static final int INTERVAL_MS = 1000;
+
+	private static final int MP3_MASK = 0xFFFE0C00; // sync, version, layer, sample rate
+	// How far past the tags to look for the first MP3 frame
+	private static final int MP3_FIRST_FRAME_SEARCH = 64 * 1024;
+
+	private final int format;
+	private final int durationMs;
+	private final long firstFrameOffset;
+	private final long endOffset;
+	// Bits per second of the first MP3 frame, which MediaPlayer seeks by
+	private final int basisBitrate;
+	// Whether the file has its own seek table (Xing/VBRI) MediaPlayer uses
+	private final boolean hasToc;
+	// MP3 frames are all this long, at this rate
+	private final int sampleRate;
+	private final int samplesPerFrame;
+	private final int[] times;
+	private final long[] offsets;
+
+	private SeekIndex(int format, int durationMs, long firstFrameOffset, long endOffset,
+			int basisBitrate, boolean hasToc, int sampleRate, int samplesPerFrame, int[] times, long[] offsets) {
+		this.format = format;
+		this.durationMs = durationMs;
+		this.firstFrameOffset = firstFrameOffset;
+		this.endOffset = endOffset;
+		this.basisBitrate = basisBitrate;
+		this.hasToc = hasToc;
+		this.sampleRate = sampleRate;
+		this.samplesPerFrame = samplesPerFrame;
+		this.times = times;
+		this.offsets = offsets;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	public int getDurationMs() {
+		return durationMs;
+	}
+
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * @return the byte offset of the audio at the given time
+	 */
+	public long offsetFor(int ms) {
+		if (ms <= 0) {
+			return firstFrameOffset;
+		}
+		int i = floor(times, ms);
+		int t0 = times[i];
+		long o0 = offsets[i];
+		int t1 = i + 1 < times.length ? times[i + 1] : durationMs;
+		long o1 = i + 1 < times.length ? offsets[i + 1] : endOffset;
+		if (ms >= t1 || t1 <= t0) {
+			return o1;
+		}
+		return o0 + (o1 - o0) * (ms - t0) / (t1 - t0);
+	}
+
+	/**
+	 * @return the time of the audio at the given byte offset
+	 */
+	public int timeFor(long offset) {
+		if (offset <= firstFrameOffset) {
+			return 0;
+		}
+		int i = floor(offsets, offset);
+		long o0 = offsets[i];
+		int t0 = times[i];
+		long o1 = i + 1 < offsets.length ? offsets[i + 1] : endOffset;
+		int t1 = i + 1 < offsets.length ? times[i + 1] : durationMs;
+		if (offset >= o1 || o1 <= o0) {
+			return t1;
+		}
+		return (int) (t0 + (t1 - t0) * (offset - o0) / (o1 - o0));
+	}
+
+	/**
+	 * @return true if MediaPlayer would seek this file by its first frame's
+	 * bitrate, so seeks have to go through {@link #seek(File, int)}
+	 */
+	public boolean needsPlayerCorrection() {
+		return format == MP3 && !hasToc && basisBitrate > 0;
+	}
+
+	/**
+	 * Where a seek lands: the frame holding the requested time, that
+	 * frame's own time, and the time to ask MediaPlayer for to get there.
+	 */
+	public static final class Seek {
+		public final long offset;
+		public final int timeMs;
+		public final int playerTimeMs;
+
+		Seek(long offset, int timeMs, int playerTimeMs) {
+			this.offset = offset;
+			this.timeMs = timeMs;
+			this.playerTimeMs = playerTimeMs;
+		}
+	}
+
+	/**
+	 * Find the frame that holds the given time. For MP3 this reads the frame
+	 * headers between the nearest entry and the time, so it's exact; other
+	 * formats are left to MediaPlayer, which seeks them accurately itself.
+	 * @param file the file this index was built from
+	 */
+	public Seek seek(File file, int ms) throws IOException {
+		ms = Math.max(0, Math.min(ms, durationMs));
+		if (format != MP3 || sampleRate <= 0) {
+			return new Seek(offsetFor(ms), ms, ms);
+		}
+		int i = floor(times, ms);
+		long pos = offsets[i];
+		// Frame times in samples from the entry, to avoid drifting
+		long target = (long) (ms - times[i]) * sampleRate / 1000;
+		long samples = 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Window in = new Window(raf);
+			int base = in.int32(pos) & MP3_MASK;
+			while (samples + samplesPerFrame <= target) {
+				int header = in.int32(pos);
+				int length = (header & MP3_MASK) == base ? mp3FrameLength(header) : -1;
+				if (length <= 0 || pos + length >= endOffset) {
+					break;
+				}
+				pos += length;
+				samples += samplesPerFrame;
+			}
+		} finally {
+			raf.close();
+		}
+		int timeMs = times[i] + (int) (samples * 1000 / sampleRate);
+		int playerTimeMs = timeMs;
+		if (needsPlayerCorrection()) {
+			// Rounded down, so MediaPlayer lands just before the frame and
+			// syncs forward onto it
+			playerTimeMs = (int) ((pos - firstFrameOffset) * 8000L / basisBitrate);
+		}
+		return new Seek(pos, timeMs, playerTimeMs);
+	}
+
+	/**
+	 * Index of the last entry at or before key; entries start at zero so
+	 * there always is one.
+	 */
+	private static int floor(int[] keys, int key) {
+		int i = Arrays.binarySearch(keys, key);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	private static int floor(long[] keys, long key) {
+		int i = Arrays.binarySearch(keys, key);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	@Override
+	public String toString() {
+		return "SeekIndex[format=" + format + ", duration=" + durationMs + "ms, entries=" + times.length
+				+ ", basisBitrate=" + basisBitrate + ", toc=" + hasToc + "]";
+	}
+
+	/**
+	 * Write the index compactly: entries as variable length deltas.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeByte(format);
+		out.writeInt(durationMs);
+		out.writeLong(firstFrameOffset);
+		out.writeLong(endOffset);
+		out.writeInt(basisBitrate);
+		out.writeBoolean(hasToc);
+		out.writeInt(sampleRate);
+		out.writeInt(samplesPerFrame);
+		out.writeInt(times.length);
+		int lastTime = 0;
+		long lastOffset = 0;
+		for (int i = 0; i < times.length; i++) {
+			writeVarLong(out, times[i] - lastTime);
+			writeVarLong(out, offsets[i] - lastOffset);
+			lastTime = times[i];
+			lastOffset = offsets[i];
+		}
+	}
+
+	static SeekIndex readFrom(DataInput in) throws IOException {
+		int format = in.readByte();
+		int durationMs = in.readInt();
+		long firstFrameOffset = in.readLong();
+		long endOffset = in.readLong();
+		int basisBitrate = in.readInt();
+		boolean hasToc = in.readBoolean();
+		int sampleRate = in.readInt();
+		int samplesPerFrame = in.readInt();
+		int count = in.readInt();
+		if (count <= 0 || count > 1 << 24) {
+			throw new IOException("Bad entry count " + count);
+		}
+		int[] times = new int[count];
+		long[] offsets = new long[count];
+		int lastTime = 0;
+		long lastOffset = 0;
+		for (int i = 0; i < count; i++) {
+			lastTime += (int) readVarLong(in);
+			lastOffset += readVarLong(in);
+			times[i] = lastTime;
+			offsets[i] = lastOffset;
+		}
+		return new SeekIndex(format, durationMs, firstFrameOffset, endOffset, basisBitrate, hasToc,
+				sampleRate, samplesPerFrame, times, offsets);
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readByte() & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad variable length number");
+	}
+
+	/**
+	 * Build the index for a file by reading its frame headers or pages.
+	 * This reads through the whole file, so keep it off the UI thread.
+	 * @return null if the file isn't MP3, FLAC or Ogg Vorbis/Opus
+	 */
+	public static SeekIndex build(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Window in = new Window(raf);
+			long start = id3Length(in);
+			if (in.int32(start) == 0x664C6143) { // "fLaC"
+				return buildFlac(in, start + 4);
+			}
+			if (start == 0 && in.int32(0) == 0x4F676753) { // "OggS"
+				return buildOgg(in);
+			}
+			// Anything can look like MP3 frames somewhere, so go by the name
+			String name = file.getName().toLowerCase(Locale.US);
+			if (name.endsWith(".mp3") || name.endsWith(".mp2") || name.endsWith(".mpga")) {
+				return buildMp3(in, start);
+			}
+			return null;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Check the start of a file for whether an index would be any use to
+	 * MediaPlayer. That's an MP3 with no VBRI or Xing table of contents,
+	 * and no Info header marking it as CBR, which MediaPlayer seeks fine.
+	 * This reads the tag header and the first frame, not the whole file.
+	 */
+	public static boolean mayNeedPlayerCorrection(File file) throws IOException {
+		String name = file.getName().toLowerCase(Locale.US);
+		if (!name.endsWith(".mp3") && !name.endsWith(".mp2") && !name.endsWith(".mpga")) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Window in = new Window(raf);
+			long start = id3Length(in);
+			long pos = mp3Sync(in, start, 0, start + MP3_FIRST_FRAME_SEARCH);
+			if (pos < 0) {
+				return false;
+			}
+			int first = in.int32(pos);
+			int sideInfo = mp3SideInfoLength(first);
+			int tag = in.int32(pos + 4 + sideInfo);
+			if (tag == 0x496E666F) { // "Info"
+				return false;
+			}
+			if (tag == 0x58696E67) { // "Xing"
+				return (in.int32(pos + 8 + sideInfo) & 0x04) == 0;
+			}
+			return in.int32(pos + 36) != 0x56425249; // "VBRI"
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the length of the ID3v2 tag at the start of the file, or 0
+	 */
+	private static long id3Length(Window in) throws IOException {
+		if (in.get(0) != 'I' || in.get(1) != 'D' || in.get(2) != '3') {
+			return 0;
+		}
+		long length = 10 + (((in.get(6) & 0x7F) << 21) | ((in.get(7) & 0x7F) << 14)
+				| ((in.get(8) & 0x7F) << 7) | (in.get(9) & 0x7F));
+		if ((in.get(5) & 0x10) != 0) {
+			length += 10; // footer
+		}
+		return length;
+	}
+
+	/**
+	 * @return how many bytes of side information follow an MP3 frame header,
+	 * which is where a Xing or Info header starts
+	 */
+	private static int mp3SideInfoLength(int header) {
+		int version = (header >>> 19) & 3;
+		boolean mono = ((header >>> 6) & 3) == 3;
+		return version == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+	}
+
+	/**
+	 * Collects entries about INTERVAL_MS apart.
+	 */
+	private static final class Builder {
+		int[] times = new int[256];
+		long[] offsets = new long[256];
+		int count = 0;
+		int next = 0;
+
+		void offer(long ms, long offset) {
+			if (ms < next) {
+				return;
+			}
+			if (count == times.length) {
+				times = Arrays.copyOf(times, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			times[count] = (int) ms;
+			offsets[count] = offset;
+			count++;
+			next = (int) ms + INTERVAL_MS;
+		}
+
+		SeekIndex build(int format, long durationMs, long endOffset, int basisBitrate, boolean hasToc,
+				int sampleRate, int samplesPerFrame) {
+			if (count == 0) {
+				return null;
+			}
+			return new SeekIndex(format, (int) durationMs, offsets[0], endOffset, basisBitrate, hasToc,
+					sampleRate, samplesPerFrame, Arrays.copyOf(times, count), Arrays.copyOf(offsets, count));
+		}
+	}
+
+	// MP3: every frame has to be visited, since frames don't say when they are
+
+	private static final int[][] MP3_BITRATES = {
+		// MPEG 1 layer 1, 2, 3
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+		// MPEG 2/2.5 layer 1, then layers 2 and 3
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+	};
+	private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	private static SeekIndex buildMp3(Window in, long pos) throws IOException {
+		pos = mp3Sync(in, pos, 0, pos + MP3_FIRST_FRAME_SEARCH);
+		if (pos < 0) {
+			return null;
+		}
+		int first = in.int32(pos);
+		int base = first & MP3_MASK;
+		int sampleRate = mp3SampleRate(first);
+		int samplesPerFrame = mp3SamplesPerFrame(first);
+		int basisBitrate = mp3Bitrate(first);
+		boolean hasToc = false;
+
+		// A Xing/Info or VBRI frame holds no audio, just the table of contents
+		int sideInfo = mp3SideInfoLength(first);
+		int tag = in.int32(pos + 4 + sideInfo);
+		if (tag == 0x58696E67 || tag == 0x496E666F) { // "Xing", "Info"
+			hasToc = (in.int32(pos + 8 + sideInfo) & 0x04) != 0;
+			pos += mp3FrameLength(first);
+		} else if (in.int32(pos + 36) == 0x56425249) { // "VBRI"
+			hasToc = true;
+			pos += mp3FrameLength(first);
+		}
+
+		Builder entries = new Builder();
+		long samples = 0;
+		long end = pos;
+		while (pos + 4 <= in.length) {
+			int header = in.int32(pos);
+			int length = (header & MP3_MASK) == base ? mp3FrameLength(header) : -1;
+			if (length <= 0) {
+				// Junk, or the ID3v1/APE tags at the end
+				pos = mp3Sync(in, pos + 1, base, in.length);
+				if (pos < 0) {
+					break;
+				}
+				continue;
+			}
+			if (entries.count == 0) {
+				basisBitrate = mp3Bitrate(header);
+			}
+			entries.offer(samples * 1000 / sampleRate, pos);
+			samples += samplesPerFrame;
+			pos += length;
+			end = Math.min(pos, in.length);
+		}
+		return entries.build(MP3, samples * 1000 / sampleRate, end, basisBitrate, hasToc,
+				sampleRate, samplesPerFrame);
+	}
+
+	/**
+	 * Find the next frame header that's followed by another one like it.
+	 * @param base the header bits every frame must share, or 0 for any
+	 * @param limit where to give up
+	 * @return its offset, or -1
+	 */
+	private static long mp3Sync(Window in, long pos, int base, long limit) throws IOException {
+		for (; pos + 4 <= in.length && pos < limit; pos++) {
+			if (in.get(pos) != 0xFF) {
+				continue;
+			}
+			int header = in.int32(pos);
+			if (base != 0 && (header & MP3_MASK) != base) {
+				continue;
+			}
+			int length = mp3FrameLength(header);
+			if (length <= 0) {
+				continue;
+			}
+			long next = pos + length;
+			if (next + 4 > in.length) {
+				return base != 0 ? pos : -1;
+			}
+			int nextHeader = in.int32(next);
+			if ((nextHeader & MP3_MASK) == (header & MP3_MASK) && mp3FrameLength(nextHeader) > 0) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the frame length in bytes, or -1 if this isn't a valid header
+	 */
+	static int mp3FrameLength(int header) {
+		if ((header & 0xFFE00000) != 0xFFE00000) {
+			return -1;
+		}
+		int version = (header >>> 19) & 3;
+		int layer = (header >>> 17) & 3;
+		int bitrateIndex = (header >>> 12) & 15;
+		int rateIndex = (header >>> 10) & 3;
+		if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+			return -1;
+		}
+		int bitrate = mp3Bitrate(header) / 1000;
+		int sampleRate = mp3SampleRate(header);
+		int padding = (header >>> 9) & 1;
+		if (layer == 3) {
+			return (12 * bitrate * 1000 / sampleRate + padding) * 4;
+		}
+		if (layer == 1 && version != 3) {
+			return 72 * bitrate * 1000 / sampleRate + padding;
+		}
+		return 144 * bitrate * 1000 / sampleRate + padding;
+	}
+
+	private static int mp3Bitrate(int header) {
+		int version = (header >>> 19) & 3;
+		int layer = (header >>> 17) & 3;
+		int bitrateIndex = (header >>> 12) & 15;
+		int table;
+		if (version == 3) {
+			table = 3 - layer;
+		} else {
+			table = layer == 3 ? 3 : 4;
+		}
+		return MP3_BITRATES[table][bitrateIndex] * 1000;
+	}
+
+	private static int mp3SampleRate(int header) {
+		int version = (header >>> 19) & 3;
+		int rate = MP3_SAMPLE_RATES[(header >>> 10) & 3];
+		return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+	}
+
+	private static int mp3SamplesPerFrame(int header) {
+		int version = (header >>> 19) & 3;
+		int layer = (header >>> 17) & 3;
+		if (layer == 3) {
+			return 384;
+		}
+		return layer == 1 && version != 3 ? 576 : 1152;
+	}
+
+	// FLAC: frame headers carry their own sample number, so after each entry
+	// we can jump most of a second ahead and find the next frame from there
+
+	private static SeekIndex buildFlac(Window in, long pos) throws IOException {
+		int sampleRate = 0;
+		int maxBlockSize = 0;
+		long totalSamples = 0;
+		boolean last = false;
+		while (!last && pos + 4 <= in.length) {
+			int header = in.int32(pos);
+			last = (header & 0x80000000) != 0;
+			int type = (header >>> 24) & 0x7F;
+			int size = header & 0xFFFFFF;
+			if (type == 0) { // STREAMINFO
+				maxBlockSize = (in.get(pos + 6) << 8) | in.get(pos + 7);
+				long packed = ((long) in.int32(pos + 14) << 32) | (in.int32(pos + 18) & 0xFFFFFFFFL);
+				sampleRate = (int) (packed >>> 44);
+				totalSamples = packed & 0xFFFFFFFFFL;
+			}
+			pos += 4 + size;
+		}
+		if (sampleRate <= 0 || maxBlockSize <= 0) {
+			return null;
+		}
+		long firstFrame = pos;
+		int blocking = -1;
+		// Sample rate, channels and sample size don't change within a stream
+		int constant = -1;
+		Builder entries = new Builder();
+		long lastSample = -1;
+		byte[] header = new byte[16];
+		while (pos + 16 <= in.length) {
+			if (in.get(pos) != 0xFF || (in.get(pos + 1) & 0xFE) != 0xF8) {
+				pos++;
+				continue;
+			}
+			for (int i = 0; i < header.length; i++) {
+				header[i] = (byte) in.get(pos + i);
+			}
+			long number = flacFrameNumber(header);
+			int strategy = header[1] & 1;
+			int fields = ((header[2] & 15) << 8) | (header[3] & 0xFF);
+			if (number < 0 || (blocking >= 0 && (strategy != blocking || fields != constant))) {
+				pos++;
+				continue;
+			}
+			blocking = strategy;
+			constant = fields;
+			long sample = strategy == 0 ? number * maxBlockSize : number;
+			if (sample <= lastSample || (totalSamples > 0 && sample >= totalSamples)) {
+				pos++;
+				continue;
+			}
+			lastSample = sample;
+			long ms = sample * 1000 / sampleRate;
+			entries.offer(ms, pos);
+			if (ms > 0) {
+				// Jump to just short of the next entry, at the average rate so far
+				long skip = (pos - firstFrame) * (entries.next - ms) * 7 / (ms * 8);
+				pos += Math.max(1, skip);
+			} else {
+				pos++;
+			}
+		}
+		long durationMs = (totalSamples > 0 ? totalSamples : lastSample + maxBlockSize) * 1000 / sampleRate;
+		return entries.build(FLAC, durationMs, in.length, 0, true, sampleRate, 0);
+	}
+
+	/**
+	 * Check a FLAC frame header and its CRC-8.
+	 * @return the frame (fixed block size) or sample (variable) number, or
+	 * -1 if this isn't a frame header
+	 */
+	private static long flacFrameNumber(byte[] h) {
+		int blockSizeCode = (h[2] >>> 4) & 15;
+		int rateCode = h[2] & 15;
+		int channels = (h[3] >>> 4) & 15;
+		int sampleSize = (h[3] >>> 1) & 7;
+		if (blockSizeCode == 0 || rateCode == 15 || channels > 10 || sampleSize == 3 || (h[3] & 1) != 0) {
+			return -1;
+		}
+		int p = 4;
+		int b = h[p++] & 0xFF;
+		long value;
+		int more;
+		if (b < 0x80) {
+			value = b;
+			more = 0;
+		} else if ((b & 0xE0) == 0xC0) {
+			value = b & 0x1F;
+			more = 1;
+		} else if ((b & 0xF0) == 0xE0) {
+			value = b & 0x0F;
+			more = 2;
+		} else if ((b & 0xF8) == 0xF0) {
+			value = b & 0x07;
+			more = 3;
+		} else if ((b & 0xFC) == 0xF8) {
+			value = b & 0x03;
+			more = 4;
+		} else if ((b & 0xFE) == 0xFC) {
+			value = b & 0x01;
+			more = 5;
+		} else if (b == 0xFE) {
+			value = 0;
+			more = 6;
+		} else {
+			return -1;
+		}
+		for (int i = 0; i < more; i++) {
+			b = h[p++] & 0xFF;
+			if ((b & 0xC0) != 0x80) {
+				return -1;
+			}
+			value = (value << 6) | (b & 0x3F);
+		}
+		if (blockSizeCode == 6) {
+			p += 1;
+		} else if (blockSizeCode == 7) {
+			p += 2;
+		}
+		if (rateCode == 12) {
+			p += 1;
+		} else if (rateCode == 13 || rateCode == 14) {
+			p += 2;
+		}
+		int crc = 0;
+		for (int i = 0; i < p; i++) {
+			crc ^= h[i] & 0xFF;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+			}
+		}
+		return crc == (h[p] & 0xFF) ? value : -1;
+	}
+
+	// Ogg: each page says how many samples were finished by its end
+
+	private static SeekIndex buildOgg(Window in) throws IOException {
+		long pos = 0;
+		int serial = 0;
+		int sampleRate = 0;
+		long preSkip = 0;
+		long granule = 0;
+		Builder entries = new Builder();
+		while (pos + 27 <= in.length) {
+			if (in.int32(pos) != 0x4F676753) { // "OggS"
+				pos++;
+				continue;
+			}
+			int segments = in.get(pos + 26);
+			long bodyLength = 0;
+			for (int i = 0; i < segments; i++) {
+				bodyLength += in.get(pos + 27 + i);
+			}
+			long body = pos + 27 + segments;
+			int pageSerial = Integer.reverseBytes(in.int32(pos + 14));
+			if (sampleRate == 0) {
+				serial = pageSerial;
+				if (in.get(body) == 1 && in.int32(body + 1) == 0x766F7262) { // "\001vorb"
+					sampleRate = Integer.reverseBytes(in.int32(body + 12));
+				} else if (in.int32(body) == 0x4F707573 && in.int32(body + 4) == 0x48656164) { // "OpusHead"
+					sampleRate = 48000;
+					preSkip = in.get(body + 10) | (in.get(body + 11) << 8);
+				} else {
+					return null;
+				}
+				if (sampleRate <= 0) {
+					return null;
+				}
+			}
+			if (pageSerial == serial) {
+				// Audio from this page starts where the last one's ended
+				entries.offer(Math.max(0, granule - preSkip) * 1000 / sampleRate, pos);
+				long pageGranule = ((long) Integer.reverseBytes(in.int32(pos + 10)) << 32)
+						| (Integer.reverseBytes(in.int32(pos + 6)) & 0xFFFFFFFFL);
+				if (pageGranule != -1) {
+					granule = pageGranule;
+				}
+			}
+			pos = body + bodyLength;
+		}
+		if (sampleRate == 0) {
+			return null;
+		}
+		return entries.build(OGG, Math.max(0, granule - preSkip) * 1000 / sampleRate, in.length, 0, true,
+				sampleRate, 0);
+	}
+
+	/**
+	 * A forward moving window onto the file, so header-sized reads don't
+	 * each cost a system call.
+	 */
+	private static final class Window {
+		private final RandomAccessFile file;
+		final long length;
+		private final byte[] buffer = new byte[64 * 1024];
+		private long start = 0;
+		private int count = 0;
+
+		Window(RandomAccessFile file) throws IOException {
+			this.file = file;
+			this.length = file.length();
+		}
+
+		/**
+		 * @return the unsigned byte at pos, or 0 past the end
+		 */
+		int get(long pos) throws IOException {
+			if (pos < start || pos >= start + count) {
+				if (pos >= length || pos < 0) {
+					return 0;
+				}
+				fill(pos);
+			}
+			return buffer[(int) (pos - start)] & 0xFF;
+		}
+
+		int int32(long pos) throws IOException {
+			if (pos >= start && pos + 4 <= start + count) {
+				int i = (int) (pos - start);
+				return ((buffer[i] & 0xFF) << 24) | ((buffer[i + 1] & 0xFF) << 16)
+						| ((buffer[i + 2] & 0xFF) << 8) | (buffer[i + 3] & 0xFF);
+			}
+			return (get(pos) << 24) | (get(pos + 1) << 16) | (get(pos + 2) << 8) | get(pos + 3);
+		}
+
+		private void fill(long pos) throws IOException {
+			file.seek(pos);
+			start = pos;
+			count = 0;
+			while (count < buffer.length) {
+				int n = file.read(buffer, count, buffer.length - count);
+				if (n < 0) {
+					break;
+				}
+				count += n;
+			}
+		}
+	}
+}
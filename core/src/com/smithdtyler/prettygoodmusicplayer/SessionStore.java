@@ -0,0 +1,355 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+/**
+ * Saves what the service is playing, so that after the system kills and
+ * restarts it a play or next press carries on where it left off.
+ *
+ * The session is split across two files. The queue file holds the playlist
+ * and is only rewritten when the playlist changes. The state file is small
+ * and is rewritten on every state change. It holds the index, position,
+ * shuffle flag, shuffle seed and draw count, plus the id of the queue it
+ * belongs to. Both files are written to a temp file and renamed into place
+ * on a background thread, and a burst of changes collapses into one write.
+ */
+public class SessionStore {
+	private static final String TAG = "SessionStore";
+
+	private static final String QUEUE_NAME = "session.queue";
+	private static final String STATE_NAME = "session.state";
+	private static final int QUEUE_MAGIC = 0x50474d51; // "PGMQ"
+	private static final int STATE_MAGIC = 0x50474d53; // "PGMS"
+	private static final int VERSION = 1;
+
+	/**
+	 * How long to collect state changes before writing them out.
+	 */
+	private static final long WRITE_DELAY_MS = 500;
+
+	/**
+	 * A saved session.
+	 */
+	public static final class Session {
+		public final String[] queue;
+		public final int index;
+		public final int position;
+		public final boolean shuffle;
+		public final long shuffleSeed;
+		public final long shuffleDraws;
+		public final String artist;
+		public final String artistAbsPath;
+		public final String album;
+
+		public Session(String[] queue, int index, int position, boolean shuffle, long shuffleSeed, long shuffleDraws,
+				String artist, String artistAbsPath, String album) {
+			this.queue = queue;
+			this.index = index;
+			this.position = position;
+			this.shuffle = shuffle;
+			this.shuffleSeed = shuffleSeed;
+			this.shuffleDraws = shuffleDraws;
+			this.artist = artist;
+			this.artistAbsPath = artistAbsPath;
+			this.album = album;
+		}
+	}
+
+	private final File queueFile;
+	private final File stateFile;
+
+	// The playlist the queue file on disk holds, and its id. Only used on the writer thread.
+	private String[] writtenQueue;
+	private long writtenQueueId;
+
+	private Session pending;
+	private boolean writeScheduled = false;
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SessionStoreWriter");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	public SessionStore(File dir) {
+		queueFile = new File(dir, QUEUE_NAME);
+		stateFile = new File(dir, STATE_NAME);
+	}
+
+	/**
+	 * Read the saved session on the writer thread.
+	 * @return a future for the session, which is null if there's nothing usable
+	 */
+	public Future<Session> loadAsync() {
+		return loadAsync(null);
+	}
+
+	/**
+	 * Read the saved session on the writer thread, then run onLoaded there.
+	 * @param onLoaded called once the future is done, or null
+	 * @return a future for the session, which is null if there's nothing usable
+	 */
+	public Future<Session> loadAsync(final Runnable onLoaded) {
+		final FutureTask<Session> task = new FutureTask<Session>(new Callable<Session>() {
+			@Override
+			public Session call() {
+				long start = System.nanoTime();
+				Session session = load();
+				CoreLog.i(TAG, "Loaded session " + (session != null) + " in "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+				return session;
+			}
+		});
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				task.run();
+				if (onLoaded != null) {
+					onLoaded.run();
+				}
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Remember the current session. This only stores references; the files
+	 * are written shortly afterwards on a background thread. The queue array
+	 * must not be modified afterwards.
+	 */
+	public synchronized void save(Session session) {
+		pending = session;
+		if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(writeTask, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write out anything pending without waiting for the usual delay.
+	 */
+	public void flush() {
+		writer.execute(writeTask);
+	}
+
+	private void writePending() {
+		Session session;
+		synchronized (this) {
+			writeScheduled = false;
+			session = pending;
+			pending = null;
+		}
+		if (session == null) {
+			return;
+		}
+		try {
+			// The queue goes first, so a state file never points at a queue
+			// that isn't there.
+			if (session.queue != writtenQueue) {
+				long queueId = System.currentTimeMillis();
+				if (queueId <= writtenQueueId) {
+					queueId = writtenQueueId + 1;
+				}
+				writeAtomically(queueFile, encodeQueue(queueId, session.queue));
+				writtenQueue = session.queue;
+				writtenQueueId = queueId;
+			}
+			writeAtomically(stateFile, encodeState(writtenQueueId, session));
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to save the session", e);
+			writtenQueue = null;
+		}
+	}
+
+	private static byte[] encodeQueue(long queueId, String[] queue) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(QUEUE_MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(queueId);
+		out.writeInt(queue.length);
+		for (String name : queue) {
+			out.writeUTF(name);
+		}
+		return withChecksum(buffer);
+	}
+
+	private static byte[] encodeState(long queueId, Session session) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(STATE_MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(queueId);
+		out.writeInt(session.index);
+		out.writeInt(session.position);
+		out.writeBoolean(session.shuffle);
+		out.writeLong(session.shuffleSeed);
+		out.writeLong(session.shuffleDraws);
+		writeNullableUTF(out, session.artist);
+		writeNullableUTF(out, session.artistAbsPath);
+		writeNullableUTF(out, session.album);
+		return withChecksum(buffer);
+	}
+
+	private static void writeNullableUTF(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static byte[] withChecksum(ByteArrayOutputStream buffer) throws IOException {
+		Adler32 adler = new Adler32();
+		byte[] data = buffer.toByteArray();
+		adler.update(data, 0, data.length);
+		new DataOutputStream(buffer).writeInt((int) adler.getValue());
+		return buffer.toByteArray();
+	}
+
+	private static void writeAtomically(File file, byte[] data) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to rename " + temp + " to " + file);
+		}
+	}
+
+	private Session load() {
+		if (!stateFile.exists() || !queueFile.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream state = open(stateFile);
+			long queueId;
+			int index;
+			int position;
+			boolean shuffle;
+			long seed;
+			long draws;
+			String artist;
+			String artistAbsPath;
+			String album;
+			try {
+				if (state.readInt() != STATE_MAGIC || state.readInt() != VERSION) {
+					CoreLog.w(TAG, "Unrecognized session state file");
+					return null;
+				}
+				queueId = state.readLong();
+				index = state.readInt();
+				position = state.readInt();
+				shuffle = state.readBoolean();
+				seed = state.readLong();
+				draws = state.readLong();
+				artist = readNullableUTF(state);
+				artistAbsPath = readNullableUTF(state);
+				album = readNullableUTF(state);
+			} finally {
+				state.close();
+			}
+
+			DataInputStream in = open(queueFile);
+			String[] queue;
+			try {
+				if (in.readInt() != QUEUE_MAGIC || in.readInt() != VERSION || in.readLong() != queueId) {
+					CoreLog.w(TAG, "Session queue doesn't match the saved state");
+					return null;
+				}
+				queue = new String[in.readInt()];
+				for (int i = 0; i < queue.length; i++) {
+					queue[i] = in.readUTF();
+				}
+			} finally {
+				in.close();
+			}
+			if (index < 0 || index >= queue.length) {
+				return null;
+			}
+			// Saves will reuse the queue file as long as the playlist is this one
+			writtenQueue = queue;
+			writtenQueueId = queueId;
+			return new Session(queue, index, position, shuffle, seed, draws, artist, artistAbsPath, album);
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read the saved session", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Open a file after checking its trailing checksum.
+	 */
+	private static DataInputStream open(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		if (data.length < 4) {
+			throw new IOException(file + " is truncated");
+		}
+		Adler32 adler = new Adler32();
+		adler.update(data, 0, data.length - 4);
+		int expected = ((data[data.length - 4] & 0xff) << 24) | ((data[data.length - 3] & 0xff) << 16)
+				| ((data[data.length - 2] & 0xff) << 8) | (data[data.length - 1] & 0xff);
+		if ((int) adler.getValue() != expected) {
+			throw new IOException(file + " failed its checksum");
+		}
+		return new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+	}
+}
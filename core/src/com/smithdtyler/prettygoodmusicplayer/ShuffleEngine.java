@@ -0,0 +1,134 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+/**
+ * A repeating shuffle that's random, but not too random.
+ * https://stackoverflow.com/questions/5467174/how-to-implement-a-repeating-shuffle-thats-random-but-not-too-random
+ *
+ * Positions waiting to be played sit in the front pool, and positions that
+ * were just played queue up in the back list. Each draw takes a random entry
+ * out of the front pool and appends it to the back list. When the front pool
+ * drops below half the playlist, the oldest entry in the back list goes
+ * back into the pool. A track therefore can't come round again until at
+ * least half the playlist has played.
+ *
+ * Both lists are plain int arrays. Removing from the front pool swaps the
+ * last entry into the hole, and the back list is a ring buffer, so a draw is
+ * O(1) and allocates nothing. The random source is a seeded SplitMix64, so
+ * the same seed and playlist size always give the same order. Given the
+ * seed and the draw count, {@link #restore} can rebuild the exact state.
+ *
+ * This class isn't thread safe.
+ */
+public final class ShuffleEngine {
+	private final int[] front;
+	private int frontCount;
+	private final int[] back;
+	private int backHead;
+	private int backCount;
+	private final int threshold;
+
+	private final long seed;
+	private long state;
+	private long drawCount;
+
+	/**
+	 * Create a shuffle over the positions 0 .. size - 1.
+	 */
+	public ShuffleEngine(int size, long seed) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative playlist size " + size);
+		}
+		front = new int[size];
+		back = new int[size];
+		for (int i = 0; i < size; i++) {
+			front[i] = i;
+		}
+		frontCount = size;
+		threshold = (size + 1) / 2;
+		this.seed = seed;
+		state = seed;
+	}
+
+	/**
+	 * Rebuild an engine that has already made drawCount draws. This replays
+	 * the draws, so it costs the same as making them.
+	 */
+	public static ShuffleEngine restore(int size, long seed, long drawCount) {
+		ShuffleEngine engine = new ShuffleEngine(size, seed);
+		for (long i = 0; i < drawCount && size > 0; i++) {
+			engine.next();
+		}
+		return engine;
+	}
+
+	public int size() {
+		return front.length;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public long getDrawCount() {
+		return drawCount;
+	}
+
+	/**
+	 * @return the next playlist position to play
+	 */
+	public int next() {
+		if (front.length == 0) {
+			throw new IllegalStateException("Can't shuffle an empty playlist");
+		}
+		if (frontCount < threshold) {
+			// Recycle the position that was played longest ago
+			front[frontCount++] = back[backHead];
+			backHead = (backHead + 1) % back.length;
+			backCount--;
+		}
+		int pick = nextInt(frontCount);
+		int position = front[pick];
+		front[pick] = front[--frontCount];
+		back[(backHead + backCount) % back.length] = position;
+		backCount++;
+		drawCount++;
+		return position;
+	}
+
+	// SplitMix64: http://xorshift.di.unimi.it/splitmix64.c
+	private int nextInt(int bound) {
+		long z = (state += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		// The top 32 bits scaled into [0, bound)
+		return (int) (((z >>> 32) * bound) >>> 32);
+	}
+
+	/**
+	 * A short description for logging; doesn't walk the lists.
+	 */
+	@Override
+	public String toString() {
+		return "ShuffleEngine[size=" + front.length + " front=" + frontCount
+				+ " back=" + backCount + " draws=" + drawCount + "]";
+	}
+}
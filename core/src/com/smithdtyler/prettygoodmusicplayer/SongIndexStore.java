@@ -0,0 +1,379 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Seek indexes and chapter lists, saved one file each per song in a
+ * directory so each song's is only ever built once. They're thrown away if
+ * the song's size or modification time changes, and the least recently
+ * used go once the directory holds more than its limit.
+ */
+public final class SongIndexStore {
+	private static final String TAG = "SongIndexStore";
+	private static final int SEEK_MAGIC = 0x53494458; // "SIDX"
+	private static final int CHAPTER_MAGIC = 0x53434850; // "SCHP"
+	private static final int VERSION = 1;
+	private static final String SEEK_SUFFIX = ".idx";
+	private static final String CHAPTER_SUFFIX = ".chp";
+	// Songs whose indexes are kept in memory
+	private static final int MEMORY_ENTRIES = 4;
+	// Chapter lists are tiny, and most songs don't have one
+	private static final int CHAPTER_MEMORY_ENTRIES = 64;
+
+	// Enough for the seek indexes of a few thousand songs, at ~3 KB each
+	public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+	private final File dir;
+	private final long maxBytes;
+	// What the saved files add up to, or -1 until it's been counted
+	private long savedBytes = -1;
+	private final Map<String, SeekIndex> recent = new LinkedHashMap<String, SeekIndex>(8, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SeekIndex> eldest) {
+			return size() > MEMORY_ENTRIES;
+		}
+	};
+	private final Map<String, ChapterIndex> recentChapters = new LinkedHashMap<String, ChapterIndex>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ChapterIndex> eldest) {
+			return size() > CHAPTER_MEMORY_ENTRIES;
+		}
+	};
+
+	public SongIndexStore(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get a song's seek index if it's in memory. This doesn't touch the
+	 * disk, so it's fine on any thread.
+	 * @return null if it isn't
+	 */
+	public SeekIndex getLoadedSeekIndex(File song) {
+		synchronized (recent) {
+			return recent.get(song.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Get a song's chapters if they're in memory, without touching the disk.
+	 * @return null if they aren't
+	 */
+	public ChapterIndex getLoadedChapters(File song) {
+		synchronized (recentChapters) {
+			return recentChapters.get(song.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Get a song's seek index if it's already been built.
+	 * @return null if it hasn't (or can't be)
+	 */
+	public SeekIndex getSeekIndex(File song) {
+		String key = song.getAbsolutePath();
+		synchronized (recent) {
+			SeekIndex index = recent.get(key);
+			if (index != null) {
+				return index;
+			}
+		}
+		SeekIndex index = null;
+		DataInputStream in = open(song, SEEK_SUFFIX, SEEK_MAGIC);
+		if (in != null) {
+			try {
+				index = SeekIndex.readFrom(in);
+			} catch (IOException e) {
+				CoreLog.w(TAG, "Unable to read the seek index of " + song, e);
+				fileFor(song, SEEK_SUFFIX).delete();
+			} finally {
+				close(in);
+			}
+		}
+		if (index != null) {
+			synchronized (recent) {
+				recent.put(key, index);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Get a song's seek index, building and saving it if need be. This can
+	 * read the whole song, so keep it off the UI thread.
+	 * @return null if the song's format isn't one we can index
+	 */
+	public SeekIndex getOrBuildSeekIndex(File song) {
+		SeekIndex index = getSeekIndex(song);
+		if (index != null) {
+			return index;
+		}
+		long start = System.nanoTime();
+		try {
+			index = SeekIndex.build(song);
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to index " + song, e);
+			return null;
+		}
+		Metrics.SEEK_INDEX_BUILD.record(Metrics.microsSince(start));
+		if (index == null) {
+			return null;
+		}
+		synchronized (recent) {
+			recent.put(song.getAbsolutePath(), index);
+		}
+		DataOutputStream out = create(song, SEEK_SUFFIX, SEEK_MAGIC);
+		if (out != null) {
+			try {
+				index.writeTo(out);
+				commit(song, SEEK_SUFFIX, out);
+			} catch (IOException e) {
+				CoreLog.w(TAG, "Unable to save the seek index of " + song, e);
+				abandon(song, SEEK_SUFFIX, out);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Get a song's chapters if they've already been read.
+	 * @return null if they haven't
+	 */
+	public ChapterIndex getChapters(File song) {
+		String key = song.getAbsolutePath();
+		synchronized (recentChapters) {
+			ChapterIndex chapters = recentChapters.get(key);
+			if (chapters != null) {
+				return chapters;
+			}
+		}
+		ChapterIndex chapters = null;
+		DataInputStream in = open(song, CHAPTER_SUFFIX, CHAPTER_MAGIC);
+		if (in != null) {
+			try {
+				chapters = ChapterIndex.readFrom(in);
+			} catch (IOException e) {
+				CoreLog.w(TAG, "Unable to read the chapters of " + song, e);
+				fileFor(song, CHAPTER_SUFFIX).delete();
+			} finally {
+				close(in);
+			}
+		}
+		if (chapters != null) {
+			synchronized (recentChapters) {
+				recentChapters.put(key, chapters);
+			}
+		}
+		return chapters;
+	}
+
+	/**
+	 * Get a song's chapters, reading its tags if need be. Keep it off the UI
+	 * thread.
+	 * @return ChapterIndex.NONE if it has none
+	 */
+	public ChapterIndex getOrReadChapters(File song) {
+		ChapterIndex chapters = getChapters(song);
+		if (chapters != null) {
+			return chapters;
+		}
+		try {
+			chapters = ChapterIndex.read(song);
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read chapters from " + song, e);
+			chapters = ChapterIndex.NONE;
+		}
+		synchronized (recentChapters) {
+			recentChapters.put(song.getAbsolutePath(), chapters);
+		}
+		// Only books are worth a file; "no chapters" is cheap to find again
+		if (chapters.size() > 0) {
+			DataOutputStream out = create(song, CHAPTER_SUFFIX, CHAPTER_MAGIC);
+			if (out != null) {
+				try {
+					chapters.writeTo(out);
+					commit(song, CHAPTER_SUFFIX, out);
+				} catch (IOException e) {
+					CoreLog.w(TAG, "Unable to save the chapters of " + song, e);
+					abandon(song, CHAPTER_SUFFIX, out);
+				}
+			}
+		}
+		return chapters;
+	}
+
+	/**
+	 * Open a saved file, checking its header still matches the song.
+	 * @return the stream positioned after the header, or null
+	 */
+	private DataInputStream open(File song, String suffix, int magic) {
+		File file = fileFor(song, suffix);
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() == magic && in.readInt() == VERSION && in.readUTF().equals(song.getAbsolutePath())
+					&& in.readLong() == song.length() && in.readLong() == song.lastModified()) {
+				// Recently used, so trim keeps it
+				file.setLastModified(System.currentTimeMillis());
+				DataInputStream result = in;
+				in = null;
+				return result;
+			}
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to read " + file, e);
+		} finally {
+			close(in);
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Start writing a file for the song, to a temporary name until it's
+	 * committed.
+	 */
+	private DataOutputStream create(File song, String suffix, int magic) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			return null;
+		}
+		File temp = tempFor(song, suffix);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(magic);
+			out.writeInt(VERSION);
+			out.writeUTF(song.getAbsolutePath());
+			out.writeLong(song.length());
+			out.writeLong(song.lastModified());
+			return out;
+		} catch (IOException e) {
+			CoreLog.w(TAG, "Unable to create " + temp, e);
+			close(out);
+			temp.delete();
+			return null;
+		}
+	}
+
+	private void commit(File song, String suffix, DataOutputStream out) throws IOException {
+		out.close();
+		File temp = tempFor(song, suffix);
+		File file = fileFor(song, suffix);
+		long replaced = file.length();
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			return;
+		}
+		trim(file.length() - replaced);
+	}
+
+	/**
+	 * Count a newly saved file, and if that takes the directory over its
+	 * limit delete the least recently used files until it's back under.
+	 * Files are touched when they're read, so their modification time
+	 * says when they were last used.
+	 */
+	private synchronized void trim(long added) {
+		if (savedBytes >= 0) {
+			savedBytes += added;
+			if (savedBytes <= maxBytes) {
+				return;
+			}
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		final long[] used = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+			used[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		if (total > maxBytes) {
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(used[a], used[b]);
+				}
+			});
+			// Down to three quarters, so this doesn't happen on every save
+			int deleted = 0;
+			for (int i = 0; i < order.length && total > maxBytes * 3 / 4; i++) {
+				File file = files[order[i]];
+				long length = file.length();
+				if (file.delete()) {
+					total -= length;
+					deleted++;
+				}
+			}
+			CoreLog.i(TAG, "Deleted " + deleted + " saved indexes, " + total + " bytes left");
+		}
+		savedBytes = total;
+	}
+
+	private void abandon(File song, String suffix, DataOutputStream out) {
+		close(out);
+		tempFor(song, suffix).delete();
+	}
+
+	private File tempFor(File song, String suffix) {
+		return new File(dir, fileFor(song, suffix).getName() + ".tmp");
+	}
+
+	private File fileFor(File song, String suffix) {
+		// 64 bit FNV-1a of the path; the path is checked on load anyway
+		String path = song.getAbsolutePath();
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			h ^= path.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return new File(dir, Long.toHexString(h) + suffix);
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Byte level helpers shared by the tag parsers: big endian and syncsafe
+ * integers, ID3 text and MP4 boxes.
+ */
+final class TagReader {
+	private TagReader() {
+	}
+
+	static int int32(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+				| ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	static int syncsafe(byte[] b, int off) {
+		return ((b[off] & 0x7F) << 21) | ((b[off + 1] & 0x7F) << 14)
+				| ((b[off + 2] & 0x7F) << 7) | (b[off + 3] & 0x7F);
+	}
+
+	/**
+	 * Decode an ID3 text field: an encoding byte, then the text, possibly
+	 * zero terminated.
+	 */
+	static String id3Text(byte[] b, int off, int length) throws UnsupportedEncodingException {
+		if (length < 1) {
+			return "";
+		}
+		int encoding = b[off];
+		int start = off + 1;
+		int end = off + length;
+		String charset;
+		switch (encoding) {
+		case 1:
+			charset = "UTF-16";
+			break;
+		case 2:
+			charset = "UTF-16BE";
+			break;
+		case 3:
+			charset = "UTF-8";
+			break;
+		default:
+			charset = "ISO-8859-1";
+			break;
+		}
+		int p = start;
+		if (encoding == 1 || encoding == 2) {
+			while (p + 1 < end && (b[p] != 0 || b[p + 1] != 0)) {
+				p += 2;
+			}
+		} else {
+			while (p < end && b[p] != 0) {
+				p++;
+			}
+		}
+		return new String(b, start, Math.min(p, end) - start, charset).trim();
+	}
+
+	/**
+	 * Find a child box by type between start and end.
+	 * @return the {start, end} of its contents, or null
+	 */
+	static long[] findBox(RandomAccessFile in, long pos, long end, String type) throws IOException {
+		byte[] header = new byte[16];
+		while (pos + 8 <= end) {
+			in.seek(pos);
+			in.readFully(header, 0, 8);
+			long size = int32(header, 0) & 0xFFFFFFFFL;
+			int headerSize = 8;
+			if (size == 1) {
+				in.readFully(header, 8, 8);
+				size = ((long) int32(header, 8) << 32) | (int32(header, 12) & 0xFFFFFFFFL);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = end - pos;
+			}
+			if (size < headerSize || pos + size > end) {
+				return null;
+			}
+			if (header[4] == type.charAt(0) && header[5] == type.charAt(1)
+					&& header[6] == type.charAt(2) && header[7] == type.charAt(3)) {
+				return new long[] { pos + headerSize, pos + size };
+			}
+			pos += size;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,61 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+/**
+ * A change of volume spread over a short time, for ducking and for fading
+ * around pauses instead of cutting the sound off mid-waveform.
+ *
+ * The gain follows a raised cosine, so it starts and ends without a sudden
+ * change of slope, which is what makes a straight line ramp audible.
+ */
+public final class VolumeRamp {
+	private final float from;
+	private final float to;
+	private final long startMs;
+	private final long durationMs;
+
+	/**
+	 * @param startMs when the ramp starts, on any millisecond clock
+	 */
+	public VolumeRamp(float from, float to, long startMs, long durationMs) {
+		this.from = from;
+		this.to = to;
+		this.startMs = startMs;
+		this.durationMs = durationMs;
+	}
+
+	public float gainAt(long nowMs) {
+		if (isDone(nowMs)) {
+			return to;
+		}
+		double t = Math.max(0, nowMs - startMs) / (double) durationMs;
+		double eased = (1 - Math.cos(Math.PI * t)) / 2;
+		return (float) (from + (to - from) * eased);
+	}
+
+	public boolean isDone(long nowMs) {
+		return nowMs - startMs >= durationMs;
+	}
+
+	public float getTarget() {
+		return to;
+	}
+}
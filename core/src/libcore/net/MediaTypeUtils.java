@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Utilities for dealing with MIME types.
+ * Used to implement java.net.URLConnection and android.webkit.MimeTypeMap.
+ *
+ * The table below is loaded into two maps when the class loads, one keyed
+ * by extension and one keyed by MIME type. Lookups in both are
+ * case-insensitive, and only allocate for keys that aren't lower case.
+ * Nothing here changes after class initialization, and initialization
+ * does no I/O.
+ */
+public final class MediaTypeUtils {
+	// The following table contains media types following
+	// https://developer.android.com/guide/appendix/media-formats.html
+	// The "most popular" extension must come first, so that it's the one returned
+	// by guessExtensionFromMimeType.
+	private static final String[][] TABLE = {
+		{ "audio/3gpp", "3gpp" },
+		{ "audio/3gpp", "3gp" },
+		{ "audio/amr-wb", "3gpp" },
+		{ "audio/amr-wb", "3gp" },
+
+		// not sure about this one
+		{ "audio/dts", "ts" },
+		{ "audio/dts", "dts" },
+
+		// no mkv/mka support for flac according to the docs :(
+		{ "audio/flac", "flac" },
+
+		{ "audio/gsm", "gsm" },
+
+		{ "audio/midi", "mid" },
+		{ "audio/midi", "midi" },
+		{ "audio/midi", "xmf" },
+		{ "audio/midi", "mxmf" },
+		{ "audio/midi", "rttl" },
+		{ "audio/midi", "rtx" },
+		{ "audio/midi", "ota" },
+		{ "audio/midi", "imy" },
+
+		// audio/mpeg seems to be used exclusively by OMX.google.mp3.decoder
+		{ "audio/mpeg", "mp3" },
+		{ "audio/mpeg3", "mp3" },
+
+		{ "audio/mpeg-L2", "mp2" },
+
+		{ "audio/mp4a-latm", "m4a" },
+		{ "audio/mp4a-latm", "aac" },
+		{ "audio/mp4a-latm", "mp4" },
+		{ "audio/mp4a-latm", "m4p" },
+		{ "audio/mp4a-latm", "m4b" },
+		{ "audio/mp4a-latm", "m2t" },
+
+		{ "audio/opus", "opus" },
+		{ "audio/opus", "ogg" },
+		{ "audio/opus", "oga" },
+		{ "audio/opus", "mka" },
+		{ "audio/opus", "mkv" },
+
+		{ "audio/raw", "raw" },
+		{ "audio/raw", "pcm" },
+
+		{ "audio/vorbis", "ogg" },
+		{ "audio/vorbis", "oga" },
+		{ "audio/vorbis", "vorbis" },
+		{ "audio/vorbis", "mka" },
+		{ "audio/vorbis", "mkv" },
+
+		{ "audio/wav", "wav" },
+		{ "audio/wav", "wave" },
+
+		{ "audio/x-ape", "ape" },
+
+		{ "audio/x-m4b", "m4b" },
+
+		{ "audio/x-ms-wma", "wma" },
+
+		{ "audio/vnd.rn-realaudio", "ra" },
+		{ "audio/vnd.rn-realaudio", "rm" },
+	};
+
+	private static final Registry extensions = new Registry(1, 0);
+	private static final Registry mimeTypes = new Registry(0, 1);
+
+	/**
+	 * One column of TABLE mapped to the other, keyed in lower case. A lookup
+	 * tries the key as given first, so the usual lower case queries don't
+	 * allocate.
+	 */
+	private static final class Registry {
+		final Map<String, List<String>> values;
+
+		Registry(int keyColumn, int valueColumn) {
+			// If a key maps to several values, the first one in the table is
+			// the most popular, so keep table order.
+			Map<String, List<String>> building = new HashMap<String, List<String>>();
+			for (String[] row : TABLE) {
+				String key = row[keyColumn].toLowerCase(Locale.US);
+				List<String> forKey = building.get(key);
+				if (forKey == null) {
+					forKey = new ArrayList<String>();
+					building.put(key, forKey);
+				}
+				if (!forKey.contains(row[valueColumn])) {
+					forKey.add(row[valueColumn]);
+				}
+			}
+			for (Map.Entry<String, List<String>> entry : building.entrySet()) {
+				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+			}
+			values = Collections.unmodifiableMap(building);
+		}
+
+		/**
+		 * @return the values for the key in any case, or null if there are none
+		 */
+		List<String> get(String key) {
+			if (key == null || key.isEmpty()) {
+				return null;
+			}
+			List<String> found = values.get(key);
+			if (found == null) {
+				found = values.get(key.toLowerCase(Locale.US));
+			}
+			return found;
+		}
+	}
+
+	private static final Set<String> allExtensions = Collections.unmodifiableSet(
+			new TreeSet<String>(extensions.values.keySet()));
+
+	/**
+	 * @return every extension with a registered MIME type, in lower case
+	 */
+	public static Set<String> getAllExtensions(){
+		return allExtensions;
+	}
+
+	private MediaTypeUtils() {
+	}
+
+	/**
+	 * Returns true if the given MIME type has an entry in the map.
+	 *
+	 * @param mimeType A MIME type (i.e. text/plain)
+	 * @return True iff there is a mimeType entry in the map.
+	 */
+	public static boolean hasMimeType(String mimeType) {
+		return mimeTypes.get(mimeType) != null;
+	}
+
+	/**
+	 * Returns the MIME type for the given extension.
+	 *
+	 * @param extension A file extension without the leading '.'
+	 * @return The MIME type for the given extension or null iff there is none.
+	 */
+	public static String guessMimeTypeFromExtension(String extension) {
+		List<String> found = extensions.get(extension);
+		return found != null ? found.get(0) : null;
+	}
+
+	/**
+	 * @return The MIME types for the given extension, most popular first.
+	 * Empty if there are none.
+	 */
+	public static List<String> getMimeTypesFromExtension(String extension) {
+		List<String> found = extensions.get(extension);
+		return found != null ? found : Collections.<String>emptyList();
+	}
+
+	/**
+	 * Returns true if the given extension has a registered MIME type.
+	 *
+	 * @param extension A file extension without the leading '.'
+	 * @return True iff there is an extension entry in the map.
+	 */
+	public static boolean hasExtension(String extension) {
+		return extensions.get(extension) != null;
+	}
+
+	/**
+	 * Returns the registered extension for the given MIME type. Note that some
+	 * MIME types map to multiple extensions. This call will return the most
+	 * common extension for the given MIME type.
+	 *
+	 * @param mimeType A MIME type (i.e. text/plain)
+	 * @return The extension for the given MIME type or null iff there is none.
+	 */
+	public static String guessExtensionFromMimeType(String mimeType) {
+		List<String> found = mimeTypes.get(mimeType);
+		return found != null ? found.get(0) : null;
+	}
+
+	/**
+	 * @return The extensions for the given MIME type, most popular first.
+	 * Empty if there are none.
+	 */
+	public static List<String> getExtensionsFromMimeType(String mimeType) {
+		List<String> found = mimeTypes.get(mimeType);
+		return found != null ? found : Collections.<String>emptyList();
+	}
+}
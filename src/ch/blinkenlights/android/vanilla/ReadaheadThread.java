@@ -24,6 +24,8 @@ import android.os.Message;
 import android.os.Process;
 import android.util.Log;
 
+import com.smithdtyler.prettygoodmusicplayer.Metrics;
+
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -107,6 +109,7 @@ public class ReadaheadThread implements Handler.Callback {
                         FileInputStream fis = new FileInputStream(path);
                         mFis = fis;
                         mPath = path;
+                        Metrics.READAHEAD_FILES.increment();
                     } catch (FileNotFoundException e) {
                         Log.e("VanillaMusic", "Failed to open file "+path+": "+e);
                     }
@@ -119,12 +122,15 @@ public class ReadaheadThread implements Handler.Callback {
             }
             case MSG_READ_CHUNK: {
                 int bytesRead = -1;
+                long start = System.nanoTime();
                 try {
                     bytesRead = mFis.read(mScratch);
                 } catch (IOException e) {
                     // fs error or eof: stop in any case
                 }
                 if (bytesRead >= 0) {
+                    Metrics.READAHEAD_READ.record(Metrics.microsSince(start));
+                    Metrics.READAHEAD_BYTES.add(bytesRead);
                     mHandler.sendEmptyMessageDelayed(MSG_READ_CHUNK, MS_DELAY_PER_READ);
                 } else {
                     Log.d("VanillaMusic", "Readahead for "+mPath+" finished");
@@ -20,6 +20,7 @@ package com.smithdtyler.prettygoodmusicplayer;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -42,6 +43,7 @@ public abstract class AbstractMusicList extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidPlatform.init(this);
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction("com.smithdtyler.ACTION_EXIT");
         exitReceiver = new BroadcastReceiver(){
@@ -65,6 +67,15 @@ public abstract class AbstractMusicList extends Activity {
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // The thumbnails are cheap to get back from the disk cache
+            ArtworkCache.trimMemory();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
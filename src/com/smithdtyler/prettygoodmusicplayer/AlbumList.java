@@ -20,13 +20,14 @@ package com.smithdtyler.prettygoodmusicplayer;
 
 import android.app.ActionBar;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 import android.widget.TextView;
@@ -52,31 +53,29 @@ public class AlbumList extends AbstractMusicList {
 	private String currentSize;
 
 	private List<File> albumFiles = null;
+	private ScanAlbumsTask scanTask;
+
 	/**
-	 *
-	 * @param artistName
-	 * @param artistPath
+	 * Find the albums to list. This walks the storage device and may read the
+	 * start of every song file, so keep it off the UI thread.
 	 */
-	private void populateAlbums(String artistName, String artistPath){
-		albums = new ArrayList<Map<String,String>>();
-		
+	private static List<File> scanAlbums(String artistPath, File baseDir){
 		File artist = new File(artistPath);
-		Log.d(TAG, "storage directory = " + artist);
+		if (EventTrace.DEBUG) {
+			Log.d(TAG, "storage directory = " + artist);
+		}
 
+		List<File> albumFiles;
 		if(!artist.isDirectory() || (artist.listFiles() == null)){
 			Log.i(TAG, "Non-directory artist provided: " +  artistPath);
 			// Assume they meant to use all albums.
-            SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-            File bestGuessMusicDir = Utils.getBestGuessMusicDirectory();
-            String prefDir = prefs.getString("ARTIST_DIRECTORY", bestGuessMusicDir.getAbsolutePath());
-            File baseDir = new File(prefDir);
             albumFiles = Utils.getAllAlbumsInDirRecursive(baseDir);
 		} else {
             albumFiles = new ArrayList<File>();
             for(File albumFile : artist.listFiles()){
                 if(Utils.isValidAlbumDirectory(albumFile)){
                     albumFiles.add(albumFile);
-                } else {
+                } else if (EventTrace.VERBOSE) {
                     Log.v(TAG, "Found invalid album " + albumFile);
                 }
             }
@@ -92,10 +91,17 @@ public class AlbumList extends AbstractMusicList {
 		});
 		
 		albumFiles.add(0,new File("All"));
-		
+		return albumFiles;
+	}
+
+	private void showAlbums(List<File> scanned, String artistPath){
+		albumFiles = scanned;
+		albums.clear();
 		for(File albumFile : albumFiles){
 			String album = albumFile.getName();
-			Log.v(TAG, "Adding album " + album);
+			if (EventTrace.VERBOSE) {
+				Log.v(TAG, "Adding album " + album);
+			}
 			Map<String,String> map = new HashMap<String, String>();
 			map.put("album", album);			
 			albums.add(map);
@@ -107,12 +113,52 @@ public class AlbumList extends AbstractMusicList {
        	 Intent intent = new Intent(AlbumList.this, SongList.class);
 		 intent.putExtra(ALBUM_NAME, "All");
 		 intent.putExtra(ALBUM_PATH, "All");
-       	 intent.putExtra(ArtistList.ARTIST_NAME, artist.getName());
+       	 intent.putExtra(ArtistList.ARTIST_NAME, new File(artistPath).getName());
        	 intent.putExtra(ArtistList.ARTIST_ABS_PATH_NAME, artistPath);
        	 startActivity(intent);
        	 // In this case we don't want to add the AlbumList to the back stack
        	 // so call 'finish' immediately.
        	 finish();
+       	 return;
+		}
+		listAdapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * Scans for the artist's albums, then shows them.
+	 */
+	private class ScanAlbumsTask extends AsyncTask<Void, Void, List<File>> {
+		private final String artistPath;
+		private final File baseDir;
+
+		ScanAlbumsTask(String artistPath, File baseDir){
+			this.artistPath = artistPath;
+			this.baseDir = baseDir;
+		}
+
+		@Override
+		protected List<File> doInBackground(Void... params) {
+			// Don't list songs that the probe is about to rule out
+			CodecRegistry.awaitDecodableTypes();
+			List<File> scanned = null;
+			long traceStart = EventTrace.begin(EventTrace.SCAN_ALBUMS);
+			try {
+				scanned = scanAlbums(artistPath, baseDir);
+			} finally {
+				EventTrace.end(EventTrace.SCAN_ALBUMS, traceStart, scanned == null ? 0 : scanned.size());
+			}
+			return scanned;
+		}
+
+		@Override
+		protected void onPostExecute(List<File> scanned) {
+			if(scanTask == this){
+				scanTask = null;
+			}
+			if(isCancelled()){
+				return;
+			}
+			showAlbums(scanned, artistPath);
 		}
 	}
 
@@ -126,9 +172,9 @@ public class AlbumList extends AbstractMusicList {
 		ActionBar actionBar = getActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
 		actionBar.setTitle(artist);
-		SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
+		Config config = Config.get(this);
+        String theme = config.theme;
+        String size = config.textSize;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "got configured size " + size);
         currentTheme = theme;
@@ -159,9 +205,28 @@ public class AlbumList extends AbstractMusicList {
 	    Log.i(TAG, "Getting albums for " + artist);
 
 	    final String artistPath = intent.getStringExtra(ArtistList.ARTIST_ABS_PATH_NAME);
-	    populateAlbums(artist, artistPath);
+	    albums = new ArrayList<Map<String,String>>();
+	    albumFiles = new ArrayList<File>();
         
-        listAdapter = new SimpleAdapter(this, albums, R.layout.pgmp_list_item, new String[] {"album"}, new int[] {R.id.PGMPListItemText});
+        final ArtworkCache artwork = ArtworkCache.get(this);
+        final int artSize = getResources().getDimensionPixelSize(R.dimen.album_art_thumb);
+        listAdapter = new SimpleAdapter(this, albums, R.layout.pgmp_album_list_item, new String[] {"album"}, new int[] {R.id.PGMPListItemText}){
+			@Override
+			public View getView(int position, View convertView, ViewGroup parent) {
+				View row = super.getView(position, convertView, parent);
+				// Art is only fetched for rows as they're shown
+				ImageView art = (ImageView) row.findViewById(R.id.PGMPListItemArt);
+				if (position == 0) {
+					// The "All" row
+					art.setTag(null);
+					art.setImageDrawable(null);
+					art.setVisibility(View.INVISIBLE);
+				} else {
+					artwork.load(albumFiles.get(position), art, artSize);
+				}
+				return row;
+			}
+        };
 	    ListView lv = (ListView) findViewById(R.id.albumListView);
         lv.setAdapter(listAdapter);
         
@@ -179,16 +244,27 @@ public class AlbumList extends AbstractMusicList {
             	 startActivity(intent);
              }
         });
-        
 
+        // The list fills in once the scan is done
+        scanTask = new ScanAlbumsTask(artistPath, new File(config.musicDirectory));
+        scanTask.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if(scanTask != null){
+			scanTask.cancel(false);
+			scanTask = null;
+		}
 	}
 	
     @Override
 	protected void onResume() {
 		super.onResume();
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
+        Config config = Config.get(this);
+        String theme = config.theme;
+        String size = config.textSize;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "Got configured size " + size);
         if(currentTheme == null){
@@ -0,0 +1,116 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Connects the core module to Android: logging goes to logcat, the codec
+ * probe feeds the scanner, the scanner's format cache lives in the app's
+ * cache directory, and the resume store lives in its files directory.
+ */
+final class AndroidPlatform {
+	private static boolean initialized = false;
+	private static ResumeStore resumeStore;
+	private static SongIndexStore songIndexStore;
+
+	private static final CoreLog.Sink LOGCAT = new CoreLog.Sink() {
+		@Override
+		public void info(String tag, String message) {
+			Log.i(tag, message);
+		}
+
+		@Override
+		public void warn(String tag, String message, Throwable error) {
+			if (error == null) {
+				Log.w(tag, message);
+			} else {
+				Log.w(tag, message, error);
+			}
+		}
+	};
+
+	private AndroidPlatform() {
+	}
+
+	/**
+	 * Set up the core module for this process. Safe to call more than once.
+	 */
+	static synchronized void init(Context context) {
+		if (initialized) {
+			return;
+		}
+		initialized = true;
+		CoreLog.setSink(LOGCAT);
+		CodecRegistry.init(context);
+		LibraryScanner.setFormatCache(new FormatCache(new File(context.getCacheDir(), FormatCache.FILE_NAME)));
+	}
+
+	/**
+	 * Get the resume store, loading it (and importing any resume positions
+	 * from older versions) the first time it's used.
+	 */
+	static synchronized ResumeStore getResumeStore(Context context) {
+		if (resumeStore == null) {
+			init(context);
+			File journal = new File(context.getFilesDir(), ResumeStore.JOURNAL_NAME);
+			boolean existed = journal.exists();
+			resumeStore = new ResumeStore(journal, Config.get(context).bookmarkLimit);
+			if (!existed) {
+				SharedPreferences prefs = context.getSharedPreferences("PrettyGoodMusicPlayer", Context.MODE_PRIVATE);
+				List<String> imported = resumeStore.importLegacyPositions(prefs.getAll());
+				if (!imported.isEmpty()) {
+					SharedPreferences.Editor editor = prefs.edit();
+					for (String key : imported) {
+						editor.remove(key);
+					}
+					editor.apply();
+				}
+			}
+			final ResumeStore store = resumeStore;
+			Config.addOnConfigChangeListener(new Config.OnConfigChangeListener() {
+				@Override
+				public void onConfigChanged(Config oldConfig, Config newConfig) {
+					if (oldConfig.bookmarkLimit != newConfig.bookmarkLimit) {
+						store.setLimit(newConfig.bookmarkLimit);
+					}
+				}
+			});
+		}
+		return resumeStore;
+	}
+
+	/**
+	 * Get the store of per song seek indexes and chapters, shared by the
+	 * service and the lists so they share its memory cache too.
+	 */
+	static synchronized SongIndexStore getSongIndexStore(Context context) {
+		if (songIndexStore == null) {
+			init(context);
+			songIndexStore = new SongIndexStore(new File(context.getCacheDir(), "seekindex"),
+					SongIndexStore.DEFAULT_MAX_BYTES);
+		}
+		return songIndexStore;
+	}
+}
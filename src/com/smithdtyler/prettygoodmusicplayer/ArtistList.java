@@ -24,8 +24,8 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -35,7 +35,14 @@ import android.widget.ListView;
 import android.widget.SimpleAdapter;
 import android.widget.TextView;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -50,25 +57,35 @@ import java.util.Map;
 	public static final String ARTIST_ABS_PATH_NAME = "ARTIST_PATH";
 	
 	private static final String PICK_DIR_TEXT = "Click to configure...";
+	private static final String ARTIST_CACHE_NAME = "artist_list.cache";
+	private static final int ARTIST_CACHE_VERSION = 1;
 
 	private List<Map<String,String>> artists;
 	private SimpleAdapter simpleAdpt;
 	private String baseDir;
+	// What the list currently shows, so a verification pass can tell whether anything changed
+	private List<String> shownArtists;
+	private String shownBaseDir;
+	private VerifyArtistsTask verifyTask;
 	private Object currentTheme;
 	private String currentSize;
 
-	private void populateArtists(String baseDir){
-		artists = new ArrayList<Map<String,String>>();
+	/**
+	 * List the artist directories under baseDir, sorted for display, with
+	 * "All" first. This walks the storage device, so keep it off the UI thread.
+	 * @return the artist names, or an empty list if there's nothing to show
+	 */
+	static List<String> scanArtists(String baseDir, final boolean ignoreleadingthe){
+		List<String> artistDirs = new ArrayList<String>();
 		File f = new File(baseDir);
 		if(!f.exists() || !f.isDirectory()){
 			Log.e(TAG, "Storage directory " + f + " does not exist!");
-			return;
+			return artistDirs;
 		}
-		
-		List<String> artistDirs = new ArrayList<String>();
 
-		if(f.listFiles() != null) {
-			for (File dir : f.listFiles()) {
+		File[] files = f.listFiles();
+		if(files != null) {
+			for (File dir : files) {
 				if (Utils.isValidArtistDirectory(dir)) {
 					artistDirs.add(dir.getName());
 				}
@@ -78,8 +95,6 @@ import java.util.Map;
 
 				@Override
 				public int compare(String arg0, String arg1) {
-					SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(ArtistList.this);
-					boolean ignoreleadingthe = sharedPref.getBoolean("ignore_leading_the_in_artist", false);
 					if (ignoreleadingthe) {
 						if (arg0.toLowerCase().startsWith("the ")) {
 							arg0 = arg0.substring(4);
@@ -94,39 +109,55 @@ import java.util.Map;
 			});
 
             artistDirs.add(0,"All");
-
-			for (String artist : artistDirs) {
-				Log.v(TAG, "Adding artist " + artist);
-				// listview requires a map
-				Map<String, String> map = new HashMap<String, String>();
-				map.put("artist", artist);
-				artists.add(map);
-			}
 		}
+		return artistDirs;
+	}
 
-		if(!f.exists() || artistDirs.isEmpty()){
+	/**
+	 * Show the given artist names, or the configure prompt if there aren't any.
+	 */
+	private void showArtists(List<String> artistNames){
+		artists.clear();
+		for (String artist : artistNames) {
+			// listview requires a map
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("artist", artist);
+			artists.add(map);
+		}
+		if(artistNames.isEmpty()){
 			Map<String, String> map = new HashMap<String, String>();
 			map.put("artist", PICK_DIR_TEXT);
 			artists.add(map);
 		}
+		shownArtists = artistNames;
+		simpleAdpt.notifyDataSetChanged();
 	}
-	
-    @Override
-	protected void onResume() {
-		super.onResume();
+
+	/**
+	 * Show the artists under baseDir. The list is drawn straight away from
+	 * what was shown last time, then checked against the storage device in
+	 * the background and updated if anything changed.
+	 */
+	private void loadArtists(){
+		boolean ignoreleadingthe = Config.get(this).ignoreLeadingThe;
+		// If the sort order changed, keep showing the old list until the new one is ready
+		if(shownArtists == null || !baseDir.equals(shownBaseDir)){
+			List<String> cached = readArtistCache(baseDir, ignoreleadingthe);
+			Log.i(TAG, "Starting from " + (cached == null ? "an empty list" : cached.size() + " cached artists"));
+			showArtists(cached == null ? new ArrayList<String>() : cached);
+			shownBaseDir = baseDir;
+			restoreListPosition();
+		}
+		if(verifyTask != null){
+			verifyTask.cancel(false);
+		}
+		verifyTask = new VerifyArtistsTask(baseDir, ignoreleadingthe, shownArtists);
+		verifyTask.execute();
+	}
+
+	private void restoreListPosition(){
         SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-        prefs.edit();
-        File bestGuessMusicDir = Utils.getBestGuessMusicDirectory();
-        String prefDir = prefs.getString("ARTIST_DIRECTORY", bestGuessMusicDir.getAbsolutePath());
         ListView lv = (ListView) findViewById(R.id.artistListView);
-        if(!prefDir.equals(baseDir)){
-        	baseDir = prefDir;
-        	populateArtists(baseDir);
-            
-            simpleAdpt = new SimpleAdapter(this, artists,  R.layout.pgmp_list_item, new String[] {"artist"}, new int[] {R.id.PGMPListItemText});
-            lv.setAdapter(simpleAdpt);
-        }
-        
         int top = prefs.getInt("ARTIST_LIST_TOP", Integer.MIN_VALUE);
         int index = prefs.getInt("ARTIST_LIST_INDEX", Integer.MIN_VALUE);
         if(top > Integer.MIN_VALUE && index > Integer.MIN_VALUE){
@@ -135,10 +166,142 @@ import java.util.Map;
         } else {
         	Log.i(TAG, "No saved position found");
         }
+	}
+
+	/**
+	 * Scans the artist directory and swaps in the result if it differs from
+	 * what's on screen.
+	 */
+	private class VerifyArtistsTask extends AsyncTask<Void, Void, List<String>> {
+		private final String dir;
+		private final boolean ignoreleadingthe;
+		private final List<String> shown;
+
+		VerifyArtistsTask(String dir, boolean ignoreleadingthe, List<String> shown){
+			this.dir = dir;
+			this.ignoreleadingthe = ignoreleadingthe;
+			this.shown = shown;
+		}
+
+		@Override
+		protected List<String> doInBackground(Void... params) {
+			long start = System.nanoTime();
+			List<String> scanned = null;
+			long traceStart = EventTrace.begin(EventTrace.SCAN_ARTISTS);
+			try {
+				scanned = scanArtists(dir, ignoreleadingthe);
+			} finally {
+				EventTrace.end(EventTrace.SCAN_ARTISTS, traceStart, scanned == null ? 0 : scanned.size());
+			}
+			long micros = Metrics.microsSince(start);
+			Metrics.SCAN_ARTISTS.record(micros);
+			Log.i(TAG, "Scanned " + scanned.size() + " artists in " + micros / 1000 + "ms");
+			if(scanned.equals(shown)){
+				return null;
+			}
+			writeArtistCache(dir, ignoreleadingthe, scanned);
+			return scanned;
+		}
+
+		@Override
+		protected void onPostExecute(List<String> scanned) {
+			if(verifyTask == this){
+				verifyTask = null;
+			}
+			if(scanned == null || isCancelled() || !dir.equals(shownBaseDir)){
+				return;
+			}
+			Log.i(TAG, "Artist list changed, updating");
+			boolean wasEmpty = shownArtists.isEmpty();
+			showArtists(scanned);
+			if(wasEmpty){
+				restoreListPosition();
+			}
+		}
+	}
+
+	private File artistCacheFile(){
+		return new File(getFilesDir(), ARTIST_CACHE_NAME);
+	}
+
+	/**
+	 * @return the artist names saved for this directory, or null if there aren't any
+	 */
+	private List<String> readArtistCache(String dir, boolean ignoreleadingthe){
+		File file = artistCacheFile();
+		if(!file.exists()){
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(in.readInt() != ARTIST_CACHE_VERSION || !in.readUTF().equals(dir) || in.readBoolean() != ignoreleadingthe){
+				return null;
+			}
+			int count = in.readInt();
+			List<String> names = new ArrayList<String>(count);
+			for(int i = 0; i < count; i++){
+				names.add(in.readUTF());
+			}
+			return names;
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read the artist cache", e);
+			return null;
+		} finally {
+			if(in != null){
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	private void writeArtistCache(String dir, boolean ignoreleadingthe, List<String> names){
+		File file = artistCacheFile();
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(ARTIST_CACHE_VERSION);
+			out.writeUTF(dir);
+			out.writeBoolean(ignoreleadingthe);
+			out.writeInt(names.size());
+			for(String name : names){
+				out.writeUTF(name);
+			}
+			out.close();
+			out = null;
+			if(!temp.renameTo(file)){
+				Log.w(TAG, "Unable to replace the artist cache");
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to write the artist cache", e);
+		} finally {
+			if(out != null){
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+    @Override
+	protected void onResume() {
+		super.onResume();
+        Config config = Config.get(this);
+        String prefDir = config.musicDirectory;
+        if(!prefDir.equals(baseDir)){
+        	baseDir = prefDir;
+        	loadArtists();
+        }
+        restoreListPosition();
 
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
+        String theme = config.theme;
+        String size = config.textSize;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "Got configured size " + size);
         if(currentTheme == null){
@@ -170,26 +333,30 @@ import java.util.Map;
 	@Override
 	protected void onStart() {
 		super.onStart();
-        SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-        Log.i(TAG, "Preferences " + prefs + " " + ((Object)prefs));
-        baseDir = prefs.getString("ARTIST_DIRECTORY", new File(Environment.getExternalStorageDirectory(), "Music").getAbsolutePath());
-        Log.d(TAG, "Got configured base directory of " + baseDir);
-
-        populateArtists(baseDir);
-        
-        simpleAdpt = new SimpleAdapter(this, artists, R.layout.pgmp_list_item, new String[] {"artist"}, new int[] {R.id.PGMPListItemText});
-        ListView lv = (ListView) findViewById(R.id.artistListView);
-        lv.setAdapter(simpleAdpt);
+        baseDir = Config.get(this).musicDirectory;
+        if (EventTrace.DEBUG) {
+        	Log.d(TAG, "Got configured base directory of " + baseDir);
+        }
+        loadArtists();
     }
 
+	@Override
+	protected void onStop() {
+		super.onStop();
+		if(verifyTask != null){
+			verifyTask.cancel(false);
+			verifyTask = null;
+		}
+	}
+
 	@Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         PreferenceManager.setDefaultValues(this, R.xml.pretty_good_preferences, false);
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
+        Config config = Config.get(this);
+        String theme = config.theme;
+        String size = config.textSize;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "got configured size " + size);
         currentTheme = theme;
@@ -217,6 +384,9 @@ import java.util.Map;
         setContentView(R.layout.activity_artist_list);
         
         ListView lv = (ListView) findViewById(R.id.artistListView);
+        artists = new ArrayList<Map<String,String>>();
+        simpleAdpt = new SimpleAdapter(this, artists, R.layout.pgmp_list_item, new String[] {"artist"}, new int[] {R.id.PGMPListItemText});
+        lv.setAdapter(simpleAdpt);
 
         // React to user clicks on item
         lv.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -0,0 +1,368 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Album art thumbnails, loaded off the UI thread.
+ *
+ * Bitmaps are decoded with inSampleSize so a 3000px cover never exists in
+ * memory at full size, then kept in an LRU memory cache. Each decoded
+ * thumbnail is also written as a small JPEG to a size capped disk cache, so
+ * the next time the list is shown nothing has to be found in, or decoded
+ * from, the music files again.
+ */
+final class ArtworkCache {
+	private static final String TAG = "ArtworkCache";
+
+	private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+	private static final int JPEG_QUALITY = 85;
+	// Remembered "no art here" answers, so rows without art stay cheap
+	private static final int MAX_MISSING = 1024;
+
+	private static ArtworkCache instance;
+
+	private final File diskDir;
+	// Bytes in diskDir, or -1 until it's first needed; guarded by diskDir
+	private long diskBytes = -1;
+
+	private final LruCache<String, Bitmap> memory;
+	private final LruCache<String, Boolean> missing = new LruCache<String, Boolean>(MAX_MISSING);
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	private final ExecutorService loader = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "ArtworkLoader");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private ArtworkCache(Context context) {
+		diskDir = new File(context.getCacheDir(), "artwork");
+		// An eighth of the heap, measured in bytes of bitmap
+		int memoryBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+		memory = new LruCache<String, Bitmap>(memoryBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+		};
+	}
+
+	static synchronized ArtworkCache get(Context context) {
+		if (instance == null) {
+			instance = new ArtworkCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * Show the art for a song, or an album directory, in the view. The view
+	 * is cleared until the art is ready; if it gets reused for something
+	 * else before then (a recycled list row) the result is dropped.
+	 * @param size the largest width or height wanted, in pixels
+	 */
+	void load(File source, ImageView view, int size) {
+		String key = source.getAbsolutePath() + "#" + size;
+		view.setTag(key);
+		Bitmap bitmap = memory.get(key);
+		if (bitmap != null) {
+			Metrics.ARTWORK_MEMORY_HITS.increment();
+			show(view, bitmap);
+			return;
+		}
+		show(view, null);
+		if (missing.get(key) != null) {
+			return;
+		}
+		loader.execute(new LoadTask(key, source, size, view));
+	}
+
+	/**
+	 * Drop the in-memory thumbnails, e.g. when the system is low on memory.
+	 * The disk cache stays.
+	 */
+	static synchronized void trimMemory() {
+		if (instance != null) {
+			instance.memory.evictAll();
+		}
+	}
+
+	private static void show(ImageView view, Bitmap bitmap) {
+		if (bitmap == null) {
+			view.setImageDrawable(null);
+			view.setVisibility(View.INVISIBLE);
+		} else {
+			view.setImageBitmap(bitmap);
+			view.setVisibility(View.VISIBLE);
+		}
+	}
+
+	private class LoadTask implements Runnable {
+		private final String key;
+		private final File source;
+		private final int size;
+		// Queued tasks shouldn't keep a finished activity around
+		private final WeakReference<ImageView> viewRef;
+
+		LoadTask(String key, File source, int size, ImageView view) {
+			this.key = key;
+			this.source = source;
+			this.size = size;
+			this.viewRef = new WeakReference<ImageView>(view);
+		}
+
+		@Override
+		public void run() {
+			// Rows scrolled past before we got to them aren't worth loading
+			if (target() == null) {
+				return;
+			}
+			final Bitmap bitmap = loadBitmap(key, source, size);
+			if (bitmap == null) {
+				missing.put(key, Boolean.TRUE);
+				Metrics.ARTWORK_MISSING.increment();
+				return;
+			}
+			memory.put(key, bitmap);
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					ImageView view = target();
+					if (view != null) {
+						show(view, bitmap);
+					}
+				}
+			});
+		}
+
+		/**
+		 * @return the view, if it's still showing what we're loading
+		 */
+		private ImageView target() {
+			ImageView view = viewRef.get();
+			return view != null && key.equals(view.getTag()) ? view : null;
+		}
+	}
+
+	private Bitmap loadBitmap(String key, File source, int size) {
+		Bitmap bitmap = memory.get(key);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		// Keyed on the modification time too, so replaced art gets noticed
+		File cached = new File(diskDir, Long.toHexString(hash(key + "@" + source.lastModified())) + ".jpg");
+		if (cached.isFile()) {
+			// An empty file means we looked before and there was no art
+			if (cached.length() == 0) {
+				return null;
+			}
+			bitmap = BitmapFactory.decodeFile(cached.getAbsolutePath(), null);
+			if (bitmap != null) {
+				Metrics.ARTWORK_DISK_HITS.increment();
+				cached.setLastModified(System.currentTimeMillis());
+				return bitmap;
+			}
+		}
+
+		long start = System.nanoTime();
+		ArtworkLocator.Artwork art = source.isDirectory()
+				? ArtworkLocator.forAlbum(source) : ArtworkLocator.forSong(source);
+		if (art != null) {
+			try {
+				bitmap = decode(art, size);
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to read art from " + art, e);
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "Not enough memory to decode " + art);
+			}
+		}
+		Metrics.ARTWORK_DECODE.record(Metrics.microsSince(start));
+		writeToDisk(cached, bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Decode at the smallest power of two scale that's still at least the
+	 * requested size, then scale the rest of the way.
+	 */
+	private static Bitmap decode(ArtworkLocator.Artwork art, int size) throws IOException {
+		byte[] data = art.isWholeFile() ? null : ArtworkLocator.read(art);
+		String path = art.file.getAbsolutePath();
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		if (data == null) {
+			BitmapFactory.decodeFile(path, options);
+		} else {
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		}
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+		int sampleSize = 1;
+		while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap bitmap = data == null
+				? BitmapFactory.decodeFile(path, options)
+				: BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (bitmap == null) {
+			return null;
+		}
+		int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+		if (longest > size) {
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+					Math.max(1, bitmap.getWidth() * size / longest),
+					Math.max(1, bitmap.getHeight() * size / longest), true);
+			if (scaled != bitmap) {
+				bitmap.recycle();
+			}
+			bitmap = scaled;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Save a thumbnail (or an empty file for "no art"), then trim the
+	 * oldest files if the cache has grown past its cap.
+	 */
+	private void writeToDisk(File cached, Bitmap bitmap) {
+		synchronized (diskDir) {
+			if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+				return;
+			}
+			File temp = new File(diskDir, cached.getName() + ".tmp");
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(temp);
+				if (bitmap != null) {
+					bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+				}
+				out.close();
+				out = null;
+				if (!temp.renameTo(cached)) {
+					temp.delete();
+					return;
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to cache " + cached, e);
+				temp.delete();
+				return;
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+			if (diskBytes < 0) {
+				diskBytes = 0;
+				File[] files = diskDir.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						diskBytes += f.length();
+					}
+				}
+			} else {
+				diskBytes += cached.length();
+			}
+			if (diskBytes > MAX_DISK_BYTES) {
+				trimDisk();
+			}
+		}
+	}
+
+	// Delete least recently used files until we're well under the cap
+	private void trimDisk() {
+		File[] files = diskDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				// Long.compare needs API 19
+				return modified[lhs] < modified[rhs] ? -1 : (modified[lhs] == modified[rhs] ? 0 : 1);
+			}
+		});
+		long target = MAX_DISK_BYTES * 3 / 4;
+		for (Integer i : order) {
+			if (diskBytes <= target) {
+				break;
+			}
+			long length = files[i].length();
+			if (files[i].delete()) {
+				diskBytes -= length;
+			}
+		}
+		if (EventTrace.DEBUG) {
+			Log.d(TAG, "Trimmed the disk cache to " + diskBytes + " bytes");
+		}
+	}
+
+	// 64 bit FNV-1a, for file names
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,260 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import libcore.net.MediaTypeUtils;
+
+/**
+ * Knows which audio formats this device can decode.
+ *
+ * Walking MediaCodecList is slow, and the answer only changes when the
+ * system is updated. So the probe runs once on a background thread, and
+ * the result is saved along with Build.FINGERPRINT and reused on every
+ * later start until the fingerprint changes. Until the first answer is
+ * available, every known audio extension is treated as decodable, so the
+ * song and album scans wait for it first.
+ */
+final class CodecRegistry {
+	private static final String TAG = "CodecRegistry";
+
+	private static final String CACHE_NAME = "codecs.cache";
+	private static final int CACHE_VERSION = 1;
+
+	/**
+	 * Types the framework plays without going through a MediaCodec. MIDI is
+	 * synthesized, WAV and raw PCM are parsed by the extractor, and before
+	 * API 26 the FLAC extractor decodes FLAC itself, so there's no
+	 * audio/flac decoder to find.
+	 */
+	private static final String[] ALWAYS_DECODABLE = { "audio/midi", "audio/wav", "audio/raw", "audio/flac" };
+
+	/**
+	 * How long a scan waits for the probe before going ahead with every
+	 * known extension.
+	 */
+	private static final long PROBE_WAIT_MS = 10000;
+
+	private static volatile boolean started = false;
+	// Null until the probe (or the saved result) is available
+	private static volatile Set<String> decodableTypes;
+	private static volatile boolean fromCache;
+	// Released once the decodable types are known, or the probe has failed
+	private static final CountDownLatch probed = new CountDownLatch(1);
+
+	private CodecRegistry() {
+	}
+
+	/**
+	 * Start loading the decodable formats in the background, if that hasn't
+	 * already happened in this process.
+	 */
+	static synchronized void init(Context context) {
+		if (started) {
+			return;
+		}
+		started = true;
+		final File cache = new File(context.getApplicationContext().getFilesDir(), CACHE_NAME);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					Set<String> types = readCache(cache);
+					fromCache = types != null;
+					if (types == null) {
+						types = probe();
+						writeCache(cache, types);
+					}
+					publish(types);
+					Log.i(TAG, "Found " + types.size() + " decodable types in "
+							+ (System.currentTimeMillis() - start) + "ms" + (fromCache ? " (cached)" : ""));
+				} finally {
+					probed.countDown();
+				}
+			}
+		}, "CodecProbe");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * @return the decodable media types, or null if they aren't known yet
+	 */
+	static Set<String> getDecodableTypes() {
+		return decodableTypes;
+	}
+
+	/**
+	 * Wait until the decodable types are known, so that a scan lists the
+	 * same songs whether it starts before or after the probe finishes.
+	 * This can take a second or so on the first start after an update, so
+	 * only call it off the UI thread.
+	 */
+	static void awaitDecodableTypes() {
+		if (!started || decodableTypes != null) {
+			return;
+		}
+		try {
+			if (!probed.await(PROBE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				Log.w(TAG, "Codec probe is taking too long, scanning without it");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void publish(Set<String> types) {
+		Set<String> extensions = new HashSet<>();
+		for (String mediaType : types) {
+			List<String> forType = MediaTypeUtils.getExtensionsFromMimeType(mediaType);
+			if (forType == null || forType.isEmpty()) {
+				Log.w(TAG, "Media type " + mediaType + " doesn't have any associated extension.");
+			} else {
+				extensions.addAll(forType);
+			}
+		}
+		for (String mediaType : ALWAYS_DECODABLE) {
+			List<String> forType = MediaTypeUtils.getExtensionsFromMimeType(mediaType);
+			if (forType != null) {
+				extensions.addAll(forType);
+			}
+		}
+		LibraryScanner.setDecodableExtensions(Collections.unmodifiableSet(extensions));
+		decodableTypes = Collections.unmodifiableSet(types);
+	}
+
+	/**
+	 * Retrieve decodeable media types in the system
+	 * @return A set containing the supported media types
+	 */
+	private static Set<String> probe() {
+		// These MediaCodecList methods are deprecated in API 21, but the newer
+		// ones aren't supported in API < 21
+		int numCodecs = MediaCodecList.getCodecCount();
+		Set<String> supportedMediaTypes = new HashSet<>();
+
+		for (int codec = 0; codec < numCodecs; codec++) {
+			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(codec);
+
+			if (codecInfo.isEncoder()) {
+				continue;
+			}
+
+			for (String type : codecInfo.getSupportedTypes()) {
+				if (type.startsWith("audio/") && supportedMediaTypes.add(type) && EventTrace.DEBUG) {
+					Log.d(TAG, type + " is decodeable by " + codecInfo.getName());
+				}
+			}
+		}
+		return supportedMediaTypes;
+	}
+
+	private static Set<String> readCache(File cache) {
+		if (!cache.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+			if (in.readInt() != CACHE_VERSION || !in.readUTF().equals(Build.FINGERPRINT)) {
+				Log.i(TAG, "Saved codec list is from another build, probing again");
+				return null;
+			}
+			int count = in.readInt();
+			Set<String> types = new HashSet<>();
+			for (int i = 0; i < count; i++) {
+				types.add(in.readUTF());
+			}
+			return types;
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read the saved codec list", e);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private static void writeCache(File cache, Set<String> types) {
+		File temp = new File(cache.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(CACHE_VERSION);
+			out.writeUTF(Build.FINGERPRINT);
+			out.writeInt(types.size());
+			for (String type : types) {
+				out.writeUTF(type);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(cache)) {
+				Log.w(TAG, "Unable to save the codec list");
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to save the codec list", e);
+		} finally {
+			close(out);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	static void dump(PrintWriter writer) {
+		Set<String> types = decodableTypes;
+		writer.println("Codecs:");
+		if (types == null) {
+			writer.println("  not probed yet");
+		} else {
+			writer.println("  " + (fromCache ? "cached" : "probed") + " for " + Build.FINGERPRINT);
+			writer.println("  types: " + types);
+			writer.println("  extensions: " + LibraryScanner.getDecodableExtensions());
+		}
+	}
+}
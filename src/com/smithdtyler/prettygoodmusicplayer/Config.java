@@ -0,0 +1,178 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An immutable snapshot of the user's settings. One snapshot is shared by the
+ * whole process and replaced whenever a preference changes, so code on hot
+ * paths can read a field instead of going through SharedPreferences.
+ */
+public final class Config {
+	private static final String TAG = "Config";
+
+	public static final int DISCONNECT_PAUSE_IMMEDIATELY = 0;
+	public static final int DISCONNECT_PAUSE_AFTER_ONE_SEC = 1;
+	public static final int DISCONNECT_RESUME_ON_QUICK_RECONNECT = 2;
+	public static final int DISCONNECT_RESUME_ON_RECONNECT = 3;
+
+	/**
+	 * Called after a new snapshot has been published.
+	 */
+	public interface OnConfigChangeListener {
+		void onConfigChanged(Config oldConfig, Config newConfig);
+	}
+
+	// Only these keys feed the snapshot; the list positions stored alongside
+	// ARTIST_DIRECTORY change all the time and shouldn't trigger a reload.
+	private static final Set<String> WATCHED_KEYS = new HashSet<>(Arrays.asList(
+			"pref_audiobook_mode", "pref_disconnect_behavior", "pref_theme",
+			"pref_text_size", "pref_full_screen_now_playing",
+			"ignore_leading_the_in_artist", "accent_color",
+			"custom_accent_color", "pref_bookmark_limit", "ARTIST_DIRECTORY"));
+
+	private static volatile Config current;
+	private static Context appContext;
+	private static File bestGuessMusicDirectory;
+	private static final List<OnConfigChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+	// SharedPreferences only holds its listeners weakly, so keep a strong reference here
+	private static final OnSharedPreferenceChangeListener prefListener = new OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+			if (key == null || WATCHED_KEYS.contains(key)) {
+				reload();
+			}
+		}
+	};
+
+	public final boolean audiobookMode;
+	public final int disconnectBehavior;
+	public final String theme;
+	public final String textSize;
+	public final boolean fullScreenNowPlaying;
+	public final boolean ignoreLeadingThe;
+	public final String accentColor;
+	public final String customAccentColor;
+	public final int bookmarkLimit;
+	public final String musicDirectory;
+
+	private Config(Context context, SharedPreferences sharedPref, SharedPreferences prefs) {
+		audiobookMode = sharedPref.getBoolean("pref_audiobook_mode", false);
+		disconnectBehavior = parseDisconnectBehavior(context,
+				sharedPref.getString("pref_disconnect_behavior", context.getString(R.string.pause_after_one_sec)));
+		theme = sharedPref.getString("pref_theme", context.getString(R.string.light));
+		textSize = sharedPref.getString("pref_text_size", context.getString(R.string.medium));
+		fullScreenNowPlaying = sharedPref.getBoolean("pref_full_screen_now_playing", false);
+		ignoreLeadingThe = sharedPref.getBoolean("ignore_leading_the_in_artist", false);
+		accentColor = sharedPref.getString("accent_color", context.getResources().getStringArray(R.array.accentcoloroptions)[0]);
+		customAccentColor = sharedPref.getString("custom_accent_color", "");
+		int limit = ResumeStore.DEFAULT_LIMIT;
+		try {
+			limit = Integer.parseInt(sharedPref.getString("pref_bookmark_limit", String.valueOf(ResumeStore.DEFAULT_LIMIT)));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring bad bookmark limit", e);
+		}
+		bookmarkLimit = limit;
+		String dir = prefs.getString("ARTIST_DIRECTORY", null);
+		if (dir == null) {
+			// Listing external storage is slow, so only guess once per process
+			if (bestGuessMusicDirectory == null) {
+				bestGuessMusicDirectory = Utils.getBestGuessMusicDirectory();
+			}
+			dir = bestGuessMusicDirectory.getAbsolutePath();
+		}
+		musicDirectory = dir;
+	}
+
+	private static int parseDisconnectBehavior(Context context, String behavior) {
+		if (behavior.equals(context.getString(R.string.resume_on_quick_reconnect))) {
+			return DISCONNECT_RESUME_ON_QUICK_RECONNECT;
+		} else if (behavior.equals(context.getString(R.string.resume_on_reconnect))) {
+			return DISCONNECT_RESUME_ON_RECONNECT;
+		} else if (behavior.equals(context.getString(R.string.pause_after_one_sec))) {
+			return DISCONNECT_PAUSE_AFTER_ONE_SEC;
+		}
+		return DISCONNECT_PAUSE_IMMEDIATELY;
+	}
+
+	/**
+	 * Get the current settings. The first call loads them and starts
+	 * listening for changes; after that this is just a field read.
+	 */
+	public static Config get(Context context) {
+		Config config = current;
+		if (config == null) {
+			config = init(context);
+		}
+		return config;
+	}
+
+	private static synchronized Config init(Context context) {
+		if (current == null) {
+			appContext = context.getApplicationContext();
+			defaultPreferences().registerOnSharedPreferenceChangeListener(prefListener);
+			statePreferences().registerOnSharedPreferenceChangeListener(prefListener);
+			current = new Config(appContext, defaultPreferences(), statePreferences());
+		}
+		return current;
+	}
+
+	private static void reload() {
+		Config oldConfig;
+		Config newConfig;
+		synchronized (Config.class) {
+			oldConfig = current;
+			newConfig = new Config(appContext, defaultPreferences(), statePreferences());
+			current = newConfig;
+		}
+		Log.i(TAG, "Reloaded settings");
+		for (OnConfigChangeListener listener : listeners) {
+			listener.onConfigChanged(oldConfig, newConfig);
+		}
+	}
+
+	private static SharedPreferences defaultPreferences() {
+		return PreferenceManager.getDefaultSharedPreferences(appContext);
+	}
+
+	private static SharedPreferences statePreferences() {
+		return appContext.getSharedPreferences("PrettyGoodMusicPlayer", Context.MODE_PRIVATE);
+	}
+
+	public static void addOnConfigChangeListener(OnConfigChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeOnConfigChangeListener(OnConfigChangeListener listener) {
+		listeners.remove(listener);
+	}
+}
@@ -0,0 +1,317 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A dialog for choosing the music directory.
+ *
+ * Directories are listed on a background thread, and whether a directory
+ * is empty is only checked once its row is on screen, so a big /storage
+ * doesn't hold up the UI. Empty directories are dimmed rather than left
+ * out, since leaving them out would mean checking them all first. Both
+ * answers are kept for as long as the dialog is open, so going back up is
+ * instant.
+ */
+final class DirectoryPicker extends BaseAdapter implements AdapterView.OnItemClickListener,
+		DialogInterface.OnDismissListener {
+	private static final String TAG = "DirectoryPicker";
+
+	private static final int ROW_HERE = 0;
+	private static final int ROW_UP = 1;
+	private static final int FIRST_CHILD_ROW = 2;
+	private static final float EMPTY_ALPHA = 0.4f;
+
+	private static final Comparator<File> BY_NAME = new Comparator<File>() {
+		@Override
+		public int compare(File lhs, File rhs) {
+			return lhs.getName().compareToIgnoreCase(rhs.getName());
+		}
+	};
+
+	private final Activity activity;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "DirectoryPicker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Only touched on the UI thread
+	private final Map<File, List<File>> listings = new HashMap<File, List<File>>();
+	private final Map<File, Boolean> empty = new HashMap<File, Boolean>();
+	private final Set<File> checking = new HashSet<File>();
+	private File path;
+	// Null while the listing is loading
+	private List<File> children;
+	private boolean refreshPosted = false;
+	private AlertDialog dialog;
+
+	// The directory on screen, for the loader to skip work that's no longer wanted
+	private volatile File shownPath;
+
+	DirectoryPicker(Activity activity, File root) {
+		this.activity = activity;
+		this.path = root;
+	}
+
+	void show() {
+		dialog = new AlertDialog.Builder(activity)
+				.setTitle(activity.getResources().getString(R.string.directorydialogprompt))
+				.setIcon(android.R.drawable.ic_menu_zoom)
+				.setAdapter(this, null)
+				.create();
+		dialog.setOnDismissListener(this);
+		dialog.show();
+		// Our own listener, so the dialog stays open while we move around
+		dialog.getListView().setOnItemClickListener(this);
+		showDirectory(path);
+	}
+
+	private void showDirectory(final File dir) {
+		path = dir;
+		shownPath = dir;
+		children = listings.get(dir);
+		if (children == null) {
+			loader.execute(new Runnable() {
+				@Override
+				public void run() {
+					final List<File> result = listDirectories(dir);
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							listings.put(dir, result);
+							if (dir.equals(path)) {
+								children = result;
+								notifyDataSetChanged();
+							}
+						}
+					});
+				}
+			});
+		}
+		notifyDataSetChanged();
+		if (dialog != null) {
+			dialog.getListView().setSelection(0);
+		}
+	}
+
+	/**
+	 * The visible subdirectories, sorted by name. This is one listFiles()
+	 * call; nothing is done per child beyond the stat listFiles needs.
+	 */
+	private static List<File> listDirectories(File dir) {
+		List<File> list = new ArrayList<File>();
+		if (!dir.isDirectory() || dir.isHidden()) {
+			return list;
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return list;
+		}
+		for (File f : files) {
+			if (f.isDirectory() && !f.isHidden() && !f.getName().startsWith(".")) {
+				list.add(f);
+			}
+		}
+		Collections.sort(list, BY_NAME);
+		return list;
+	}
+
+	/**
+	 * Find out whether a directory on screen is empty, if we don't know yet.
+	 */
+	private void checkEmpty(final File dir) {
+		if (empty.containsKey(dir) || !checking.add(dir)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!dir.getParentFile().equals(shownPath)) {
+					// We've moved on; it's checked again if we come back
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							checking.remove(dir);
+						}
+					});
+					return;
+				}
+				// list() doesn't make a File per entry
+				String[] names = dir.list();
+				final boolean isEmpty = names == null || names.length == 0;
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						checking.remove(dir);
+						empty.put(dir, isEmpty);
+						if (isEmpty) {
+							refresh();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// One redraw for a batch of answers
+	private void refresh() {
+		if (refreshPosted) {
+			return;
+		}
+		refreshPosted = true;
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				refreshPosted = false;
+				notifyDataSetChanged();
+			}
+		});
+	}
+
+	@Override
+	public int getCount() {
+		// While loading the last row says so
+		return FIRST_CHILD_ROW + (children == null ? 1 : children.size());
+	}
+
+	@Override
+	public Object getItem(int position) {
+		if (position < FIRST_CHILD_ROW || children == null) {
+			return null;
+		}
+		return children.get(position - FIRST_CHILD_ROW);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		return position < FIRST_CHILD_ROW || children != null;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View v = convertView;
+		if (v == null) {
+			v = LayoutInflater.from(activity).inflate(android.R.layout.select_dialog_item, parent, false);
+			// Add margin between image and text (support various screen densities)
+			int dp5 = (int) (5 * activity.getResources().getDisplayMetrics().density + 0.5f);
+			((TextView) v.findViewById(android.R.id.text1)).setCompoundDrawablePadding(dp5);
+		}
+		TextView tv = (TextView) v.findViewById(android.R.id.text1);
+		String text;
+		int icon;
+		boolean dimmed = false;
+		if (position == ROW_HERE) {
+			text = path.getAbsolutePath();
+			icon = R.drawable.ic_pgmp_launcher;
+		} else if (position == ROW_UP) {
+			text = activity.getResources().getString(R.string.directorydialogup);
+			icon = android.R.drawable.ic_menu_upload;
+		} else if (children == null) {
+			text = activity.getResources().getString(R.string.directorydialogloading);
+			icon = 0;
+		} else {
+			File dir = children.get(position - FIRST_CHILD_ROW);
+			text = dir.getName();
+			icon = R.drawable.ic_action_collection;
+			Boolean isEmpty = empty.get(dir);
+			if (isEmpty == null) {
+				checkEmpty(dir);
+			} else {
+				dimmed = isEmpty;
+			}
+		}
+		tv.setText(text);
+		tv.setCompoundDrawablesWithIntrinsicBounds(icon, 0, 0, 0);
+		v.setAlpha(dimmed ? EMPTY_ALPHA : 1f);
+		return v;
+	}
+
+	@Override
+	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+		if (position == ROW_HERE) {
+			choose(path);
+			dialog.dismiss();
+		} else if (position == ROW_UP) {
+			// TODO handle root case where there isn't an 'up'
+			if (path.getParentFile() != null) {
+				showDirectory(path.getParentFile());
+			}
+		} else if (children != null) {
+			showDirectory(children.get(position - FIRST_CHILD_ROW));
+		}
+	}
+
+	private void choose(File dir) {
+		SharedPreferences prefs = activity.getSharedPreferences("PrettyGoodMusicPlayer", Activity.MODE_PRIVATE);
+		Log.i(TAG, "Preferences update success: "
+				+ prefs.edit().putString("ARTIST_DIRECTORY", dir.getAbsolutePath()).commit());
+		// reset the positions in the artist list, since we've changed lists
+		prefs.edit().putInt("ARTIST_LIST_TOP", Integer.MIN_VALUE)
+				.putInt("ARTIST_LIST_INDEX", Integer.MIN_VALUE)
+				.commit();
+	}
+
+	@Override
+	public void onDismiss(DialogInterface dialogInterface) {
+		shownPath = null;
+		loader.shutdownNow();
+	}
+}
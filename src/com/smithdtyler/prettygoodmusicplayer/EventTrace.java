@@ -0,0 +1,164 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Cheap tracing for the scan, prepare, seek, notify and UI paths.
+ *
+ * Every event goes into a fixed ring of longs (time, event, argument and,
+ * for the end of a section, its duration), so recording one allocates
+ * nothing. The ring keeps the last {@link #CAPACITY} events and is printed
+ * by the service's dump, e.g. "adb shell dumpsys activity service
+ * MusicPlaybackService" right after a glitch. Sections also show up in
+ * systrace on API 18 and later.
+ *
+ * Verbose and debug logging is gated on {@link #VERBOSE} and {@link #DEBUG},
+ * so that the message strings aren't built when nobody is listening. Turn
+ * them on with "adb shell setprop log.tag.PrettyGoodMusicPlayer VERBOSE"
+ * and restart the app.
+ */
+final class EventTrace {
+	private static final String LOG_TAG = "PrettyGoodMusicPlayer";
+
+	static final boolean VERBOSE = Log.isLoggable(LOG_TAG, Log.VERBOSE);
+	static final boolean DEBUG = VERBOSE || Log.isLoggable(LOG_TAG, Log.DEBUG);
+
+	// Events
+	static final int SCAN_ARTISTS = 0;
+	static final int SCAN_ALBUMS = 1;
+	static final int SCAN_SONGS = 2;
+	static final int PREPARE = 3;
+	static final int SEEK = 4;
+	static final int NOTIFY = 5;
+	static final int COMMAND = 6;
+	static final int SHUFFLE = 7;
+	static final int UI_STATUS = 8;
+
+	private static final String[] NAMES = { "scanArtists", "scanAlbums", "scanSongs", "prepare",
+		"seek", "notify", "command", "shuffle", "uiStatus" };
+
+	private static final int PHASE_INSTANT = 0;
+	private static final int PHASE_BEGIN = 1;
+	private static final int PHASE_END = 2;
+	private static final char[] PHASE_MARKS = { '-', '>', '<' };
+
+	static final int CAPACITY = 512;
+	private static final int FIELDS = 4;
+
+	private static final boolean SYSTRACE = Build.VERSION.SDK_INT >= 18;
+
+	private static final long[] ring = new long[CAPACITY * FIELDS];
+	private static long count = 0;
+
+	private EventTrace() {
+	}
+
+	/**
+	 * Start a section. Every begin must be matched by an {@link #end} on the
+	 * same thread, so call sites wrap the work in try/finally.
+	 * @return the start time, to pass to {@link #end}. The same event can be
+	 * in progress on several threads at once, so it isn't kept here.
+	 */
+	static long begin(int event) {
+		if (SYSTRACE) {
+			Trace.beginSection(NAMES[event]);
+		}
+		long now = System.nanoTime();
+		synchronized (ring) {
+			record(now, event, PHASE_BEGIN, 0, 0);
+		}
+		return now;
+	}
+
+	/**
+	 * End the section most recently started on this thread with {@link #begin}.
+	 * @param start what begin returned
+	 * @param arg an event specific value, e.g. the number of songs found
+	 */
+	static void end(int event, long start, long arg) {
+		long now = System.nanoTime();
+		synchronized (ring) {
+			record(now, event, PHASE_END, arg, now - start);
+		}
+		if (SYSTRACE) {
+			Trace.endSection();
+		}
+	}
+
+	/**
+	 * Record something that happened at a single point in time.
+	 */
+	static void instant(int event, long arg) {
+		long now = System.nanoTime();
+		synchronized (ring) {
+			record(now, event, PHASE_INSTANT, arg, 0);
+		}
+	}
+
+	// Must hold the ring lock
+	private static void record(long time, int event, int phase, long arg, long duration) {
+		int base = (int) (count % CAPACITY) * FIELDS;
+		ring[base] = time;
+		ring[base + 1] = (event << 8) | phase;
+		ring[base + 2] = arg;
+		ring[base + 3] = duration;
+		count++;
+	}
+
+	/**
+	 * Print the recorded events, oldest first, with times relative to the
+	 * newest one.
+	 */
+	static void dump(PrintWriter writer) {
+		long[] copy;
+		long total;
+		synchronized (ring) {
+			copy = ring.clone();
+			total = count;
+		}
+		int size = (int) Math.min(total, CAPACITY);
+		writer.println("Events (" + size + " of " + total + "):");
+		if (size == 0) {
+			return;
+		}
+		long newest = copy[(int) ((total - 1) % CAPACITY) * FIELDS];
+		for (long i = total - size; i < total; i++) {
+			int base = (int) (i % CAPACITY) * FIELDS;
+			int event = (int) (copy[base + 1] >> 8);
+			int phase = (int) (copy[base + 1] & 0xff);
+			StringBuilder line = new StringBuilder();
+			line.append(String.format(Locale.US, "  %10.3fms %c %s", (copy[base] - newest) / 1e6,
+					PHASE_MARKS[phase], NAMES[event]));
+			if (phase != PHASE_BEGIN) {
+				line.append(' ').append(copy[base + 2]);
+			}
+			if (phase == PHASE_END) {
+				line.append(String.format(Locale.US, " (%.3fms)", copy[base + 3] / 1e6));
+			}
+			writer.println(line);
+		}
+	}
+}
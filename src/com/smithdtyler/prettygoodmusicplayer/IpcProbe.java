@@ -0,0 +1,256 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times state request to status round trips over the Messenger interface
+ * and over IPlaybackService, and counts what they allocate, for
+ * "adb shell dumpsys activity service MusicPlaybackService ipc".
+ *
+ * The probe client runs in IpcProbeService's process rather than the
+ * service's, so every request, status and callback is marshalled through
+ * the binder driver. Both kinds of status hop to the probe's own thread,
+ * the way NowPlaying's hop to its UI thread. Allocations are counted in the
+ * probe's process only, so they're the client's share of each round trip.
+ */
+final class IpcProbe {
+	private static final int WARMUP = 50;
+	private static final int ROUND_TRIPS = 500;
+	private static final long TIMEOUT_MS = 1000;
+	private static final long BIND_TIMEOUT_MS = 5000;
+	private static final long REPORT_TIMEOUT_MS = 60000;
+	// What the callback posts to the probe thread
+	private static final int AIDL_STATUS = -1;
+
+	private interface Request {
+		void send() throws RemoteException;
+	}
+
+	/**
+	 * A binding that a background thread can wait for.
+	 */
+	static final class Connection implements ServiceConnection {
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private volatile IBinder binder;
+
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			binder = service;
+			connected.countDown();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			binder = null;
+		}
+
+		/**
+		 * @return the service's binder, or null if it didn't connect in time
+		 */
+		IBinder await() throws InterruptedException {
+			connected.await(BIND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			return binder;
+		}
+	}
+
+	private IpcProbe() {
+	}
+
+	/**
+	 * Have IpcProbeService run both probes from its own process, and print
+	 * what it found. This blocks until it's done, so call it from a binder
+	 * thread (e.g. a dump), never from the service's own handlers.
+	 */
+	static void runRemote(Context context, PrintWriter writer) {
+		final Semaphore reported = new Semaphore(0);
+		final String[] report = new String[1];
+		HandlerThread thread = new HandlerThread("IpcProbeReport");
+		thread.start();
+		Messenger replyTo = new Messenger(new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == IpcProbeService.MSG_REPORT) {
+					report[0] = msg.getData().getString(IpcProbeService.REPORT);
+					reported.release();
+				}
+			}
+		});
+		Connection connection = new Connection();
+		boolean bound = context.bindService(new Intent(context, IpcProbeService.class), connection,
+				Context.BIND_AUTO_CREATE);
+		try {
+			IBinder probe = bound ? connection.await() : null;
+			if (probe == null) {
+				writer.println("  unable to start the probe process");
+				return;
+			}
+			send(new Messenger(probe), IpcProbeService.MSG_RUN, replyTo);
+			if (reported.tryAcquire(REPORT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				writer.print(report[0]);
+			} else {
+				writer.println("  no report from the probe process");
+			}
+		} catch (RemoteException e) {
+			writer.println("IPC probe failed: " + e);
+		} catch (InterruptedException e) {
+			writer.println("IPC probe interrupted");
+			Thread.currentThread().interrupt();
+		} finally {
+			if (bound) {
+				context.unbindService(connection);
+			}
+			thread.quit();
+		}
+	}
+
+	/**
+	 * Run both probes against the service's two interfaces. This blocks
+	 * until they finish, so it runs on IpcProbeService's own thread.
+	 */
+	static void run(final Messenger service, final IPlaybackService control, PrintWriter writer) {
+		final Semaphore replies = new Semaphore(0);
+		HandlerThread thread = new HandlerThread("IpcProbe");
+		thread.start();
+		final Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == MusicPlaybackService.MSG_SERVICE_STATUS) {
+					// Unpacking the status is part of the protocol's cost
+					msg.getData().getString(MusicPlaybackService.PRETTY_SONG_NAME);
+					replies.release();
+				} else if (msg.what == AIDL_STATUS) {
+					replies.release();
+				}
+			}
+		};
+		final Messenger client = new Messenger(handler);
+		IPlaybackCallback callback = new IPlaybackCallback.Stub() {
+			@Override
+			public void onStatus(String songPath, String songName, String albumName, String artistName,
+					boolean playing, boolean shuffling, int durationMs, int positionMs, long anchorTime,
+					float rate, int chapter, int chapterCount, String chapterTitle) {
+				handler.sendEmptyMessage(AIDL_STATUS);
+			}
+
+			@Override
+			public void onPositionAnchor(int durationMs, int positionMs, long anchorTime, float rate) {
+			}
+		};
+		try {
+			send(service, MusicPlaybackService.MSG_REGISTER_CLIENT, client);
+			try {
+				report(writer, "messenger", replies, new Request() {
+					@Override
+					public void send() throws RemoteException {
+						IpcProbe.send(service, MusicPlaybackService.MSG_REQUEST_STATE, client);
+					}
+				});
+			} finally {
+				send(service, MusicPlaybackService.MSG_UNREGISTER_CLIENT, client);
+			}
+			control.registerCallback(callback);
+			try {
+				report(writer, "aidl", replies, new Request() {
+					@Override
+					public void send() throws RemoteException {
+						control.requestState();
+					}
+				});
+			} finally {
+				control.unregisterCallback(callback);
+			}
+		} catch (RemoteException e) {
+			writer.println("IPC probe failed: " + e);
+		} catch (InterruptedException e) {
+			writer.println("IPC probe interrupted");
+			Thread.currentThread().interrupt();
+		} finally {
+			thread.quit();
+		}
+	}
+
+	private static void send(Messenger service, int what, Messenger replyTo) throws RemoteException {
+		Message msg = Message.obtain(null, what);
+		msg.replyTo = replyTo;
+		service.send(msg);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void report(PrintWriter writer, String name, Semaphore replies, Request request)
+			throws RemoteException, InterruptedException {
+		for (int i = 0; i < WARMUP; i++) {
+			roundTrip(replies, request);
+		}
+		long[] micros = new long[ROUND_TRIPS];
+		Debug.resetGlobalAllocCount();
+		Debug.startAllocCounting();
+		int completed = 0;
+		try {
+			for (; completed < ROUND_TRIPS; completed++) {
+				long start = System.nanoTime();
+				if (!roundTrip(replies, request)) {
+					break;
+				}
+				micros[completed] = (System.nanoTime() - start) / 1000;
+			}
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		int allocations = Debug.getGlobalAllocCount();
+		if (completed == 0) {
+			writer.println("  " + name + ": no replies");
+			return;
+		}
+		Arrays.sort(micros, 0, completed);
+		writer.println(String.format(Locale.US, "  %s: %d round trips, median %dus, 90th %dus, %.1f allocations each",
+				name, completed, micros[completed / 2], micros[completed * 9 / 10],
+				allocations / (double) completed));
+	}
+
+	/**
+	 * @return false if no status came back in time
+	 */
+	private static boolean roundTrip(Semaphore replies, Request request)
+			throws RemoteException, InterruptedException {
+		// Forget statuses that were already on their way
+		replies.drainPermits();
+		request.send();
+		return replies.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,133 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Hosts the {@link IpcProbe} client. It's declared with a process of its
+ * own in the manifest, so the round trips it times to MusicPlaybackService
+ * cross processes the way any outside client's would, Parcels and all.
+ */
+public class IpcProbeService extends Service {
+	private static final String TAG = "IpcProbeService";
+
+	// Sent to this service, with replyTo set, to run the probes
+	static final int MSG_RUN = 1;
+	// Sent back, with the report in its data
+	static final int MSG_REPORT = 2;
+	static final String REPORT = "report";
+
+	private HandlerThread thread;
+	private Messenger messenger;
+
+	private static class ProbeHandler extends Handler {
+		private final IpcProbeService service;
+
+		ProbeHandler(Looper looper, IpcProbeService service) {
+			super(looper);
+			this.service = service;
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what != MSG_RUN || msg.replyTo == null) {
+				super.handleMessage(msg);
+				return;
+			}
+			StringWriter report = new StringWriter();
+			service.probe(new PrintWriter(report));
+			Message reply = Message.obtain(null, MSG_REPORT);
+			Bundle data = new Bundle();
+			data.putString(REPORT, report.toString());
+			reply.setData(data);
+			try {
+				msg.replyTo.send(reply);
+			} catch (RemoteException e) {
+				Log.w(TAG, "Unable to send the IPC report", e);
+			}
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		thread = new HandlerThread("IpcProbeRunner");
+		thread.start();
+		messenger = new Messenger(new ProbeHandler(thread.getLooper(), this));
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return messenger.getBinder();
+	}
+
+	@Override
+	public void onDestroy() {
+		thread.quit();
+		super.onDestroy();
+	}
+
+	/**
+	 * Bind to both of MusicPlaybackService's interfaces and run the probes.
+	 * The service is the one asking, so it's already running.
+	 */
+	private void probe(PrintWriter writer) {
+		IpcProbe.Connection messengerConnection = new IpcProbe.Connection();
+		IpcProbe.Connection controlConnection = new IpcProbe.Connection();
+		Intent messengerIntent = new Intent(this, MusicPlaybackService.class);
+		messengerIntent.setAction(MusicPlaybackService.ACTION_BIND_MESSENGER);
+		boolean messengerBound = bindService(messengerIntent, messengerConnection, 0);
+		boolean controlBound = bindService(new Intent(this, MusicPlaybackService.class), controlConnection, 0);
+		try {
+			IBinder messengerBinder = messengerBound ? messengerConnection.await() : null;
+			IBinder controlBinder = controlBound ? controlConnection.await() : null;
+			if (messengerBinder == null || controlBinder == null) {
+				writer.println("  unable to bind to MusicPlaybackService");
+			} else {
+				IpcProbe.run(new Messenger(messengerBinder), IPlaybackService.Stub.asInterface(controlBinder), writer);
+			}
+		} catch (InterruptedException e) {
+			writer.println("IPC probe interrupted");
+			Thread.currentThread().interrupt();
+		} finally {
+			if (messengerBound) {
+				unbindService(messengerConnection);
+			}
+			if (controlBound) {
+				unbindService(controlConnection);
+			}
+			writer.flush();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+/**
+ * Turns media button events into playback commands while the service is
+ * running, without the round trip through startService.
+ *
+ * The headset hook is decoded as one, two or three taps (play/pause, next,
+ * previous). Holding fast forward or rewind seeks in steps that grow the
+ * longer the button is held. Everything runs on the looper of the
+ * service's command handler, which is the one the receiver is called on,
+ * so commands are handled right away rather than queued.
+ */
+final class MediaButtonDispatcher {
+	private static final String TAG = "MediaButtonDispatcher";
+
+	/**
+	 * How long after a tap on the hook to wait for another.
+	 */
+	static final long MULTI_TAP_WINDOW_MS = 300;
+	private static final int MAX_TAPS = 3;
+
+	// Seeking while fast forward or rewind is held
+	private static final long SEEK_INTERVAL_MS = 250;
+	private static final int SEEK_STEP_MS = 2000;
+	private static final int MAX_SEEK_STEP_MS = 32000;
+	// The step doubles every this long
+	private static final long SEEK_ACCELERATION_MS = 2000;
+
+	// The running service's dispatcher, if there is one
+	private static volatile MediaButtonDispatcher active;
+
+	private final Handler commands;
+	private final Handler timers;
+
+	private int taps = 0;
+	private long lastTapTime;
+
+	private int seekDirection = 0;
+	private long seekDownTime;
+
+	private final Runnable resolveTaps = new Runnable() {
+		@Override
+		public void run() {
+			resolveTaps();
+		}
+	};
+
+	private final Runnable seekStep = new Runnable() {
+		@Override
+		public void run() {
+			long held = SystemClock.uptimeMillis() - seekDownTime;
+			// Not a button event, so not counted in the latency
+			send(MusicPlaybackService.MSG_SEEK_BY, seekDirection * seekStepMs(held), 0);
+			timers.postDelayed(this, SEEK_INTERVAL_MS);
+		}
+	};
+
+	/**
+	 * @param commands takes the MusicPlaybackService MSG_* commands
+	 */
+	MediaButtonDispatcher(Handler commands) {
+		this.commands = commands;
+		this.timers = new Handler(commands.getLooper());
+	}
+
+	/**
+	 * Start taking button events. Only one dispatcher is active at a time.
+	 */
+	void activate() {
+		active = this;
+	}
+
+	void deactivate() {
+		if (active == this) {
+			active = null;
+		}
+		timers.removeCallbacksAndMessages(null);
+		taps = 0;
+		seekDirection = 0;
+	}
+
+	/**
+	 * Hand a media button event to the running service.
+	 * @return false if the service isn't running, and the caller should
+	 * start it with the command instead
+	 */
+	static boolean dispatch(KeyEvent event) {
+		final MediaButtonDispatcher dispatcher = active;
+		if (dispatcher == null) {
+			return false;
+		}
+		if (Looper.myLooper() == dispatcher.commands.getLooper()) {
+			dispatcher.onKeyEvent(event);
+		} else {
+			final KeyEvent copy = new KeyEvent(event);
+			dispatcher.commands.post(new Runnable() {
+				@Override
+				public void run() {
+					dispatcher.onKeyEvent(copy);
+				}
+			});
+		}
+		return true;
+	}
+
+	private void onKeyEvent(KeyEvent event) {
+		int keyCode = event.getKeyCode();
+		boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
+		if (EventTrace.DEBUG) {
+			Log.d(TAG, "Key " + keyCode + (down ? " down" : " up") + ", repeat " + event.getRepeatCount());
+		}
+		switch (keyCode) {
+		case KeyEvent.KEYCODE_HEADSETHOOK:
+			if (!down) {
+				onTap(event.getEventTime());
+			}
+			break;
+		case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+			onSeekKey(event, down, 1);
+			break;
+		case KeyEvent.KEYCODE_MEDIA_REWIND:
+			onSeekKey(event, down, -1);
+			break;
+		default:
+			int command = commandFor(keyCode);
+			if (!down && command != -1) {
+				send(command, 0, event.getEventTime());
+			}
+		}
+	}
+
+	/**
+	 * The command for a key that does the same thing however it's pressed.
+	 * @return -1 if the key isn't one of ours
+	 */
+	static int commandFor(int keyCode) {
+		switch (keyCode) {
+		case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+		case KeyEvent.KEYCODE_HEADSETHOOK:
+			return MusicPlaybackService.MSG_PLAYPAUSE;
+		case KeyEvent.KEYCODE_MEDIA_PLAY:
+			return MusicPlaybackService.MSG_PLAY;
+		case KeyEvent.KEYCODE_MEDIA_PAUSE:
+			return MusicPlaybackService.MSG_PAUSE;
+		case KeyEvent.KEYCODE_MEDIA_NEXT:
+			return MusicPlaybackService.MSG_NEXT;
+		case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+			return MusicPlaybackService.MSG_PREVIOUS;
+		case KeyEvent.KEYCODE_MEDIA_STOP:
+			// Android seems to stop sending pause after a while, so stop
+			// doubles as "start playing if paused"
+			return MusicPlaybackService.MSG_PLAYPAUSE;
+		default:
+			return -1;
+		}
+	}
+
+	private void onTap(long eventTime) {
+		taps++;
+		lastTapTime = eventTime;
+		timers.removeCallbacks(resolveTaps);
+		if (taps >= MAX_TAPS) {
+			resolveTaps();
+		} else {
+			// Event times are on the uptime clock, like postAtTime
+			timers.postAtTime(resolveTaps, eventTime + MULTI_TAP_WINDOW_MS);
+		}
+	}
+
+	private void resolveTaps() {
+		int count = taps;
+		taps = 0;
+		switch (count) {
+		case 1:
+			send(MusicPlaybackService.MSG_PLAYPAUSE, 0, lastTapTime);
+			break;
+		case 2:
+			send(MusicPlaybackService.MSG_NEXT, 0, lastTapTime);
+			break;
+		case 3:
+			send(MusicPlaybackService.MSG_PREVIOUS, 0, lastTapTime);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Seek once when the button goes down, then keep seeking until it comes
+	 * up. Key repeats are ignored, since not every headset sends them.
+	 */
+	private void onSeekKey(KeyEvent event, boolean down, int direction) {
+		if (down) {
+			if (event.getRepeatCount() > 0 && seekDirection == direction) {
+				return;
+			}
+			timers.removeCallbacks(seekStep);
+			seekDirection = direction;
+			seekDownTime = event.getDownTime();
+			send(MusicPlaybackService.MSG_SEEK_BY, direction * SEEK_STEP_MS, event.getEventTime());
+			timers.postDelayed(seekStep, SEEK_INTERVAL_MS);
+		} else if (seekDirection == direction) {
+			timers.removeCallbacks(seekStep);
+			seekDirection = 0;
+		}
+	}
+
+	/**
+	 * @return how far to seek per interval after holding the button this long
+	 */
+	static int seekStepMs(long heldMs) {
+		long doublings = Math.max(0, heldMs) / SEEK_ACCELERATION_MS;
+		if (doublings >= 31) {
+			return MAX_SEEK_STEP_MS;
+		}
+		return (int) Math.min((long) SEEK_STEP_MS << doublings, MAX_SEEK_STEP_MS);
+	}
+
+	/**
+	 * Run a command on the command handler, and record how long after the
+	 * button event that caused it the command finished.
+	 * @param eventTime the button event's uptime, or 0 if there wasn't one
+	 */
+	private void send(int what, int arg1, long eventTime) {
+		Message msg = commands.obtainMessage(what, arg1, 0);
+		if (Looper.myLooper() == commands.getLooper()) {
+			commands.dispatchMessage(msg);
+			msg.recycle();
+		} else {
+			commands.sendMessage(msg);
+		}
+		if (eventTime > 0) {
+			Metrics.MEDIA_BUTTON_LATENCY.record((SystemClock.uptimeMillis() - eventTime) * 1000);
+		}
+	}
+}
@@ -19,7 +19,6 @@
 package com.smithdtyler.prettygoodmusicplayer;
 
 import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothDevice;
@@ -28,11 +27,11 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -42,25 +41,42 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.Builder;
 import android.util.Log;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import ch.blinkenlights.android.vanilla.ReadaheadThread;
 
 public class MusicPlaybackService extends Service {
+	/**
+	 * Bind with this action to get the Messenger interface, which takes the
+	 * MSG_* commands below, instead of IPlaybackService.
+	 */
+	static final String ACTION_BIND_MESSENGER = "com.smithdtyler.prettygoodmusicplayer.BIND_MESSENGER";
+
 	static final int MSG_REGISTER_CLIENT = 1;
 	static final int MSG_UNREGISTER_CLIENT = 2;
 
@@ -76,11 +92,18 @@ public class MusicPlaybackService extends Service {
 	static final int MSG_SEEK_TO = 11;
 	static final int MSG_JUMPBACK = 12;
 	static final int MSG_PLAY = 13;
+	static final int MSG_NEXT_CHAPTER = 14;
+	static final int MSG_PREVIOUS_CHAPTER = 15;
+	// Seek by arg1 milliseconds from the current position
+	static final int MSG_SEEK_BY = 16;
+	// Pause without fading out, because the headphones went away
+	static final int MSG_PAUSE_NOW = 21;
 
 	// State management
 	static final int MSG_REQUEST_STATE = 17;
 	static final int MSG_SERVICE_STATUS = 18;
 	static final int MSG_STOP_SERVICE = 19;
+	static final int MSG_POSITION_ANCHOR = 20;
 
 	public enum PlaybackState {
 		PLAYING, PAUSED, UNKNOWN
@@ -89,11 +112,54 @@ public class MusicPlaybackService extends Service {
 	static final String PRETTY_SONG_NAME = "PRETTY_SONG_NAME";
 	static final String PRETTY_ARTIST_NAME = "PRETTY_ARTIST_NAME";
 	static final String PRETTY_ALBUM_NAME = "PRETTY_ALBUM_NAME";
+	static final String SONG_PATH = "SONG_PATH";
 	static final String ALBUM_NAME = "ALBUM_NAME";
 	static final String PLAYBACK_STATE = "PLAYBACK_STATE";
 	static final String TRACK_DURATION = "TRACK_DURATION";
 	static final String TRACK_POSITION = "TRACK_POSITION";
 	static final String IS_SHUFFLING = "IS_SHUFFLING";
+	static final String ANCHOR_TIME = "ANCHOR_TIME";
+	static final String PLAYBACK_RATE = "PLAYBACK_RATE";
+	static final String CHAPTER_TITLE = "CHAPTER_TITLE";
+	static final String CHAPTER_INDEX = "CHAPTER_INDEX";
+	static final String CHAPTER_COUNT = "CHAPTER_COUNT";
+
+	/**
+	 * If the real position drifts this far from what clients extrapolate from
+	 * the last anchor, send them a new anchor.
+	 */
+	private static final int ANCHOR_DRIFT_TOLERANCE_MS = 250;
+
+	/**
+	 * How often to check on the media player while a client is watching.
+	 */
+	private static final long TICK_INTERVAL_MS = 500;
+
+	/**
+	 * How often to save the resume position while playing.
+	 */
+	private static final long RESUME_CHECKPOINT_INTERVAL_MS = 10000;
+
+	/**
+	 * Going back a chapter this far into one restarts it instead, like tracks.
+	 */
+	private static final int CHAPTER_RESTART_MS = 3000;
+
+	/**
+	 * Resuming this close after a chapter starts goes back to its start.
+	 */
+	static final int CHAPTER_RESUME_SNAP_MS = 10000;
+
+	/**
+	 * Volume while another app has ducked us, e.g. for a navigation prompt.
+	 */
+	private static final float DUCK_VOLUME = 0.2f;
+	private static final long DUCK_RAMP_MS = 250;
+	private static final long UNDUCK_RAMP_MS = 500;
+	// Short enough not to feel slow, long enough not to click
+	private static final long PAUSE_FADE_MS = 80;
+	private static final long RESUME_FADE_MS = 120;
+	private static final long VOLUME_STEP_MS = 10;
 
 	private static final ComponentName cn = new ComponentName(
 			MusicBroadcastReceiver.class.getPackage().getName(),
@@ -101,10 +167,8 @@ public class MusicPlaybackService extends Service {
 
 	private FileInputStream fis;
 	private File songFile;
-	private String[] songAbsoluteFileNames;
-	private int songAbsoluteFileNamesPosition;
-
-	private Timer timer;
+	// Null until a playlist is set or restored
+	private PlayQueue queue;
 
 	private AudioManager am;
 	private Looper mServiceLooper;
@@ -131,7 +195,24 @@ public class MusicPlaybackService extends Service {
 	 */
 	List<Messenger> mClients = new ArrayList<Messenger>();
 
-	final Messenger mMessenger = new Messenger(new IncomingHandler(this));
+	private final IncomingHandler mIncomingHandler = new IncomingHandler(this);
+	final Messenger mMessenger = new Messenger(mIncomingHandler);
+
+	/**
+	 * Clients registered through IPlaybackService.
+	 */
+	final RemoteCallbackList<IPlaybackCallback> mCallbacks = new RemoteCallbackList<IPlaybackCallback>() {
+		@Override
+		public void onCallbackDied(IPlaybackCallback callback) {
+			synchronized (mCallbacks) {
+				mCallbackCount--;
+			}
+		}
+	};
+	// getRegisteredCallbackCount needs API 17; guarded by mCallbacks
+	private int mCallbackCount = 0;
+	private final PlaybackControl mControl = new PlaybackControl(this, mIncomingHandler);
+	private final MediaButtonDispatcher mediaButtons = new MediaButtonDispatcher(mIncomingHandler);
 
 	public AudioManager mAudioManager;
 
@@ -139,30 +220,120 @@ public class MusicPlaybackService extends Service {
 	private int lastDuration = 0;
 	private int lastPosition = 0;
 	public long audioFocusLossTime = 0;
-	private long pauseTime = Long.MAX_VALUE;
 	private boolean _shuffle = false;
-	private List<Integer> shuffleFrontList = new ArrayList<Integer>();
 	private Random random;
-	private List<Integer> shuffleBackList = new ArrayList<Integer>();
+	// When the last track finished by itself, until the next one starts
+	private long completedAtNanos;
 	private String artist;
 	private String artistAbsPath;
 	private String album;
-	private long lastResumeUpdateTime;
-	private SharedPreferences sharedPref;
+	private Config config;
+	private NotificationController notificationController;
+	private ResumeStore resumeStore;
+	private SessionStore sessionStore;
+	// The session saved before the service was last killed; applied when the first command needs it
+	private Future<SessionStore.Session> savedSession;
+	// Commands that came in while it was loading, as {command, arg} pairs
+	private final List<int[]> commandsAwaitingSession = new ArrayList<int[]>();
+	// What the session was last saved with, so it's only saved when that changes
+	private PlayQueue savedQueue;
+	private int savedIndex = -1;
+	private long savedDraws = -1;
+	private boolean savedShuffle;
+	private boolean savedPlaying;
 	private HeadphoneBroadcastReceiver headphoneReceiver;
 	private PowerManager powerManager;
 	WakeLock wakeLock;
 	private ReadaheadThread mReadaheadThread;
 
-	// Handler that receives messages from the thread
+	// Time to byte offset tables, so seeks in VBR MP3s land where they should,
+	// and chapter lists, both cached per song
+	private SongIndexStore songIndexes;
+	private SeekIndex seekIndex;
+	private ChapterIndex chapters = ChapterIndex.NONE;
+	// The chapter clients and the notification were last told about
+	private int reportedChapter = -1;
+	// Added to MediaPlayer's position to get the real one, after a seek that
+	// had to be steered through the seek index
+	private int positionCorrection = 0;
+	// Whether MediaPlayer was sent somewhere before the seek index was ready
+	private boolean uncorrectedSeek = false;
+	// Where the song was resumed from, until its chapters are known
+	private int pendingResume = -1;
+	private final ExecutorService seekIndexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SongIndexBuilder");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	// What clients were last told, so we only message them when something changes.
+	// The pretty names are computed once per track rather than once per update.
+	private File reportedSongFile;
+	private String prettySongName = " ";
+	private String prettyAlbumName = " ";
+	private String prettyArtistName = " ";
+	private boolean reportedPlaying = false;
+	private int anchorPosition = 0;
+	private long anchorTime = 0;
+
+	// Volume ramps; the player's volume is set to `volume` as they go
+	private float volume = 1.0f;
+	private VolumeRamp volumeRamp;
+	private boolean ducked = false;
+	// Set while fading out to pause
+	private boolean pauseAfterRamp = false;
+
+	// The same anchor, for readers in the app that don't want to be messaged
+	static final String STATE_BLOCK_FILE = "playback.state";
+	private PlaybackStateBlock stateBlock;
+	private File stateBlockSongFile;
+	private long stateBlockTrackId;
+
+	// Handler that receives messages from the thread.
+	// Everything that used to run off a fixed rate timer is scheduled here
+	// as one-shot messages, so nothing runs while there's nothing to do.
 	private final class ServiceHandler extends Handler {
+		static final int TICK = 1;
+		static final int PAUSE_DEADLINE = 2;
+		static final int RESUME_CHECKPOINT = 3;
+		static final int VOLUME_RAMP = 4;
+
+		int tickCount = 0;
+		int pauseDeadlineCount = 0;
+		int resumeCheckpointCount = 0;
+
 		public ServiceHandler(Looper looper) {
 			super(looper);
 		}
 
 		@Override
 		public void handleMessage(Message msg) {
-			Log.i(TAG, "ServiceHandler got a message!" + msg);
+			switch (msg.what) {
+			case TICK:
+				tickCount++;
+				long start = System.nanoTime();
+				onTick();
+				Metrics.TICK.record(Metrics.microsSince(start));
+				break;
+			case PAUSE_DEADLINE:
+				pauseDeadlineCount++;
+				Log.i(TAG, "Pause deadline reached, pausing");
+				pauseImmediately();
+				break;
+			case RESUME_CHECKPOINT:
+				resumeCheckpointCount++;
+				updateResumePosition();
+				break;
+			case VOLUME_RAMP:
+				stepVolumeRamp();
+				break;
+			default:
+				Log.i(TAG, "ServiceHandler got a message!" + msg);
+			}
 		}
 	}
 
@@ -170,7 +341,36 @@ public class MusicPlaybackService extends Service {
 	public synchronized void onCreate() {
 		Log.i(TAG, "Music Playback Service Created!");
 		isRunning = true;
-		sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+		config = Config.get(this);
+		Config.addOnConfigChangeListener(configListener);
+		AndroidPlatform.init(this);
+		resumeStore = AndroidPlatform.getResumeStore(this);
+		HandlerThread thread = new HandlerThread("ServiceStartArguments");
+		thread.start();
+
+		// Get the HandlerThread's Looper and use it for our Handler. It has to
+		// exist before the session loads, since that posts back to it.
+		mServiceLooper = thread.getLooper();
+		mServiceHandler = new ServiceHandler(mServiceLooper);
+
+		sessionStore = new SessionStore(getFilesDir());
+		savedSession = sessionStore.loadAsync(new Runnable() {
+			@Override
+			public void run() {
+				mServiceHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onSessionLoaded();
+					}
+				});
+			}
+		});
+		songIndexes = AndroidPlatform.getSongIndexStore(this);
+		try {
+			stateBlock = PlaybackStateBlock.create(new File(getFilesDir(), STATE_BLOCK_FILE));
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to create the playback state block", e);
+		}
 
 		powerManager =(PowerManager) getSystemService(POWER_SERVICE);
 		wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
@@ -186,6 +386,7 @@ public class MusicPlaybackService extends Service {
 			@Override
 			public void onCompletion(MediaPlayer mp) {
 				Log.i(TAG, "Song complete");
+				completedAtNanos = System.nanoTime();
 				next();
 			}
 
@@ -198,13 +399,6 @@ public class MusicPlaybackService extends Service {
 		am = (AudioManager) getBaseContext().getSystemService(
 				Context.AUDIO_SERVICE);
 
-		HandlerThread thread = new HandlerThread("ServiceStartArguments");
-		thread.start();
-
-		// Get the HandlerThread's Looper and use it for our Handler
-		mServiceLooper = thread.getLooper();
-		mServiceHandler = new ServiceHandler(mServiceLooper);
-
 		// https://stackoverflow.com/questions/19474116/the-constructor-notification-is-deprecated
 		// https://stackoverflow.com/questions/6406730/updating-an-ongoing-notification-quietly/15538209#15538209
 		Intent resultIntent = new Intent(this, NowPlaying.class);
@@ -237,19 +431,14 @@ public class MusicPlaybackService extends Service {
 						.build();
 
 		startForeground(uniqueid, notification);
-
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new TimerTask() {
-			public void run() {
-				onTimerTick();
-			}
-		}, 0, 500L);
+		notificationController = new NotificationController(this, uniqueid, mServiceHandler);
 
 		Log.i(TAG, "Registering event receiver");
 		mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
 		// Apparently audio registration is persistent across lots of things...
 		// restarts, installs, etc.
 		mAudioManager.registerMediaButtonEventReceiver(cn);
+		mediaButtons.activate();
 		// I tried to register this in the manifest, but it doesn't seen to
 		// accept it, so I'll do it this way.
 		getApplicationContext().registerReceiver(receiver, filter);
@@ -267,7 +456,8 @@ public class MusicPlaybackService extends Service {
 			// intent can be null if this is called by the OS due to
 			// "START STICKY"
 			// Start, but don't do anything until we get a message from the
-			// user.
+			// user. The session saved before we were killed is already
+			// loading, and the first command picks it up.
 			return START_STICKY;
 		}
 		int command = intent.getIntExtra("Message", -1);
@@ -279,6 +469,9 @@ public class MusicPlaybackService extends Service {
 			} else if (command == MSG_PAUSE) {
 				Log.i(TAG, "I got a pause message");
 				pause();
+			} else if (command == MSG_PAUSE_NOW) {
+				Log.i(TAG, "I got a pause now message");
+				pauseImmediately();
 			} else if (command == MSG_PLAY) {
 				Log.i(TAG, "I got a play message");
 				play();
@@ -288,19 +481,27 @@ public class MusicPlaybackService extends Service {
 			} else if (command == MSG_PREVIOUS) {
 				Log.i(TAG, "I got a previous message");
 				previous();
+			} else if (command == MSG_NEXT_CHAPTER) {
+				Log.i(TAG, "I got a next chapter message");
+				nextChapter();
+			} else if (command == MSG_PREVIOUS_CHAPTER) {
+				Log.i(TAG, "I got a previous chapter message");
+				previousChapter();
 			} else if (command == MSG_JUMPBACK) {
 				Log.i(TAG, "I got a jumpback message");
 				jumpback();
 			} else if (command == MSG_STOP_SERVICE) {
 				Log.i(TAG, "I got a stop message");
 				headphoneReceiver.active = false;
-				timer.cancel();
+				mServiceHandler.removeCallbacksAndMessages(null);
+				notificationController.stop();
 				stopForeground(true);
 				stopSelf();
 			} else if (command == MSG_PAUSE_IN_ONE_SEC) {
-				pauseTime = System.currentTimeMillis() + 1000;
+				mServiceHandler.removeMessages(ServiceHandler.PAUSE_DEADLINE);
+				mServiceHandler.sendEmptyMessageDelayed(ServiceHandler.PAUSE_DEADLINE, 1000);
 			} else if (command == MSG_CANCEL_PAUSE_IN_ONE_SEC) {
-				pauseTime = Long.MAX_VALUE;
+				mServiceHandler.removeMessages(ServiceHandler.PAUSE_DEADLINE);
 			}
 			return START_STICKY;
 		}
@@ -314,7 +515,113 @@ public class MusicPlaybackService extends Service {
 
 	@Override
 	public IBinder onBind(Intent intent) {
-		return mMessenger.getBinder();
+		if (ACTION_BIND_MESSENGER.equals(intent.getAction())) {
+			return mMessenger.getBinder();
+		}
+		return mControl;
+	}
+
+	/**
+	 * IPlaybackService. Commands become the same messages the Messenger
+	 * interface takes, obtained from the message pool and handled by the same
+	 * handler, so they keep their order and threading without a Bundle each.
+	 */
+	private static class PlaybackControl extends IPlaybackService.Stub {
+		private final MusicPlaybackService service;
+		private final Handler handler;
+
+		PlaybackControl(MusicPlaybackService service, Handler handler) {
+			this.service = service;
+			this.handler = handler;
+		}
+
+		@Override
+		public void playPause() {
+			handler.sendEmptyMessage(MSG_PLAYPAUSE);
+		}
+
+		@Override
+		public void play() {
+			handler.sendEmptyMessage(MSG_PLAY);
+		}
+
+		@Override
+		public void pause() {
+			handler.sendEmptyMessage(MSG_PAUSE);
+		}
+
+		@Override
+		public void next() {
+			handler.sendEmptyMessage(MSG_NEXT);
+		}
+
+		@Override
+		public void previous() {
+			handler.sendEmptyMessage(MSG_PREVIOUS);
+		}
+
+		@Override
+		public void nextChapter() {
+			handler.sendEmptyMessage(MSG_NEXT_CHAPTER);
+		}
+
+		@Override
+		public void previousChapter() {
+			handler.sendEmptyMessage(MSG_PREVIOUS_CHAPTER);
+		}
+
+		@Override
+		public void jumpBack() {
+			handler.sendEmptyMessage(MSG_JUMPBACK);
+		}
+
+		@Override
+		public void toggleShuffle() {
+			handler.sendEmptyMessage(MSG_TOGGLE_SHUFFLE);
+		}
+
+		@Override
+		public void seekTo(int positionMs) {
+			handler.obtainMessage(MSG_SEEK_TO, positionMs, 0).sendToTarget();
+		}
+
+		@Override
+		public void setPlaylist(final String[] songs, final int index, final int positionMs,
+				final String artist, final String artistAbsPath, final String album) {
+			// Rare enough that a Runnable is fine
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					service.setPlaylist(songs, index, positionMs, artist, artistAbsPath, album);
+				}
+			});
+		}
+
+		@Override
+		public void requestState() {
+			handler.sendEmptyMessage(MSG_REQUEST_STATE);
+		}
+
+		@Override
+		public void registerCallback(IPlaybackCallback callback) {
+			synchronized (service.mCallbacks) {
+				if (service.mCallbacks.register(callback)) {
+					service.mCallbackCount++;
+				}
+			}
+			handler.sendEmptyMessage(MSG_REQUEST_STATE);
+		}
+
+		@Override
+		public void unregisterCallback(IPlaybackCallback callback) {
+			synchronized (service.mCallbacks) {
+				if (service.mCallbacks.unregister(callback)) {
+					service.mCallbackCount--;
+				}
+			}
+			// With no replyTo this just lets the schedule wind down
+			handler.sendEmptyMessage(MSG_UNREGISTER_CLIENT);
+		}
 	}
 
 	// Receives messages from activities which want to control the jams
@@ -327,19 +634,23 @@ public class MusicPlaybackService extends Service {
 
 		@Override
 		public void handleMessage(Message msg) {
-			Log.i(TAG, "Music Playback service got a message!");
+			EventTrace.instant(EventTrace.COMMAND, msg.what);
 			switch (msg.what) {
 			case MSG_REGISTER_CLIENT:
 				Log.i(TAG, "Got MSG_REGISTER_CLIENT");
 				synchronized (_service.mClients) {
-					_service.mClients.add(msg.replyTo);
+					if (!_service.mClients.contains(msg.replyTo)) {
+						_service.mClients.add(msg.replyTo);
+					}
 				}
+				_service.sendStateToClients();
 				break;
 			case MSG_UNREGISTER_CLIENT:
 				Log.i(TAG, "Got MSG_UNREGISTER_CLIENT");
 				synchronized (_service.mClients) {
 					_service.mClients.remove(msg.replyTo);
 				}
+				_service.updateSchedule();
 				break;
 			case MSG_PLAYPAUSE:
 				// if we got a playpause message, assume that the user can hear
@@ -356,6 +667,14 @@ public class MusicPlaybackService extends Service {
 				Log.i(TAG, "Got a previous message!");
 				_service.previous();
 				break;
+			case MSG_NEXT_CHAPTER:
+				Log.i(TAG, "Got a next chapter message!");
+				_service.nextChapter();
+				break;
+			case MSG_PREVIOUS_CHAPTER:
+				Log.i(TAG, "Got a previous chapter message!");
+				_service.previousChapter();
+				break;
 			case MSG_JUMPBACK:
 				Log.i(TAG, "Got a jump back message!");
 				_service.jumpback();
@@ -366,97 +685,427 @@ public class MusicPlaybackService extends Service {
 				break;
 			case MSG_SET_PLAYLIST:
 				Log.i(TAG, "Got a set playlist message!");
-				_service.songAbsoluteFileNames = msg.getData().getStringArray(
-						SongList.SONG_ABS_FILE_NAME_LIST);
-				_service.songAbsoluteFileNamesPosition = msg.getData().getInt(
-						SongList.SONG_ABS_FILE_NAME_LIST_POSITION);
-				_service.songFile = new File(
-						_service.songAbsoluteFileNames[_service.songAbsoluteFileNamesPosition]);
-				_service.artist = msg.getData().getString(ArtistList.ARTIST_NAME);
-				_service.artistAbsPath = msg.getData().getString(ArtistList.ARTIST_ABS_PATH_NAME);
-				_service.album = msg.getData().getString(AlbumList.ALBUM_NAME);
-				int songPosition = msg.getData().getInt(TRACK_POSITION, 0);
-				_service.startPlayingFile(songPosition);
-				_service.updateNotification();
-				_service.resetShuffle();
+				Bundle data = msg.getData();
+				_service.setPlaylist(data.getStringArray(SongList.SONG_ABS_FILE_NAME_LIST),
+						data.getInt(SongList.SONG_ABS_FILE_NAME_LIST_POSITION),
+						data.getInt(TRACK_POSITION, 0),
+						data.getString(ArtistList.ARTIST_NAME),
+						data.getString(ArtistList.ARTIST_ABS_PATH_NAME),
+						data.getString(AlbumList.ALBUM_NAME));
 				break;
 			case MSG_REQUEST_STATE:
 				Log.i(TAG, "Got a state request message!");
+				_service.sendStateToClients();
 				break;
 			case MSG_SEEK_TO:
 				Log.i(TAG, "Got a seek request message!");
-				int progress = msg.getData().getInt(TRACK_POSITION);
+				// IPlaybackService passes the position in arg1
+				Bundle seekData = msg.peekData();
+				int progress = seekData != null ? seekData.getInt(TRACK_POSITION) : msg.arg1;
 				_service.jumpTo(progress);
 				break;
+			case MSG_SEEK_BY:
+				Log.i(TAG, "Got a relative seek message!");
+				_service.seekBy(msg.arg1);
+				break;
 			default:
 				super.handleMessage(msg);
 			}
 		}
 	}
 
-	private void onTimerTick() {
-		long currentTime = System.currentTimeMillis();
-		if (pauseTime < currentTime) {
-			pause();
+	private synchronized void setPlaylist(String[] songs, int index, int position,
+			String artist, String artistAbsPath, String album) {
+		savedSession = null;
+		commandsAwaitingSession.clear();
+		setQueue(new PlayQueue(songs, index, random.nextLong()));
+		this.artist = artist;
+		this.artistAbsPath = artistAbsPath;
+		this.album = album;
+		startPlayingFile(position);
+		updateNotification();
+		sendStateToClients();
+	}
+
+	private void onTick() {
+		checkForStateChange();
+		updateSchedule();
+	}
+
+	/**
+	 * Start or stop the periodic work depending on what's going on. Ticks only
+	 * run while a client is watching and we're playing, and resume checkpoints
+	 * only run while we're playing.
+	 */
+	private synchronized void updateSchedule() {
+		boolean playing = mp.isPlaying();
+		boolean hasClients;
+		synchronized (mClients) {
+			hasClients = !mClients.isEmpty();
+		}
+		synchronized (mCallbacks) {
+			hasClients |= mCallbackCount > 0;
+		}
+		if (playing && hasClients) {
+			if (!mServiceHandler.hasMessages(ServiceHandler.TICK)) {
+				mServiceHandler.sendEmptyMessageDelayed(ServiceHandler.TICK, TICK_INTERVAL_MS);
+			}
+		} else {
+			mServiceHandler.removeMessages(ServiceHandler.TICK);
+		}
+		if (playing) {
+			if (!mServiceHandler.hasMessages(ServiceHandler.RESUME_CHECKPOINT)) {
+				mServiceHandler.sendEmptyMessageDelayed(ServiceHandler.RESUME_CHECKPOINT, RESUME_CHECKPOINT_INTERVAL_MS);
+			}
+		} else {
+			mServiceHandler.removeMessages(ServiceHandler.RESUME_CHECKPOINT);
 		}
-		updateResumePosition();
-		sendUpdateToClients();
 	}
 
 	private void updateResumePosition(){
-		long currentTime = System.currentTimeMillis();
-		if(currentTime - 10000 > lastResumeUpdateTime){
-			if(mp != null && songFile != null && mp.isPlaying()){
-				int pos = mp.getCurrentPosition();
-				SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-				Log.i(TAG,
-						"Preferences update success: "
-								+ prefs.edit()
-								.putString(songFile.getParentFile().getAbsolutePath(),songFile.getName() + "~" + pos)
-								.commit());
+		if(mp != null && songFile != null && mp.isPlaying()){
+			int pos = getPosition();
+			bookmark(pos);
+			synchronized (this) {
+				lastPosition = pos;
+				checkForChapterChange(pos);
 			}
-			lastResumeUpdateTime = currentTime;
 		}
+		updateSchedule();
 	}
 
+	/**
+	 * Record where we are in the current song. The resume store keeps the
+	 * position for the session too, and only touches memory, so this is
+	 * cheap enough for every seek.
+	 */
+	private void bookmark(int position) {
+		File song = songFile;
+		if (song != null && song.getParentFile() != null) {
+			resumeStore.put(song.getParentFile().getAbsolutePath(), song.getName(), position);
+		}
+	}
 
-	private void sendUpdateToClients() {
-		List<Messenger> toRemove = new ArrayList<Messenger>();
-		synchronized (mClients) {
-			for (Messenger client : mClients) {
-				Message msg = Message.obtain(null, MSG_SERVICE_STATUS);
-				Bundle b = new Bundle();
-				if (songFile != null) {
-					b.putString(PRETTY_SONG_NAME,
-							Utils.getPrettySongName(songFile));
-					b.putString(PRETTY_ALBUM_NAME, songFile.getParentFile()
-							.getName());
-					b.putString(PRETTY_ARTIST_NAME, songFile.getParentFile()
-							.getParentFile().getName());
-				} else {
-					// songFile can be null while we're shutting down.
-					b.putString(PRETTY_SONG_NAME, " ");
-					b.putString(PRETTY_ALBUM_NAME, " ");
-					b.putString(PRETTY_ARTIST_NAME, " ");
-				}
+	/**
+	 * Queue the current playlist, track and shuffle state to be saved, if
+	 * they or the play state changed since last time. Positions are left
+	 * to the resume store.
+	 */
+	private synchronized void saveSession() {
+		if (queue == null) {
+			return;
+		}
+		if (queue == savedQueue && queue.getPosition() == savedIndex && queue.getShuffleDraws() == savedDraws
+				&& _shuffle == savedShuffle && reportedPlaying == savedPlaying) {
+			return;
+		}
+		savedQueue = queue;
+		savedIndex = queue.getPosition();
+		savedDraws = queue.getShuffleDraws();
+		savedShuffle = _shuffle;
+		savedPlaying = reportedPlaying;
+		sessionStore.save(new SessionStore.Session(queue.getTracks(), queue.getPosition(),
+				lastPosition, _shuffle, queue.getShuffleSeed(), queue.getShuffleDraws(), artist, artistAbsPath, album));
+	}
 
-				b.putBoolean(IS_SHUFFLING, this._shuffle);
+	private synchronized void setQueue(PlayQueue queue) {
+		this.queue = queue;
+		songFile = new File(queue.getCurrent());
+	}
 
-				if (mp.isPlaying()) {
-					b.putInt(PLAYBACK_STATE, PlaybackState.PLAYING.ordinal());
-				} else {
-					b.putInt(PLAYBACK_STATE, PlaybackState.PAUSED.ordinal());
+	/**
+	 * Make sure there's a playlist to act on. If the service was restarted
+	 * and nothing has been set yet, apply the session saved before it was
+	 * killed. If that's still loading, the command is held and run again
+	 * once it's ready.
+	 * @param command the MSG_ constant of the command asking
+	 * @param arg its argument, if it has one
+	 * @return false if there's nothing to play yet
+	 */
+	private synchronized boolean ensureSession(int command, int arg) {
+		if (queue != null) {
+			return true;
+		}
+		if (savedSession == null) {
+			return false;
+		}
+		if (!savedSession.isDone()) {
+			Log.i(TAG, "Holding command " + command + " until the saved session is loaded");
+			commandsAwaitingSession.add(new int[] { command, arg });
+			return false;
+		}
+		return restoreSession();
+	}
+
+	/**
+	 * Run the commands that came in while the saved session was loading.
+	 */
+	private synchronized void onSessionLoaded() {
+		if (queue != null || savedSession == null || commandsAwaitingSession.isEmpty()) {
+			return;
+		}
+		List<int[]> commands = new ArrayList<int[]>(commandsAwaitingSession);
+		commandsAwaitingSession.clear();
+		if (!restoreSession()) {
+			return;
+		}
+		for (int[] command : commands) {
+			runCommand(command[0], command[1]);
+		}
+	}
+
+	private synchronized void runCommand(int command, int arg) {
+		switch (command) {
+		case MSG_PLAYPAUSE:
+			playPause();
+			break;
+		case MSG_PLAY:
+			play();
+			break;
+		case MSG_NEXT:
+			next();
+			break;
+		case MSG_PREVIOUS:
+			previous();
+			break;
+		case MSG_NEXT_CHAPTER:
+			nextChapter();
+			break;
+		case MSG_PREVIOUS_CHAPTER:
+			previousChapter();
+			break;
+		case MSG_JUMPBACK:
+			jumpback();
+			break;
+		case MSG_SEEK_BY:
+			seekBy(arg);
+			break;
+		default:
+			Log.w(TAG, "Can't run command " + command);
+		}
+	}
+
+	/**
+	 * Apply the loaded session, resuming its track from the resume store's
+	 * bookmark if there is one.
+	 * @return false if there wasn't a session to apply
+	 */
+	private synchronized boolean restoreSession() {
+		SessionStore.Session session;
+		try {
+			session = savedSession.get();
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to restore the saved session", e);
+			session = null;
+		}
+		savedSession = null;
+		if (session == null) {
+			return false;
+		}
+		File track = new File(session.queue[session.index]);
+		int position = track.getParentFile() == null ? -1
+				: resumeStore.getPosition(track.getParentFile().getAbsolutePath(), track.getName());
+		if (position < 0) {
+			position = session.position;
+		}
+		Log.i(TAG, "Restoring session at " + track + " " + position);
+		setQueue(PlayQueue.restore(session.queue, session.index, session.shuffleSeed, session.shuffleDraws));
+		artist = session.artist;
+		artistAbsPath = session.artistAbsPath;
+		album = session.album;
+		_shuffle = session.shuffle;
+		startPlayingFile(position);
+		updateNotification();
+		sendStateToClients();
+		return true;
+	}
+
+
+	/**
+	 * Called periodically to catch changes the service didn't make itself
+	 * (e.g. the media player stopping on its own) and to correct clients whose
+	 * extrapolated position has drifted. Sends nothing if all is as expected.
+	 */
+	private synchronized void checkForStateChange() {
+		boolean playing = mp.isPlaying();
+		if (songFile != reportedSongFile || playing != reportedPlaying) {
+			sendStateToClients();
+		} else if (playing) {
+			int position = getPosition();
+			long now = SystemClock.elapsedRealtime();
+			writeStateBlock(position, now);
+			if (checkForChapterChange(position)) {
+				return;
+			}
+			long expected = anchorPosition + (now - anchorTime);
+			if (Math.abs(position - expected) > ANCHOR_DRIFT_TOLERANCE_MS) {
+				sendPositionAnchorToClients();
+			}
+		}
+	}
+
+	/**
+	 * Tell everyone if playback has moved into another chapter.
+	 * @return true if it had
+	 */
+	private boolean checkForChapterChange(int position) {
+		if (chapters.chapterAt(position) == reportedChapter) {
+			return false;
+		}
+		lastPosition = position;
+		sendStateToClients();
+		updateNotification();
+		return true;
+	}
+
+	/**
+	 * Send the full playback state to all clients. This should be called
+	 * whenever the track, play state or shuffle state changes.
+	 */
+	private synchronized void sendStateToClients() {
+		if (songFile != reportedSongFile) {
+			if (songFile != null) {
+				prettySongName = Utils.getPrettySongName(songFile);
+				prettyAlbumName = songFile.getParentFile().getName();
+				prettyArtistName = songFile.getParentFile().getParentFile().getName();
+			} else {
+				// songFile can be null while we're shutting down.
+				prettySongName = " ";
+				prettyAlbumName = " ";
+				prettyArtistName = " ";
+			}
+			reportedSongFile = songFile;
+		}
+		reportedPlaying = mp.isPlaying();
+		updateAnchor();
+		reportedChapter = chapters.chapterAt(anchorPosition);
+		String songPath = songFile == null ? null : songFile.getAbsolutePath();
+		String chapterTitle = reportedChapter >= 0 ? chapterTitle(reportedChapter) : null;
+
+		if (hasMessengerClients()) {
+			Bundle b = new Bundle();
+			b.putString(PRETTY_SONG_NAME, prettySongName);
+			b.putString(PRETTY_ALBUM_NAME, prettyAlbumName);
+			b.putString(PRETTY_ARTIST_NAME, prettyArtistName);
+			if (songPath != null) {
+				b.putString(SONG_PATH, songPath);
+			}
+			b.putBoolean(IS_SHUFFLING, this._shuffle);
+			if (reportedPlaying) {
+				b.putInt(PLAYBACK_STATE, PlaybackState.PLAYING.ordinal());
+			} else {
+				b.putInt(PLAYBACK_STATE, PlaybackState.PAUSED.ordinal());
+			}
+			b.putInt(TRACK_DURATION, lastDuration);
+			putAnchor(b);
+			b.putInt(CHAPTER_COUNT, chapters.size());
+			b.putInt(CHAPTER_INDEX, reportedChapter);
+			if (chapterTitle != null) {
+				b.putString(CHAPTER_TITLE, chapterTitle);
+			}
+			sendToClients(MSG_SERVICE_STATUS, b);
+		}
+
+		synchronized (mCallbacks) {
+			int count = mCallbacks.beginBroadcast();
+			for (int i = 0; i < count; i++) {
+				try {
+					mCallbacks.getBroadcastItem(i).onStatus(songPath, prettySongName, prettyAlbumName,
+							prettyArtistName, reportedPlaying, _shuffle, lastDuration, anchorPosition,
+							anchorTime, playbackRate(), reportedChapter, chapters.size(), chapterTitle);
+				} catch (RemoteException e) {
+					// RemoteCallbackList drops it when the binder dies
 				}
-				// We might not be able to send the position right away if mp is
-				// still being created
-				// so instead let's send the last position we knew about.
-				if (mp.isPlaying()) {
-					lastDuration = mp.getDuration();
-					lastPosition = mp.getCurrentPosition();
+			}
+			mCallbacks.finishBroadcast();
+		}
+		updateSchedule();
+		saveSession();
+	}
+
+	/**
+	 * Send just the current position to all clients, for when the position
+	 * jumped without the track or play state changing (e.g. a seek).
+	 */
+	private synchronized void sendPositionAnchorToClients() {
+		reportedPlaying = mp.isPlaying();
+		updateAnchor();
+		if (hasMessengerClients()) {
+			Bundle b = new Bundle();
+			b.putInt(TRACK_DURATION, lastDuration);
+			putAnchor(b);
+			sendToClients(MSG_POSITION_ANCHOR, b);
+		}
+		synchronized (mCallbacks) {
+			int count = mCallbacks.beginBroadcast();
+			for (int i = 0; i < count; i++) {
+				try {
+					mCallbacks.getBroadcastItem(i).onPositionAnchor(lastDuration, anchorPosition, anchorTime,
+							playbackRate());
+				} catch (RemoteException e) {
+					// RemoteCallbackList drops it when the binder dies
 				}
-				b.putInt(TRACK_DURATION, lastDuration);
-				b.putInt(TRACK_POSITION, lastPosition);
-				msg.setData(b);
+			}
+			mCallbacks.finishBroadcast();
+		}
+		bookmark(anchorPosition);
+	}
+
+	private void updateAnchor() {
+		// We might not be able to read the position right away if mp is
+		// still being created, so in that case use the last position we knew about.
+		if (reportedPlaying) {
+			lastDuration = getDuration();
+			lastPosition = getPosition();
+		}
+		anchorPosition = lastPosition;
+		anchorTime = SystemClock.elapsedRealtime();
+		writeStateBlock(anchorPosition, anchorTime);
+	}
+
+	/**
+	 * Publish a position to the state block. Unlike a client's anchor this
+	 * is refreshed every tick, since rewriting it costs nobody anything.
+	 */
+	private void writeStateBlock(int position, long time) {
+		if (stateBlock == null) {
+			return;
+		}
+		if (songFile != stateBlockSongFile) {
+			stateBlockSongFile = songFile;
+			stateBlockTrackId = songFile == null ? 0 : PlaybackStateBlock.trackId(songFile.getAbsolutePath());
+		}
+		int state = songFile == null ? PlaybackStateBlock.STOPPED
+				: (reportedPlaying ? PlaybackStateBlock.PLAYING : PlaybackStateBlock.PAUSED);
+		stateBlock.write(state, stateBlockTrackId, lastDuration, position, time, playbackRate());
+	}
+
+	/**
+	 * Clients extrapolate the position as
+	 * TRACK_POSITION + (elapsedRealtime() - ANCHOR_TIME) * PLAYBACK_RATE.
+	 */
+	private void putAnchor(Bundle b) {
+		b.putInt(TRACK_POSITION, anchorPosition);
+		b.putLong(ANCHOR_TIME, anchorTime);
+		b.putFloat(PLAYBACK_RATE, playbackRate());
+	}
+
+	private float playbackRate() {
+		return reportedPlaying ? 1.0f : 0.0f;
+	}
+
+	private boolean hasMessengerClients() {
+		synchronized (mClients) {
+			return !mClients.isEmpty();
+		}
+	}
+
+	private void sendToClients(int what, Bundle b) {
+		List<Messenger> toRemove = new ArrayList<Messenger>();
+		synchronized (mClients) {
+			for (Messenger client : mClients) {
+				Message msg = Message.obtain(null, what);
+				msg.setData(new Bundle(b));
 				try {
 					client.send(msg);
 				} catch (RemoteException e) {
@@ -481,6 +1130,7 @@ public class MusicPlaybackService extends Service {
 		unregisterReceiver(headphoneReceiver);
 		am.abandonAudioFocus(MusicPlaybackService.this.audioFocusListener);
 		mAudioManager.unregisterMediaButtonEventReceiver(cn);
+		mediaButtons.deactivate();
 		getApplicationContext().unregisterReceiver(receiver);
 		mp.stop();
 		mp.reset();
@@ -488,48 +1138,133 @@ public class MusicPlaybackService extends Service {
 		if (wakeLock.isHeld()) {
 			wakeLock.release();
 		}
+		notificationController.stop();
+		mServiceHandler.removeCallbacksAndMessages(null);
+		mServiceLooper.quit();
+		Config.removeOnConfigChangeListener(configListener);
+		resumeStore.flush();
+		sessionStore.flush();
+		seekIndexer.shutdownNow();
+		mCallbacks.kill();
+		if (stateBlock != null) {
+			stateBlock.write(PlaybackStateBlock.STOPPED, 0, 0, 0, SystemClock.elapsedRealtime(), 0);
+		}
 		Log.i("MyService", "Service Stopped.");
 		isRunning = false;
 	}
 
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		if (args != null && args.length > 0) {
+			if ("export".equals(args[0])) {
+				exportMetrics(writer);
+				return;
+			} else if ("reset".equals(args[0])) {
+				Metrics.reset();
+				writer.println("Metrics reset");
+				return;
+			} else if ("ipc".equals(args[0])) {
+				writer.println("IPC round trips:");
+				IpcProbe.runRemote(this, writer);
+				return;
+			}
+		}
+		writer.println("Scheduler:");
+		writer.println("  ticks: " + mServiceHandler.tickCount);
+		writer.println("  pause deadlines: " + mServiceHandler.pauseDeadlineCount);
+		writer.println("  resume checkpoints: " + mServiceHandler.resumeCheckpointCount);
+		synchronized (mClients) {
+			writer.println("  clients: " + mClients.size());
+		}
+		notificationController.dump(writer);
+		CodecRegistry.dump(writer);
+		Metrics.dump(writer);
+		EventTrace.dump(writer);
+	}
+
+	/**
+	 * Write the metrics to a JSON and a CSV file, where "adb pull" can get
+	 * them without root.
+	 */
+	private void exportMetrics(PrintWriter writer) {
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			dir = getFilesDir();
+		}
+		String name = "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+		File json = new File(dir, name + ".json");
+		File csv = new File(dir, name + ".csv");
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new FileWriter(json));
+			Metrics.writeJson(out, Build.FINGERPRINT);
+			out.close();
+			out = new BufferedWriter(new FileWriter(csv));
+			Metrics.writeCsv(out);
+			out.close();
+			out = null;
+			writer.println("Metrics written to " + json + " and " + csv);
+		} catch (IOException e) {
+			writer.println("Unable to export metrics: " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
 	private synchronized void jumpback(){
+		if (!ensureSession(MSG_JUMPBACK, 0)) {
+			return;
+		}
 		if (mp.isPlaying()) {
-			int progressMillis = mp.getCurrentPosition();
+			int progressMillis = getPosition();
 			if (progressMillis <= 20000) {
-				mp.seekTo(0);
+				seekTo(0);
 			} else {
-				mp.seekTo(progressMillis - 20000);
+				seekTo(progressMillis - 20000);
 			}
-			lastPosition = mp.getCurrentPosition();
+			lastPosition = getPosition();
 		} else {
 			// if we're paused but initialized, try to seek
 			try{
-				int progressMillis = mp.getCurrentPosition();
+				int progressMillis = getPosition();
 				if (progressMillis <= 20000) {
-					mp.seekTo(0);
+					seekTo(0);
 				} else {
-					mp.seekTo(progressMillis - 20000);
+					seekTo(progressMillis - 20000);
 				}
-				lastPosition = mp.getCurrentPosition();
+				lastPosition = getPosition();
 			} catch (Exception e){
 				Log.w(TAG, "Unable to seek to position, file may not have been loaded");
 			}
 		}
-
+		sendPositionAnchorToClients();
 	}
 
 	private synchronized void previous() {
+		long requested = System.nanoTime();
+		if (!ensureSession(MSG_PREVIOUS, 0)) {
+			return;
+		}
 		// if we're playing, and we're more than 3 seconds into the file, then
 		// just
 		// start the song over
 		if (mp.isPlaying()) {
-			int progressMillis = mp.getCurrentPosition();
+			int progressMillis = getPosition();
 			if (progressMillis > 3000) {
-				mp.seekTo(0);
+				seekTo(0);
+				lastPosition = 0;
+				sendPositionAnchorToClients();
 				return;
 			}
 		}
 
+		cancelVolumeRamp();
 		mp.stop();
 		mp.reset();
 		try {
@@ -538,18 +1273,16 @@ public class MusicPlaybackService extends Service {
 			Log.w(TAG, "Failed to close the file");
 			e.printStackTrace();
 		}
-		songAbsoluteFileNamesPosition = songAbsoluteFileNamesPosition - 1;
-		if (songAbsoluteFileNamesPosition < 0) {
-			songAbsoluteFileNamesPosition = songAbsoluteFileNames.length - 1;
-		}
-		String next = songAbsoluteFileNames[songAbsoluteFileNamesPosition];
+		String next = queue.previous();
 		try {
 			songFile = new File(next);
 			fis = new FileInputStream(songFile);
 			mp.setDataSource(fis.getFD());
 			mReadaheadThread.setSource(songFile.getAbsolutePath());
-			mp.prepare();
+			loadSongIndexes();
+			prepare();
 			mp.start();
+			recordTrackStart(requested);
 		} catch (IOException e) {
 			Log.w(TAG, "Failed to open " + next);
 			e.printStackTrace();
@@ -557,12 +1290,283 @@ public class MusicPlaybackService extends Service {
 			previous();
 		}
 		updateNotification();
+		sendStateToClients();
+	}
+
+	/**
+	 * Prepare the media player, recording how long it took.
+	 */
+	private void prepare() throws IOException {
+		long start = System.nanoTime();
+		boolean prepared = false;
+		long traceStart = EventTrace.begin(EventTrace.PREPARE);
+		try {
+			mp.prepare();
+			prepared = true;
+		} finally {
+			EventTrace.end(EventTrace.PREPARE, traceStart, queue == null ? -1 : queue.getPosition());
+			if (prepared) {
+				Metrics.PREPARE.record(Metrics.microsSince(start));
+			} else {
+				Metrics.PREPARE_FAILURES.increment();
+			}
+		}
+	}
+
+	/**
+	 * Record how long it took from the request (or the end of the last
+	 * track) until the new track started playing.
+	 */
+	private void recordTrackStart(long requestNanos) {
+		Metrics.TRACKS_STARTED.increment();
+		if (completedAtNanos != 0) {
+			Metrics.TRACK_GAP.record(Metrics.microsSince(completedAtNanos));
+			completedAtNanos = 0;
+		} else {
+			Metrics.SKIP_TO_AUDIO.record(Metrics.microsSince(requestNanos));
+		}
+	}
+
+	/**
+	 * Seek to a real position. In a VBR MP3 without a table of contents
+	 * MediaPlayer has to be asked for a different time to land there.
+	 */
+	private void seekTo(int position) {
+		long traceStart = EventTrace.begin(EventTrace.SEEK);
+		try {
+			int playerPosition = position;
+			positionCorrection = 0;
+			pendingResume = -1;
+			uncorrectedSeek = seekIndex == null && position > 0;
+			if (seekIndex != null && seekIndex.needsPlayerCorrection() && position > 0) {
+				try {
+					SeekIndex.Seek seek = seekIndex.seek(songFile, position);
+					playerPosition = seek.playerTimeMs;
+					positionCorrection = seek.timeMs - seek.playerTimeMs;
+				} catch (IOException e) {
+					Log.w(TAG, "Unable to use the seek index for " + songFile, e);
+				}
+			}
+			mp.seekTo(playerPosition);
+		} finally {
+			EventTrace.end(EventTrace.SEEK, traceStart, position);
+		}
+	}
+
+	/**
+	 * @return the real position in the current song
+	 */
+	private int getPosition() {
+		return mp.getCurrentPosition() + positionCorrection;
+	}
+
+	/**
+	 * @return the real duration of the current song; MediaPlayer guesses it
+	 * from the first frame's bitrate in VBR MP3s without a table of contents
+	 */
+	private int getDuration() {
+		if (seekIndex != null && seekIndex.needsPlayerCorrection()) {
+			return seekIndex.getDurationMs();
+		}
+		return mp.getDuration();
+	}
+
+	/**
+	 * Pick up the new song's seek index and chapters if they're in memory,
+	 * or load them in the background: from the cache if they were read
+	 * before, otherwise from the song. Until the seek index is ready seeks
+	 * go straight to MediaPlayer, and are redone once it arrives.
+	 */
+	private void loadSongIndexes() {
+		positionCorrection = 0;
+		uncorrectedSeek = false;
+		pendingResume = -1;
+		final File song = songFile;
+		seekIndex = songIndexes.getLoadedSeekIndex(song);
+		ChapterIndex loaded = songIndexes.getLoadedChapters(song);
+		chapters = loaded == null ? ChapterIndex.NONE : loaded;
+		final boolean needChapters = loaded == null;
+		final boolean needSeekIndex = seekIndex == null;
+		if (!needChapters && !needSeekIndex) {
+			return;
+		}
+		seekIndexer.execute(new Runnable() {
+			@Override
+			public void run() {
+				SeekIndex index = null;
+				if (needSeekIndex) {
+					index = songIndexes.getSeekIndex(song);
+					postSeekIndex(song, index);
+				}
+				// Chapters next: they only take reading the tags
+				if (needChapters) {
+					final ChapterIndex read = songIndexes.getOrReadChapters(song);
+					if (read.size() > 0) {
+						mServiceHandler.post(new Runnable() {
+							@Override
+							public void run() {
+								onChaptersRead(song, read);
+							}
+						});
+					}
+				}
+				// Only MP3s that MediaPlayer would seek by guesswork are worth reading through
+				if (needSeekIndex && index == null && mayNeedSeekIndex(song)) {
+					postSeekIndex(song, songIndexes.getOrBuildSeekIndex(song));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hand a seek index from the indexer thread to the service.
+	 */
+	private void postSeekIndex(final File song, final SeekIndex index) {
+		if (index == null) {
+			return;
+		}
+		mServiceHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				onSeekIndexBuilt(song, index);
+			}
+		});
+	}
+
+	private static boolean mayNeedSeekIndex(File song) {
+		try {
+			return SeekIndex.mayNeedPlayerCorrection(song);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read " + song, e);
+			return false;
+		}
+	}
+
+	private synchronized void onChaptersRead(File song, ChapterIndex read) {
+		if (!song.equals(songFile) || chapters.size() > 0) {
+			return;
+		}
+		chapters = read;
+		if (pendingResume >= 0) {
+			int resumeAt = snapToChapter(pendingResume);
+			if (resumeAt != pendingResume) {
+				seekTo(resumeAt);
+				lastPosition = resumeAt;
+				sendPositionAnchorToClients();
+			}
+			pendingResume = -1;
+		}
+		updateNotification();
+		sendStateToClients();
+	}
+
+	private synchronized void onSeekIndexBuilt(File song, SeekIndex index) {
+		if (!song.equals(songFile) || seekIndex != null) {
+			return;
+		}
+		if (EventTrace.DEBUG) {
+			Log.d(TAG, "Built " + index + " for " + song);
+		}
+		seekIndex = index;
+		if (!index.needsPlayerCorrection()) {
+			return;
+		}
+		boolean moved = false;
+		if (uncorrectedSeek) {
+			// MediaPlayer reports positions from where it was asked to seek
+			// to, so what it says now is where we should be
+			int position = mp.getCurrentPosition();
+			seekTo(position);
+			lastPosition = position;
+			moved = true;
+		}
+		if (moved || index.getDurationMs() != lastDuration) {
+			lastDuration = index.getDurationMs();
+			sendPositionAnchorToClients();
+		}
+	}
+
+	/**
+	 * Move to the next chapter, or the next track after the last one.
+	 * Chapter seeks go through seekTo, and so the seek index.
+	 */
+	private synchronized void nextChapter() {
+		if (!ensureSession(MSG_NEXT_CHAPTER, 0)) {
+			return;
+		}
+		int chapter = chapters.chapterAt(getPosition());
+		if (chapter + 1 >= chapters.size()) {
+			next();
+			return;
+		}
+		jumpToChapter(chapter + 1);
+	}
+
+	/**
+	 * Restart the current chapter, or go to the previous one if we're near
+	 * its start. Before the first chapter this is the same as previous().
+	 */
+	private synchronized void previousChapter() {
+		if (!ensureSession(MSG_PREVIOUS_CHAPTER, 0)) {
+			return;
+		}
+		int position = getPosition();
+		int chapter = chapters.chapterAt(position);
+		if (chapter < 0) {
+			previous();
+			return;
+		}
+		if (position - chapters.getStartMs(chapter) <= CHAPTER_RESTART_MS) {
+			if (chapter == 0) {
+				previous();
+				return;
+			}
+			chapter--;
+		}
+		jumpToChapter(chapter);
+	}
+
+	private void jumpToChapter(int chapter) {
+		int position = chapters.getStartMs(chapter);
+		try {
+			seekTo(position);
+			lastPosition = position;
+		} catch (IllegalStateException e) {
+			Log.w(TAG, "Unable to seek to chapter " + chapter + ", file may not have been loaded");
+		}
+		updateNotification();
+		sendStateToClients();
+	}
+
+	/**
+	 * @return the chapter's title, or its number if it doesn't have one
+	 */
+	private String chapterTitle(int chapter) {
+		String title = chapters.getTitle(chapter);
+		if (title.length() == 0) {
+			return getResources().getString(R.string.chapter_number, chapter + 1);
+		}
+		return title;
+	}
+
+	/**
+	 * Picking a book back up just after a chapter starts means hearing the
+	 * chapter from its start.
+	 * @return where to resume from
+	 */
+	private int snapToChapter(int position) {
+		int chapter = chapters.chapterAt(position);
+		if (chapter >= 0 && position - chapters.getStartMs(chapter) < CHAPTER_RESUME_SNAP_MS) {
+			return chapters.getStartMs(chapter);
+		}
+		return position;
 	}
 
 	private synchronized void startPlayingFile(int songProgress) {
+		cancelVolumeRamp();
 		// Have we loaded a file yet?
 		if (mp.getDuration() > 0) {
-			pause();
+			pauseNow();
 			mp.stop();
 			mp.reset();
 		}
@@ -572,10 +1576,18 @@ public class MusicPlaybackService extends Service {
 			fis = new FileInputStream(songFile);
 			mp.setDataSource(fis.getFD());
 			mReadaheadThread.setSource(songFile.getAbsolutePath());
-			mp.prepare();
+			loadSongIndexes();
+			prepare();
+			songProgress = snapToChapter(songProgress);
 			if(songProgress > 0){
-				mp.seekTo(songProgress);
+				seekTo(songProgress);
+			}
+			if(chapters.size() == 0){
+				// Snap once the chapters are known, if they're still loading
+				pendingResume = songProgress;
 			}
+			lastDuration = getDuration();
+			lastPosition = songProgress;
 			wakeLock.acquire();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -590,20 +1602,49 @@ public class MusicPlaybackService extends Service {
 
 	private synchronized void jumpTo(int position){
 		if(mp.isPlaying()){
-			mp.seekTo(position);
+			seekTo(position);
+			lastPosition = position;
 		} else {
 			// if we're paused but initialized, try to seek
 			try{
-				mp.seekTo(position);
-				lastPosition = mp.getCurrentPosition();
+				seekTo(position);
+				lastPosition = getPosition();
 			} catch (Exception e){
 				Log.w(TAG, "Unable to seek to position, file may not have been loaded");
 			}
 		}
+		sendPositionAnchorToClients();
+	}
+
+	/**
+	 * Seek relative to the current position, without leaving the song.
+	 */
+	private synchronized void seekBy(int deltaMs){
+		if (!ensureSession(MSG_SEEK_BY, deltaMs)) {
+			return;
+		}
+		int position;
+		try {
+			position = getPosition();
+		} catch (IllegalStateException e) {
+			Log.w(TAG, "Unable to seek, file may not have been loaded");
+			return;
+		}
+		position = Math.max(0, position + deltaMs);
+		int duration = getDuration();
+		if (duration > 0) {
+			position = Math.min(position, duration);
+		}
+		jumpTo(position);
 	}
 
 	private synchronized void playPause() {
-		if (mp.isPlaying()) {
+		if (!ensureSession(MSG_PLAYPAUSE, 0)) {
+			return;
+		}
+		// During the pause fade the player is still playing, but to the user
+		// it's already paused, so a second press resumes
+		if (mp.isPlaying() && !pauseAfterRamp) {
 			pause();
 		} else {
 			play();
@@ -612,8 +1653,15 @@ public class MusicPlaybackService extends Service {
 
 
 	private synchronized void play() {
-		pauseTime = Long.MAX_VALUE;
-		if (mp.isPlaying()) {
+		if (!ensureSession(MSG_PLAY, 0)) {
+			return;
+		}
+		mServiceHandler.removeMessages(ServiceHandler.PAUSE_DEADLINE);
+		if (pauseAfterRamp) {
+			// Still fading out, so fade back in instead
+			pauseAfterRamp = false;
+			rampVolume(targetVolume(), RESUME_FADE_MS);
+		} else if (mp.isPlaying()) {
 			// do nothing
 		} else {
 			// Request audio focus for playback
@@ -623,13 +1671,18 @@ public class MusicPlaybackService extends Service {
 					AudioManager.STREAM_MUSIC,
 					// Request permanent focus.
 					AudioManager.AUDIOFOCUS_GAIN);
-			Log.d(TAG, "requestAudioFocus result = " + result);
+			if (EventTrace.DEBUG) {
+				Log.d(TAG, "requestAudioFocus result = " + result);
+			}
 			Log.i(TAG, "About to play " + songFile);
 
 			if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
 				Log.d(TAG, "We got audio focus!");
+				setVolume(0);
 				mp.start();
+				rampVolume(targetVolume(), RESUME_FADE_MS);
 				updateNotification();
+				sendStateToClients();
 				wakeLock.acquire();
 			} else {
 				Log.e(TAG, "Unable to get audio focus");
@@ -638,9 +1691,43 @@ public class MusicPlaybackService extends Service {
 	}
 
 	/**
-	 * Pause the currently playing song.
+	 * Pause the currently playing song, after a quick fade out.
 	 */
 	private synchronized void pause() {
+		if (pauseAfterRamp) {
+			return;
+		}
+		boolean playing;
+		try {
+			playing = mp.isPlaying();
+		} catch (IllegalStateException e) {
+			playing = false;
+		}
+		if (playing) {
+			pauseAfterRamp = true;
+			rampVolume(0, PAUSE_FADE_MS);
+		} else {
+			pauseNow();
+		}
+	}
+
+	/**
+	 * Pause without a fade, for when the sound has to stop at once: the
+	 * headphones came out, so a fade would play through the speaker, or
+	 * another app has taken the audio.
+	 */
+	private synchronized void pauseImmediately() {
+		mServiceHandler.removeMessages(ServiceHandler.VOLUME_RAMP);
+		volumeRamp = null;
+		setVolume(0);
+		pauseNow();
+	}
+
+	/**
+	 * Pause right away.
+	 */
+	private synchronized void pauseNow() {
+		pauseAfterRamp = false;
 		// Sometimes the call to isPlaying can throw an error "internal/external state mismatch corrected"
 		// When this happens, I think the player moves itself to "paused" even though it's still playing.
 		//if (mp.isPlaying()) {
@@ -650,61 +1737,104 @@ public class MusicPlaybackService extends Service {
 		try{
 			// this is a hack, but it seems to be the most consistent way to address the problem
 			// this forces the media player to check its current state before trying to pause.
-			int position = mp.getCurrentPosition();
+			int position = getPosition();
 			mp.stop();
-			mp.prepare();
-			mp.seekTo(position);
+			prepare();
+			Metrics.PAUSE_REPREPARES.increment();
+			seekTo(position);
+			lastPosition = position;
+			bookmark(position);
 			wakeLock.release();
 		} catch (Exception e){
 			Log.w(TAG, "Caught exception while trying to pause ", e);
 		}
 		//}
 		updateNotification();
+		sendStateToClients();
 	}
 
 	/**
-	 *
+	 * Move the volume smoothly to a new level, from wherever it is now.
 	 */
-	private void resetShuffle(){
-		synchronized(shuffleFrontList){
-			shuffleFrontList.clear();
-			shuffleBackList.clear();
-			for(int i = 0;i < songAbsoluteFileNames.length;i++){
-				shuffleFrontList.add(i);
-			}
+	private synchronized void rampVolume(float to, long durationMs) {
+		mServiceHandler.removeMessages(ServiceHandler.VOLUME_RAMP);
+		volumeRamp = new VolumeRamp(volume, to, SystemClock.uptimeMillis(), durationMs);
+		stepVolumeRamp();
+	}
+
+	private synchronized void stepVolumeRamp() {
+		if (volumeRamp == null) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		setVolume(volumeRamp.gainAt(now));
+		if (!volumeRamp.isDone(now)) {
+			mServiceHandler.sendEmptyMessageDelayed(ServiceHandler.VOLUME_RAMP, VOLUME_STEP_MS);
+			return;
+		}
+		volumeRamp = null;
+		if (pauseAfterRamp) {
+			pauseNow();
 		}
 	}
 
-	// Props to this fellow: https://stackoverflow.com/questions/5467174/how-to-implement-a-repeating-shuffle-thats-random-but-not-too-random
-	private int grabNextShuffledPosition(){
-		synchronized(shuffleFrontList){
-			int threshold = (int) Math.ceil((songAbsoluteFileNames.length + 1) / 2);
-			Log.d(TAG, "threshold: " + threshold);
-			if(shuffleFrontList.size() < threshold){
-				Log.d(TAG, "Shuffle queue is half empty, adding a new song...");
-				shuffleFrontList.add(shuffleBackList.get(0));
-				shuffleBackList.remove(0);
-			}
-			int rand = Math.abs(random.nextInt()) % shuffleFrontList.size();
-			int loc = shuffleFrontList.get(rand);
-			shuffleFrontList.remove(rand);
-			shuffleBackList.add(loc);
-			Log.i(TAG, "next position is: " + loc);
-			String front = "";
-			String back = "";
-			for(int i : shuffleFrontList){
-				front = front + "," + i;
-			}
-			for(int i : shuffleBackList){
-				back = back + "," + i;
-			}
-			Log.i(TAG, "Front list = " + front);
-			Log.i(TAG, "Back list = " + back);
-			return loc;
+	/**
+	 * Stop any ramp, and any pause waiting on one, and go straight to the
+	 * volume we should be at.
+	 */
+	private synchronized void cancelVolumeRamp() {
+		mServiceHandler.removeMessages(ServiceHandler.VOLUME_RAMP);
+		volumeRamp = null;
+		pauseAfterRamp = false;
+		setVolume(targetVolume());
+	}
+
+	/**
+	 * Turn down while another app plays something short, if we're playing.
+	 */
+	private synchronized void duck() {
+		if (ducked || pauseAfterRamp || !mp.isPlaying()) {
+			return;
+		}
+		ducked = true;
+		Metrics.FOCUS_DUCKS.increment();
+		rampVolume(DUCK_VOLUME, DUCK_RAMP_MS);
+	}
+
+	/**
+	 * @return true if we were ducked, and are turning back up; playback
+	 * never stopped, so there's nothing to resume
+	 */
+	private synchronized boolean unduck() {
+		if (!ducked) {
+			return false;
+		}
+		ducked = false;
+		if (!pauseAfterRamp && mp.isPlaying()) {
+			rampVolume(targetVolume(), UNDUCK_RAMP_MS);
+		}
+		return true;
+	}
+
+	private float targetVolume() {
+		return ducked ? DUCK_VOLUME : 1.0f;
+	}
+
+	private void setVolume(float level) {
+		volume = level;
+		try {
+			mp.setVolume(level, level);
+		} catch (IllegalStateException e) {
+			Log.w(TAG, "Unable to set the volume", e);
 		}
 	}
 
 	private synchronized void next() {
+		long requested = System.nanoTime();
+		if (!ensureSession(MSG_NEXT, 0)) {
+			return;
+		}
+		cancelVolumeRamp();
 		mp.stop();
 		mp.reset();
 		try {
@@ -714,20 +1844,22 @@ public class MusicPlaybackService extends Service {
 			e.printStackTrace();
 		}
 
-		if(!this._shuffle){
-			songAbsoluteFileNamesPosition = (songAbsoluteFileNamesPosition + 1)
-					% songAbsoluteFileNames.length;
-		} else {
-			songAbsoluteFileNamesPosition = grabNextShuffledPosition();
+		String next = queue.next(this._shuffle);
+		if (this._shuffle) {
+			EventTrace.instant(EventTrace.SHUFFLE, queue.getPosition());
+			if (EventTrace.VERBOSE) {
+				Log.v(TAG, "next position is: " + queue);
+			}
 		}
-		String next = songAbsoluteFileNames[songAbsoluteFileNamesPosition];
 		try {
 			songFile = new File(next);
 			fis = new FileInputStream(songFile);
 			mp.setDataSource(fis.getFD());
 			mReadaheadThread.setSource(songFile.getAbsolutePath());
-			mp.prepare();
+			loadSongIndexes();
+			prepare();
 			mp.start();
+			recordTrackStart(requested);
 		} catch (IOException e) {
 			Log.w(TAG, "Failed to open " + next);
 			e.printStackTrace();
@@ -735,100 +1867,38 @@ public class MusicPlaybackService extends Service {
 			next();
 		}
 		updateNotification();
+		sendStateToClients();
 	}
 
-	public void toggleShuffle() {
+	public synchronized void toggleShuffle() {
 		this._shuffle = !this._shuffle ;
+		sendStateToClients();
 	}
 
-	private void updateNotification() {
-		boolean audiobookMode = sharedPref.getBoolean("pref_audiobook_mode", false);
-
-		// https://stackoverflow.com/questions/5528288/how-do-i-update-the-notification-text-for-a-foreground-service-in-android
-		Intent resultIntent = new Intent(this, NowPlaying.class);
-		// Use the FLAG_ACTIVITY_CLEAR_TOP to prevent launching a second
-		// NowPlaying if one already exists.
-		resultIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-		resultIntent.putExtra("From_Notification", true);
-		resultIntent.putExtra(AlbumList.ALBUM_NAME, album);
-		resultIntent.putExtra(ArtistList.ARTIST_NAME, artist);
-		resultIntent.putExtra(ArtistList.ARTIST_ABS_PATH_NAME, artistAbsPath);
-
-		PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
-				resultIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+	private final Config.OnConfigChangeListener configListener = new Config.OnConfigChangeListener() {
+		@Override
+		public void onConfigChanged(Config oldConfig, Config newConfig) {
+			config = newConfig;
+			if (oldConfig.audiobookMode != newConfig.audiobookMode && songFile != null) {
+				// The notification buttons depend on audiobook mode
+				updateNotification();
+			}
+		}
+	};
 
-		Builder builder = new NotificationCompat.Builder(
-				this.getApplicationContext());
-		int icon = R.drawable.ic_pgmp_launcher;
+	private void updateNotification() {
 		String contentText = getResources().getString(R.string.ticker_text);
 		if (songFile != null) {
-			SharedPreferences prefs = getSharedPreferences(
-					"PrettyGoodMusicPlayer", MODE_PRIVATE);
-			prefs.edit();
-			File bestGuessMusicDir = Utils.getBestGuessMusicDirectory();
-			String musicRoot = prefs.getString("ARTIST_DIRECTORY",
-					bestGuessMusicDir.getAbsolutePath());
-			contentText = Utils.getArtistName(songFile, musicRoot) + ": "
+			contentText = Utils.getArtistName(songFile, config.musicDirectory) + ": "
 					+ Utils.getPrettySongName(songFile);
-			if (mp != null) {
-				if (mp.isPlaying()) {
-					icon = R.drawable.ic_pgmp_launcher;
-				}
+			int chapter = chapters.chapterAt(lastPosition);
+			if (chapter >= 0) {
+				contentText += " - " + chapterTitle(chapter);
 			}
 		}
-
-		Intent previousIntent = new Intent("Previous", null, this, MusicPlaybackService.class);
-		previousIntent.putExtra("Message", MSG_PREVIOUS);
-		PendingIntent previousPendingIntent = PendingIntent.getService(this, 0, previousIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-		Intent jumpBackIntent = new Intent("JumpBack", null, this, MusicPlaybackService.class);
-		jumpBackIntent.putExtra("Message", MSG_JUMPBACK);
-		PendingIntent jumpBackPendingIntent = PendingIntent.getService(this, 0, jumpBackIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-		Intent nextIntent = new Intent("Next", null, this, MusicPlaybackService.class);
-		nextIntent.putExtra("Message", MSG_NEXT);
-		PendingIntent nextPendingIntent = PendingIntent.getService(this, 0, nextIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-		PendingIntent playPausePendingIntent;
-		Intent playPauseIntent = new Intent("PlayPause", null, this, MusicPlaybackService.class);
-		playPauseIntent.putExtra("Message", MSG_PLAYPAUSE);
-		playPausePendingIntent = PendingIntent.getService(this, 0, playPauseIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-		int playPauseIcon;
-		if(mp != null && mp.isPlaying()){
-			playPauseIcon = R.drawable.ic_action_pause;
-		} else {
-			playPauseIcon = R.drawable.ic_action_play;
-		}
-
-		Notification notification;
-		if(audiobookMode){
-			notification = builder
-					.setContentText(contentText)
-					.setSmallIcon(icon)
-					.setWhen(System.currentTimeMillis())
-					.setContentIntent(pendingIntent)
-					.setContentTitle(
-							getResources().getString(R.string.notification_title))
-							.addAction(R.drawable.ic_action_rewind20, "", jumpBackPendingIntent)
-							.addAction(playPauseIcon, "", playPausePendingIntent)
-							.addAction(R.drawable.ic_action_next, "", nextPendingIntent)
-							.build();
-		} else {
-			notification = builder
-					.setContentText(contentText)
-					.setSmallIcon(icon)
-					.setWhen(System.currentTimeMillis())
-					.setContentIntent(pendingIntent)
-					.setContentTitle(
-							getResources().getString(R.string.notification_title))
-							.addAction(R.drawable.ic_action_previous, "", previousPendingIntent)
-							.addAction(playPauseIcon, "", playPausePendingIntent)
-							.addAction(R.drawable.ic_action_next, "", nextPendingIntent)
-							.build();
-		}
-
-		NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-		mNotificationManager.notify(uniqueid, notification);
+		boolean playing = mp != null && mp.isPlaying();
+		notificationController.update(config.audiobookMode, chapters.size() > 0, playing, contentText,
+				album, artist, artistAbsPath);
 	}
 
 	private class PrettyGoodAudioFocusChangeListener implements
@@ -845,12 +1915,17 @@ public class MusicPlaybackService extends Service {
 				} else {
 					stateOnFocusLoss = PlaybackState.PAUSED;
 				}
-				pause();
+				ducked = false;
+				Metrics.FOCUS_PAUSES.increment();
+				pauseImmediately();
 				MusicPlaybackService.this.audioFocusLossTime = System
 						.currentTimeMillis();
 				// Pause playback
 			} else if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
 				Log.i(TAG, "AUDIOFOCUS_GAIN");
+				if (unduck()) {
+					return;
+				}
 				// If it's been less than 20 seconds, resume playback
 				long curr = System.currentTimeMillis();
 				if (((curr - MusicPlaybackService.this.audioFocusLossTime) < 30000)
@@ -867,7 +1942,9 @@ public class MusicPlaybackService extends Service {
 				} else {
 					stateOnFocusLoss = PlaybackState.PAUSED;
 				}
-				pause();
+				ducked = false;
+				Metrics.FOCUS_PAUSES.increment();
+				pauseImmediately();
 				MusicPlaybackService.this.audioFocusLossTime = System
 						.currentTimeMillis();
 				// Stop playback
@@ -880,9 +1957,14 @@ public class MusicPlaybackService extends Service {
 				} else {
 					stateOnFocusLoss = PlaybackState.PAUSED;
 				}
-				pause();
+				// Turn down rather than pause, so the decoder keeps running
+				// through navigation prompts and notification sounds
+				duck();
 			} else if (focusChange == AudioManager.AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK) {
 				Log.i(TAG, "AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK");
+				if (unduck()) {
+					return;
+				}
 				long curr = System.currentTimeMillis();
 				if (((curr - MusicPlaybackService.this.audioFocusLossTime) < 30000)
 						&& stateOnFocusLoss == PlaybackState.PLAYING) {
@@ -914,20 +1996,19 @@ public class MusicPlaybackService extends Service {
 			if(!active){
 				return;
 			}
-			SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
 			if (Intent.ACTION_HEADSET_PLUG.equals(intent.getAction())) {
 				Log.i(TAG, "Got headset plug action");
-				String disconnectBehavior = sharedPref.getString("pref_disconnect_behavior", context.getString(R.string.pause_after_one_sec));
+				int disconnectBehavior = Config.get(context).disconnectBehavior;
 				/*
 				 * state - 0 for unplugged, 1 for plugged. name - Headset type,
 				 * human readable string microphone - 1 if headset has a microphone,
 				 * 0 otherwise
 				 */
-				if(disconnectBehavior.equals(context.getString(R.string.resume_on_quick_reconnect))){
+				if(disconnectBehavior == Config.DISCONNECT_RESUME_ON_QUICK_RECONNECT){
 					if (intent.getIntExtra("state", -1) == 0) {
 						Log.i(TAG, "headphones disconnected, pausing");
 						Intent msgIntent = new Intent(context, MusicPlaybackService.class);
-						msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE);
+						msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE_NOW);
 						context.startService(msgIntent);
 						resumeOnQuickReconnectDisconnectTime = System.currentTimeMillis();
 					} else if (intent.getIntExtra("state", -1) == 1) {
@@ -940,11 +2021,11 @@ public class MusicPlaybackService extends Service {
 							context.startService(msgIntent);
 						}
 					}
-				} else if(disconnectBehavior.equals(context.getString(R.string.resume_on_reconnect))){
+				} else if(disconnectBehavior == Config.DISCONNECT_RESUME_ON_RECONNECT){
 					if (intent.getIntExtra("state", -1) == 0) {
 						Log.i(TAG, "headphones disconnected, pausing");
 						Intent msgIntent = new Intent(context, MusicPlaybackService.class);
-						msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE);
+						msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE_NOW);
 						context.startService(msgIntent);
 						resumeOnQuickReconnectDisconnectTime = System.currentTimeMillis();
 					} else if (intent.getIntExtra("state", -1) == 1) {
@@ -957,7 +2038,7 @@ public class MusicPlaybackService extends Service {
 							context.startService(msgIntent);
 						}
 					}
-				} else if(disconnectBehavior.equals(context.getString(R.string.pause_after_one_sec))){
+				} else if(disconnectBehavior == Config.DISCONNECT_PAUSE_AFTER_ONE_SEC){
 					if (intent.getIntExtra("state", -1) == 0) {
 						Log.i(TAG, "headphones disconnected, pausing in 1 seconds");
 						Intent msgIntent = new Intent(context, MusicPlaybackService.class);
@@ -975,7 +2056,7 @@ public class MusicPlaybackService extends Service {
 					// Pause immediately
 					Log.i(TAG, "headphones disconnected, pausing");
 					Intent msgIntent = new Intent(context, MusicPlaybackService.class);
-					msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE);
+					msgIntent.putExtra("Message", MusicPlaybackService.MSG_PAUSE_NOW);
 					context.startService(msgIntent);
 				}
 			} 
@@ -0,0 +1,281 @@
+/**
+   The Pretty Good Music Player
+   Copyright (C) 2014  Tyler Smith
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.smithdtyler.prettygoodmusicplayer;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationCompat.Builder;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Owns the playback notification. The action PendingIntents and one
+ * Builder per layout are created once and reused. An update is only sent
+ * to the NotificationManager when the visible content changes, and never
+ * more often than MIN_UPDATE_INTERVAL_MS; bursts (e.g. skipping through a
+ * playlist) collapse into a single trailing update.
+ */
+class NotificationController {
+	private static final String TAG = "NotificationController";
+	static final long MIN_UPDATE_INTERVAL_MS = 500;
+
+	private final Service service;
+	private final int notificationId;
+	private final Handler handler;
+	private final NotificationManager notificationManager;
+	private final String title;
+
+	private final PendingIntent previousPendingIntent;
+	private final PendingIntent jumpBackPendingIntent;
+	private final PendingIntent nextPendingIntent;
+	private final PendingIntent playPausePendingIntent;
+	private final PendingIntent previousChapterPendingIntent;
+	private final PendingIntent nextChapterPendingIntent;
+	private PendingIntent contentPendingIntent;
+	private String contentAlbum;
+	private String contentArtist;
+	private String contentArtistAbsPath;
+
+	// indexed by templateIndex(audiobookMode, chapters, playing)
+	private final Builder[] templates = new Builder[8];
+
+	private Content posted;
+	private Content pending;
+	private long lastPostTime;
+	private boolean scheduled;
+	private boolean stopped;
+
+	private int requestCount;
+	private int postCount;
+	private int unchangedCount;
+
+	private final Runnable postPending = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (NotificationController.this) {
+				scheduled = false;
+				if (!stopped && pending != null) {
+					post(pending);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Everything that shows up in the notification. Two equal Contents
+	 * render the same notification.
+	 */
+	private static class Content {
+		final boolean audiobookMode;
+		final boolean chapters;
+		final boolean playing;
+		final String text;
+		final String album;
+		final String artist;
+		final String artistAbsPath;
+
+		Content(boolean audiobookMode, boolean chapters, boolean playing, String text, String album,
+				String artist, String artistAbsPath) {
+			this.audiobookMode = audiobookMode;
+			this.chapters = chapters;
+			this.playing = playing;
+			this.text = text;
+			this.album = album;
+			this.artist = artist;
+			this.artistAbsPath = artistAbsPath;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Content)) {
+				return false;
+			}
+			Content other = (Content) o;
+			return audiobookMode == other.audiobookMode && chapters == other.chapters && playing == other.playing
+					&& equal(text, other.text) && equal(album, other.album)
+					&& equal(artist, other.artist) && equal(artistAbsPath, other.artistAbsPath);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = text == null ? 0 : text.hashCode();
+			return 31 * h + (playing ? 1 : 0) + (audiobookMode ? 2 : 0) + (chapters ? 4 : 0);
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * @param handler trailing updates are posted here
+	 */
+	NotificationController(Service service, int notificationId, Handler handler) {
+		this.service = service;
+		this.notificationId = notificationId;
+		this.handler = handler;
+		notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+		title = service.getResources().getString(R.string.notification_title);
+
+		previousPendingIntent = servicePendingIntent("Previous", MusicPlaybackService.MSG_PREVIOUS);
+		jumpBackPendingIntent = servicePendingIntent("JumpBack", MusicPlaybackService.MSG_JUMPBACK);
+		nextPendingIntent = servicePendingIntent("Next", MusicPlaybackService.MSG_NEXT);
+		playPausePendingIntent = servicePendingIntent("PlayPause", MusicPlaybackService.MSG_PLAYPAUSE);
+		previousChapterPendingIntent = servicePendingIntent("PreviousChapter", MusicPlaybackService.MSG_PREVIOUS_CHAPTER);
+		nextChapterPendingIntent = servicePendingIntent("NextChapter", MusicPlaybackService.MSG_NEXT_CHAPTER);
+	}
+
+	private PendingIntent servicePendingIntent(String action, int message) {
+		Intent intent = new Intent(action, null, service, MusicPlaybackService.class);
+		intent.putExtra("Message", message);
+		return PendingIntent.getService(service, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	/**
+	 * Request that the notification show the given state. Safe to call from
+	 * any thread.
+	 * @param chapters whether the song has chapters, which previous and next
+	 * then move between
+	 */
+	synchronized void update(boolean audiobookMode, boolean chapters, boolean playing, String text, String album,
+			String artist, String artistAbsPath) {
+		requestCount++;
+		if (stopped) {
+			return;
+		}
+		Content content = new Content(audiobookMode, chapters, playing, text, album, artist, artistAbsPath);
+		if (content.equals(posted)) {
+			unchangedCount++;
+			Metrics.NOTIFICATIONS_SKIPPED.increment();
+			pending = null;
+			return;
+		}
+		pending = content;
+		if (scheduled) {
+			return;
+		}
+		long next = lastPostTime + MIN_UPDATE_INTERVAL_MS;
+		if (lastPostTime == 0 || SystemClock.uptimeMillis() >= next) {
+			post(content);
+		} else {
+			scheduled = true;
+			handler.postAtTime(postPending, next);
+		}
+	}
+
+	/**
+	 * Drop any queued update and ignore further ones, so that nothing
+	 * re-posts the notification after the service leaves the foreground.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		pending = null;
+		scheduled = false;
+		handler.removeCallbacks(postPending);
+	}
+
+	private void post(Content content) {
+		pending = null;
+		posted = content;
+		lastPostTime = SystemClock.uptimeMillis();
+		postCount++;
+		Builder builder = template(content.audiobookMode, content.chapters, content.playing);
+		builder.setContentText(content.text)
+				.setWhen(System.currentTimeMillis())
+				.setContentIntent(contentIntent(content));
+		long start = System.nanoTime();
+		long traceStart = EventTrace.begin(EventTrace.NOTIFY);
+		try {
+			notificationManager.notify(notificationId, builder.build());
+		} finally {
+			EventTrace.end(EventTrace.NOTIFY, traceStart, postCount);
+		}
+		Metrics.NOTIFY.record(Metrics.microsSince(start));
+		Metrics.NOTIFICATIONS_POSTED.increment();
+		if (EventTrace.VERBOSE) {
+			Log.v(TAG, "Posted notification " + content.text);
+		}
+	}
+
+	private static int templateIndex(boolean audiobookMode, boolean chapters, boolean playing) {
+		return (chapters ? 4 : 0) + (audiobookMode ? 2 : 0) + (playing ? 1 : 0);
+	}
+
+	private Builder template(boolean audiobookMode, boolean chapters, boolean playing) {
+		int index = templateIndex(audiobookMode, chapters, playing);
+		Builder builder = templates[index];
+		if (builder == null) {
+			int playPauseIcon = playing ? R.drawable.ic_action_pause : R.drawable.ic_action_play;
+			builder = new NotificationCompat.Builder(service.getApplicationContext())
+					.setSmallIcon(R.drawable.ic_pgmp_launcher)
+					.setContentTitle(title);
+			if (audiobookMode) {
+				builder.addAction(R.drawable.ic_action_rewind20, "", jumpBackPendingIntent);
+			} else {
+				builder.addAction(R.drawable.ic_action_previous, "",
+						chapters ? previousChapterPendingIntent : previousPendingIntent);
+			}
+			builder.addAction(playPauseIcon, "", playPausePendingIntent)
+					.addAction(R.drawable.ic_action_next, "", chapters ? nextChapterPendingIntent : nextPendingIntent);
+			templates[index] = builder;
+		}
+		return builder;
+	}
+
+	/**
+	 * The content intent opens NowPlaying on the current album, so it only
+	 * needs rebuilding when the album changes.
+	 */
+	private PendingIntent contentIntent(Content content) {
+		if (contentPendingIntent == null || !equal(content.album, contentAlbum)
+				|| !equal(content.artist, contentArtist)
+				|| !equal(content.artistAbsPath, contentArtistAbsPath)) {
+			// https://stackoverflow.com/questions/5528288/how-do-i-update-the-notification-text-for-a-foreground-service-in-android
+			Intent resultIntent = new Intent(service, NowPlaying.class);
+			// Use the FLAG_ACTIVITY_CLEAR_TOP to prevent launching a second
+			// NowPlaying if one already exists.
+			resultIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+			resultIntent.putExtra("From_Notification", true);
+			resultIntent.putExtra(AlbumList.ALBUM_NAME, content.album);
+			resultIntent.putExtra(ArtistList.ARTIST_NAME, content.artist);
+			resultIntent.putExtra(ArtistList.ARTIST_ABS_PATH_NAME, content.artistAbsPath);
+			contentPendingIntent = PendingIntent.getActivity(service, 0,
+					resultIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+			contentAlbum = content.album;
+			contentArtist = content.artist;
+			contentArtistAbsPath = content.artistAbsPath;
+		}
+		return contentPendingIntent;
+	}
+
+	synchronized void dump(PrintWriter writer) {
+		writer.println("Notifications:");
+		writer.println("  requested: " + requestCount);
+		writer.println("  posted: " + postCount);
+		writer.println("  unchanged: " + unchangedCount);
+		writer.println("  pending: " + (pending != null));
+	}
+}
@@ -18,6 +18,8 @@
 
 package com.smithdtyler.prettygoodmusicplayer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 import android.annotation.SuppressLint;
@@ -29,15 +31,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
-import android.os.Messenger;
 import android.os.RemoteException;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.support.v4.app.TaskStackBuilder;
 import android.util.Log;
 import android.view.Menu;
@@ -48,17 +48,22 @@ import android.view.View.OnLongClickListener;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 
-import com.smithdtyler.prettygoodmusicplayer.MusicPlaybackService.PlaybackState;
-
 public class NowPlaying extends Activity {
 
 	private static final String TAG = "Now Playing";
 	static final String KICKOFF_SONG = "KICKOFF_SONG";
 
+	/**
+	 * How often to move the seek bar while playing. The service only sends
+	 * position anchors when something changes, so the seek bar is advanced locally.
+	 */
+	private static final long PROGRESS_UPDATE_INTERVAL_MS = 250;
+
 	// State information
 	private String desiredArtistName;
 	private String desiredArtistAbsPath;
@@ -70,8 +75,9 @@ public class NowPlaying extends Activity {
 
 	// Messaging and service stuff
 	boolean mIsBound;
-	private Messenger mService;
-	final Messenger mMessenger = new Messenger(new IncomingHandler(this));
+	private IPlaybackService mService;
+	private final IncomingHandler mHandler = new IncomingHandler(this);
+	private final StatusCallback mCallback = new StatusCallback(mHandler);
 	private ServiceConnection mConnection = new NowPlayingServiceConnection(this);
 	private String currentTheme;
 	private String currentSize;
@@ -79,6 +85,32 @@ public class NowPlaying extends Activity {
 	private int desiredSongProgress;
 	private BroadcastReceiver exitReceiver;
 
+	// The last position anchor from the service
+	private int anchorPosition;
+	private long anchorTime;
+	private float playbackRate;
+	private int trackDuration = -1;
+	private boolean progressUpdatesRunning = false;
+	// The service's fresher copy of the anchor, read on every progress update
+	private PlaybackStateBlock stateBlock;
+	private final PlaybackStateBlock.Snapshot stateSnapshot = new PlaybackStateBlock.Snapshot();
+	private long stateSequence = -1;
+	private long stateTrackId;
+	// The song whose art is showing
+	private String artSongPath;
+	// Previous and next move between chapters when the song has them
+	private boolean hasChapters = false;
+
+	private final Runnable progressUpdater = new Runnable() {
+		@Override
+		public void run() {
+			updateSongProgress();
+			if(progressUpdatesRunning && playbackRate > 0){
+				mHandler.postDelayed(this, PROGRESS_UPDATE_INTERVAL_MS);
+			}
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -115,9 +147,9 @@ public class NowPlaying extends Activity {
 
 		}
 
-		SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-		String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-		String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
+		Config config = Config.get(this);
+		String theme = config.theme;
+		String size = config.textSize;
 		Log.i(TAG, "got configured theme " + theme);
 		Log.i(TAG, "got configured size " + size);
 		
@@ -142,7 +174,7 @@ public class NowPlaying extends Activity {
         	}
         }
 
-		boolean fullScreen = sharedPref.getBoolean("pref_full_screen_now_playing", false);
+		boolean fullScreen = config.fullScreenNowPlaying;
 		currentFullScreen = fullScreen;
 		if(fullScreen){
 			requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -172,8 +204,10 @@ public class NowPlaying extends Activity {
 			desiredAbsSongFileNamesPosition = intent.getIntExtra(SongList.SONG_ABS_FILE_NAME_LIST_POSITION, 0);
 			desiredSongProgress = intent.getIntExtra(MusicPlaybackService.TRACK_POSITION, 0);
 
-			Log.d(TAG, "Got song names " + desiredSongAbsFileNames + " position "
-					+ desiredAbsSongFileNamesPosition);
+			if (EventTrace.DEBUG) {
+				Log.d(TAG, "Got song names " + desiredSongAbsFileNames + " position "
+						+ desiredAbsSongFileNamesPosition);
+			}
 
 			TextView et = (TextView) findViewById(R.id.artistName);
 			et.setText(desiredArtistName);
@@ -248,7 +282,9 @@ public class NowPlaying extends Activity {
 			public void onProgressChanged(SeekBar seekBar, int progress,
 					boolean fromUser) {
 				if(fromUser){
-					Log.v(TAG, "drag location updated..." + progress);
+					if (EventTrace.VERBOSE) {
+						Log.v(TAG, "drag location updated..." + progress);
+					}
 					this.requestedProgress = progress;
 					updateSongProgressLabel(progress);
 				}
@@ -262,11 +298,9 @@ public class NowPlaying extends Activity {
 
 			@Override
 			public void onStopTrackingTouch(SeekBar seekBar) {
-				Message msg = Message.obtain(null, MusicPlaybackService.MSG_SEEK_TO);
-				msg.getData().putInt(MusicPlaybackService.TRACK_POSITION, requestedProgress);
 				try {
 					Log.i(TAG, "Sending a request to seek!");
-					mService.send(msg);
+					mService.seekTo(requestedProgress);
 				} catch (RemoteException e) {
 					e.printStackTrace();
 				}
@@ -299,6 +333,112 @@ public class NowPlaying extends Activity {
 		unbindService(mConnection);
 	}
 
+	/**
+	 * Take a new position anchor from the service and move the seek bar to match.
+	 */
+	private void setPositionAnchor(int duration, int position, long time, float rate){
+		if(duration > 0){
+			trackDuration = duration;
+		}
+		anchorPosition = position;
+		anchorTime = time;
+		playbackRate = rate;
+		// The block was written no earlier than this anchor, so look again
+		stateSequence = -1;
+		updateSongProgress();
+		startProgressUpdates();
+	}
+
+	/**
+	 * Show the current chapter, if the song has them.
+	 */
+	private void updateChapter(int chapterCount, String chapterTitle){
+		hasChapters = chapterCount > 0;
+		TextView tv = (TextView) findViewById(R.id.chapterName);
+		if(chapterTitle == null){
+			tv.setVisibility(View.GONE);
+		} else {
+			if(!tv.getText().equals(chapterTitle)){
+				tv.setText(chapterTitle);
+			}
+			tv.setVisibility(View.VISIBLE);
+		}
+	}
+
+	/**
+	 * Show the song's album art, if it changed since the last status.
+	 */
+	private void updateArt(String songPath){
+		if(songPath == null || songPath.equals(artSongPath)){
+			return;
+		}
+		artSongPath = songPath;
+		stateTrackId = PlaybackStateBlock.trackId(songPath);
+		ImageView art = (ImageView) findViewById(R.id.nowPlayingArt);
+		ArtworkCache.get(this).load(new File(songPath), art,
+				getResources().getDimensionPixelSize(R.dimen.now_playing_art));
+	}
+
+	private void updateSongProgress(){
+		readStateBlock();
+		if(trackDuration <= 0 || userDraggingProgress){
+			return;
+		}
+		long position = anchorPosition + (long)((SystemClock.elapsedRealtime() - anchorTime) * playbackRate);
+		position = Math.max(0, Math.min(position, trackDuration));
+		SeekBar seekBar = (SeekBar)findViewById(R.id.songProgressBar);
+		if(seekBar.getMax() != trackDuration){
+			seekBar.setMax(trackDuration);
+		}
+		seekBar.setProgress((int)position);
+		updateSongProgressLabel((int)position);
+	}
+
+	/**
+	 * Take the anchor from the shared state block if the service has written
+	 * a newer one for the song we're showing. It's rewritten every tick, so
+	 * the seek bar never drifts far, without the service messaging us.
+	 */
+	private void readStateBlock(){
+		if(stateBlock == null){
+			try {
+				stateBlock = PlaybackStateBlock.open(new File(getFilesDir(), MusicPlaybackService.STATE_BLOCK_FILE));
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to open the playback state block", e);
+			}
+			if(stateBlock == null){
+				return;
+			}
+		}
+		if(!stateBlock.read(stateSnapshot) || stateSnapshot.sequence == stateSequence){
+			return;
+		}
+		stateSequence = stateSnapshot.sequence;
+		// The block can be ahead of the last status, e.g. during a track change
+		if(stateSnapshot.state == PlaybackStateBlock.STOPPED || stateSnapshot.trackId != stateTrackId){
+			return;
+		}
+		if(stateSnapshot.durationMs > 0){
+			trackDuration = stateSnapshot.durationMs;
+		}
+		anchorPosition = stateSnapshot.positionMs;
+		anchorTime = stateSnapshot.anchorTime;
+		playbackRate = stateSnapshot.rate;
+	}
+
+	private void startProgressUpdates(){
+		mHandler.removeCallbacks(progressUpdater);
+		progressUpdatesRunning = true;
+		if(playbackRate > 0){
+			mHandler.postDelayed(progressUpdater, PROGRESS_UPDATE_INTERVAL_MS);
+		}
+	}
+
+	private void stopProgressUpdates(){
+		progressUpdatesRunning = false;
+		mHandler.removeCallbacks(progressUpdater);
+	}
+
 	private void updateSongProgressLabel(int progress){
 		TextView progressLabel = (TextView)findViewById(R.id.songProgressLabel);
 		int minutes = progress / (1000 * 60);
@@ -310,10 +450,9 @@ public class NowPlaying extends Activity {
 	// Playback control methods
 	private void playPause(){
 		Log.d(TAG, "Play/Pause clicked...");
-		Message msg = Message.obtain(null, MusicPlaybackService.MSG_PLAYPAUSE);
 		try {
 			Log.i(TAG, "Sending a request to start playing!");
-			mService.send(msg);
+			mService.playPause();
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
@@ -321,10 +460,13 @@ public class NowPlaying extends Activity {
 
 	private void next(){
 		Log.d(TAG, "next...");
-		Message msg = Message.obtain(null, MusicPlaybackService.MSG_NEXT);
 		try {
 			Log.i(TAG, "SEnding a request to go to next!");
-			mService.send(msg);
+			if(hasChapters){
+				mService.nextChapter();
+			} else {
+				mService.next();
+			}
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
@@ -332,10 +474,13 @@ public class NowPlaying extends Activity {
 
 	public void previous(){
 		Log.d(TAG, "Previous clicked...");
-		Message msg = Message.obtain(null, MusicPlaybackService.MSG_PREVIOUS);
 		try {
 			Log.i(TAG, "Sending a request to go to previous!");
-			mService.send(msg);
+			if(hasChapters){
+				mService.previousChapter();
+			} else {
+				mService.previous();
+			}
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
@@ -343,10 +488,9 @@ public class NowPlaying extends Activity {
 
 	public void jumpBack(){
 		Log.d(TAG, "JumpBack clicked...");
-		Message msg = Message.obtain(null, MusicPlaybackService.MSG_JUMPBACK);
 		try {
 			Log.i(TAG, "Sending a request to jump back!");
-			mService.send(msg);
+			mService.jumpBack();
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
@@ -354,15 +498,31 @@ public class NowPlaying extends Activity {
 	
 	public void toggleShuffle(){
 		Log.d(TAG, "Shuffle clicked...");
-		Message msg = Message.obtain(null, MusicPlaybackService.MSG_TOGGLE_SHUFFLE);
 		try {
 			Log.i(TAG, "Sending a request to toggle shuffle!");
-			mService.send(msg);
+			mService.toggleShuffle();
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private void setStatusCallback(boolean register){
+		if(mService == null){
+			// We'll register when the service connects
+			return;
+		}
+		try {
+			if(register){
+				mService.registerCallback(mCallback);
+			} else {
+				mService.unregisterCallback(mCallback);
+			}
+		} catch (RemoteException e) {
+			// There is nothing special we need to do if the service has
+			// crashed.
+		}
+	}
+
 	// Service connection management
 	private class NowPlayingServiceConnection implements ServiceConnection {
 
@@ -373,14 +533,11 @@ public class NowPlaying extends Activity {
 		}
 
 		public void onServiceConnected(ComponentName className, IBinder service) {
-			mService = new Messenger(service);
+			mService = IPlaybackService.Stub.asInterface(service);
 
 			// Register with the service
 			try {
-				Message msg = Message.obtain(null,
-						MusicPlaybackService.MSG_REGISTER_CLIENT);
-				msg.replyTo = mMessenger;
-				mService.send(msg);
+				mService.registerCallback(mCallback);
 			} catch (RemoteException e) {
 				// In this case the service has crashed before we could even do
 				// anything with it
@@ -389,25 +546,18 @@ public class NowPlaying extends Activity {
 			if(this._nowPlaying.startPlayingRequired){
 				if(desiredSongAbsFileNames != null){
 					// set the playlist
-					Message msg = Message.obtain(null, MusicPlaybackService.MSG_SET_PLAYLIST);
-					msg.getData().putStringArray(SongList.SONG_ABS_FILE_NAME_LIST, desiredSongAbsFileNames);
-					msg.getData().putInt(SongList.SONG_ABS_FILE_NAME_LIST_POSITION, desiredAbsSongFileNamesPosition);
-					msg.getData().putString(ArtistList.ARTIST_NAME, desiredArtistName);
-					msg.getData().putString(ArtistList.ARTIST_ABS_PATH_NAME, desiredArtistAbsPath);
-					msg.getData().putString(AlbumList.ALBUM_NAME, desiredAlbumName);
-					msg.getData().putInt(MusicPlaybackService.TRACK_POSITION, desiredSongProgress);
 					try {
 						Log.i(TAG, "Sending a playlist!");
-						mService.send(msg);
+						mService.setPlaylist(desiredSongAbsFileNames, desiredAbsSongFileNamesPosition,
+								desiredSongProgress, desiredArtistName, desiredArtistAbsPath, desiredAlbumName);
 					} catch (RemoteException e) {
 						e.printStackTrace();
 					}
 
 					// start playing!
-					msg = Message.obtain(null, MusicPlaybackService.MSG_PLAYPAUSE);
 					try {
 						Log.i(TAG, "Sending a play command!");
-						mService.send(msg);
+						mService.playPause();
 					} catch (RemoteException e) {
 						e.printStackTrace();
 					}
@@ -423,6 +573,135 @@ public class NowPlaying extends Activity {
 		}
 	};
 
+	/**
+	 * Keeps the latest status from the service and pokes the UI thread to
+	 * show it. Callbacks can arrive on any thread; a burst of them costs one
+	 * UI update, and nothing is allocated per update.
+	 */
+	private static class StatusCallback extends IPlaybackCallback.Stub {
+		private final Handler handler;
+
+		// Guarded by this
+		String songPath;
+		String songName;
+		String albumName;
+		String artistName;
+		boolean playing;
+		boolean shuffling;
+		int duration = -1;
+		int position;
+		long anchorTime;
+		float rate;
+		int chapterCount;
+		String chapterTitle;
+
+		StatusCallback(Handler handler){
+			this.handler = handler;
+		}
+
+		@Override
+		public synchronized void onStatus(String songPath, String songName, String albumName, String artistName,
+				boolean playing, boolean shuffling, int durationMs, int positionMs, long anchorTime,
+				float rate, int chapter, int chapterCount, String chapterTitle) {
+			this.songPath = songPath;
+			this.songName = songName;
+			this.albumName = albumName;
+			this.artistName = artistName;
+			this.playing = playing;
+			this.shuffling = shuffling;
+			this.duration = durationMs;
+			this.position = positionMs;
+			this.anchorTime = anchorTime;
+			this.rate = rate;
+			this.chapterCount = chapterCount;
+			this.chapterTitle = chapterTitle;
+			if(!handler.hasMessages(MusicPlaybackService.MSG_SERVICE_STATUS)){
+				handler.sendEmptyMessage(MusicPlaybackService.MSG_SERVICE_STATUS);
+			}
+		}
+
+		@Override
+		public synchronized void onPositionAnchor(int durationMs, int positionMs, long anchorTime, float rate) {
+			this.duration = durationMs;
+			this.position = positionMs;
+			this.anchorTime = anchorTime;
+			this.rate = rate;
+			// A pending status shows the new anchor too
+			if(!handler.hasMessages(MusicPlaybackService.MSG_SERVICE_STATUS)
+					&& !handler.hasMessages(MusicPlaybackService.MSG_POSITION_ANCHOR)){
+				handler.sendEmptyMessage(MusicPlaybackService.MSG_POSITION_ANCHOR);
+			}
+		}
+	}
+
+	/**
+	 * Apply the latest status to the views.
+	 */
+	private void showStatus(){
+		String songPath, songName, albumName, artistName, chapterTitle;
+		boolean playing, shuffling;
+		int chapterCount;
+		synchronized (mCallback) {
+			songPath = mCallback.songPath;
+			songName = mCallback.songName;
+			albumName = mCallback.albumName;
+			artistName = mCallback.artistName;
+			playing = mCallback.playing;
+			shuffling = mCallback.shuffling;
+			chapterCount = mCallback.chapterCount;
+			chapterTitle = mCallback.chapterTitle;
+		}
+		TextView tv = (TextView) findViewById(R.id.songName);
+		if(!tv.getText().equals(songName)){
+			tv.setText(songName);
+		}
+
+		tv = (TextView) findViewById(R.id.albumName);
+		if(!tv.getText().equals(albumName)){
+			tv.setText(albumName);
+		}
+
+		tv = (TextView) findViewById(R.id.artistName);
+		if(!tv.getText().equals(artistName)){
+			tv.setText(artistName);
+		}
+
+		updateArt(songPath);
+		updateChapter(chapterCount, chapterTitle);
+
+		ImageButton shuffle = (ImageButton) findViewById(R.id.shuffle);
+		if(shuffle.isSelected() != shuffling){
+			shuffle.setSelected(shuffling);
+		}
+
+		ImageButton playPause = (ImageButton) findViewById(R.id.playPause);
+		if(playPause.getContentDescription().equals(getResources().getString(R.string.play))){
+			if(playing){
+				playPause.setImageDrawable(getResources().getDrawable(R.drawable.ic_action_pause));
+				playPause.setContentDescription(getResources().getString(R.string.pause));
+			}
+		} else {
+			if(!playing){
+				playPause.setImageDrawable(getResources().getDrawable(R.drawable.ic_action_play));
+				playPause.setContentDescription(getResources().getString(R.string.play));
+			}
+		}
+		showPositionAnchor();
+	}
+
+	private void showPositionAnchor(){
+		int duration, position;
+		long time;
+		float rate;
+		synchronized (mCallback) {
+			duration = mCallback.duration;
+			position = mCallback.position;
+			time = mCallback.anchorTime;
+			rate = mCallback.rate;
+		}
+		setPositionAnchor(duration, position, time, rate);
+	}
+
 	private static class IncomingHandler extends Handler {
 
 		private NowPlaying _activity;
@@ -433,58 +712,21 @@ public class NowPlaying extends Activity {
 
 		@Override
 		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case MusicPlaybackService.MSG_SERVICE_STATUS:
-				String currentSongName = msg.getData().getString(MusicPlaybackService.PRETTY_SONG_NAME);
-				TextView tv = (TextView) _activity.findViewById(R.id.songName);
-				if(!tv.getText().equals(currentSongName)){
-					tv.setText(currentSongName);
-				}
-
-				String currentAlbumName = msg.getData().getString(MusicPlaybackService.PRETTY_ALBUM_NAME);
-				tv = (TextView) _activity.findViewById(R.id.albumName);
-				if(!tv.getText().equals(currentAlbumName)){
-					tv.setText(currentAlbumName);
-				}
-
-				String currentArtistName = msg.getData().getString(MusicPlaybackService.PRETTY_ARTIST_NAME);
-				tv = (TextView) _activity.findViewById(R.id.artistName);
-				if(!tv.getText().equals(currentArtistName)){
-					tv.setText(currentArtistName);
-				}
-
-				boolean isShuffling = msg.getData().getBoolean(MusicPlaybackService.IS_SHUFFLING);
-				ImageButton shuffle = (ImageButton)_activity.findViewById(R.id.shuffle);
-				if(shuffle.isSelected() != isShuffling){
-					shuffle.setSelected(isShuffling);
-				}
-
-				PlaybackState state = PlaybackState.values()[msg.getData().getInt(MusicPlaybackService.PLAYBACK_STATE, 0)];
-				ImageButton playPause = (ImageButton)_activity.findViewById(R.id.playPause);
-				if(playPause.getContentDescription().equals(_activity.getResources().getString(R.string.play))){
-					if(state == PlaybackState.PLAYING){
-						playPause.setImageDrawable(_activity.getResources().getDrawable(R.drawable.ic_action_pause));
-						playPause.setContentDescription(_activity.getResources().getString(R.string.pause));
-					}
-				} else {
-					if(state == PlaybackState.PAUSED){
-						playPause.setImageDrawable(_activity.getResources().getDrawable(R.drawable.ic_action_play));
-						playPause.setContentDescription(_activity.getResources().getString(R.string.play));
-					}
-				}
-				int duration = msg.getData().getInt(MusicPlaybackService.TRACK_DURATION, -1);
-				int position = msg.getData().getInt(MusicPlaybackService.TRACK_POSITION, -1);
-				if(duration > 0){
-					if(!_activity.userDraggingProgress){
-						SeekBar seekBar = (SeekBar)_activity.findViewById(R.id.songProgressBar);
-						seekBar.setMax(duration);
-						seekBar.setProgress(position);
-						_activity.updateSongProgressLabel(position);
-					}
+			// Time spent applying service updates to the views
+			long traceStart = EventTrace.begin(EventTrace.UI_STATUS);
+			try {
+				switch (msg.what) {
+				case MusicPlaybackService.MSG_SERVICE_STATUS:
+					_activity.showStatus();
+					break;
+				case MusicPlaybackService.MSG_POSITION_ANCHOR:
+					_activity.showPositionAnchor();
+					break;
+				default:
+					super.handleMessage(msg);
 				}
-				break;
-			default:
-				super.handleMessage(msg);
+			} finally {
+				EventTrace.end(EventTrace.UI_STATUS, traceStart, msg.what);
 			}
 		}
 	}
@@ -510,10 +752,7 @@ public class NowPlaying extends Activity {
 			// then now is the time to unregister.
 			if (mService != null) {
 				try {
-					Message msg = Message.obtain(null,
-							MusicPlaybackService.MSG_UNREGISTER_CLIENT);
-					msg.replyTo = mMessenger;
-					mService.send(msg);
+					mService.unregisterCallback(mCallback);
 				} catch (RemoteException e) {
 					// There is nothing special we need to do if the service has
 					// crashed.
@@ -575,13 +814,24 @@ public class NowPlaying extends Activity {
 		}
 	}
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		stopProgressUpdates();
+		// Stop listening for updates while we're not visible, so the service can stop ticking.
+		setStatusCallback(false);
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
-		SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+		setStatusCallback(true);
+		updateSongProgress();
+		startProgressUpdates();
+		Config config = Config.get(this);
 
-		String accentColor = sharedPref.getString("accent_color", getResources().getStringArray(R.array.accentcoloroptions)[0]);
-		String customAccentColor = sharedPref.getString("custom_accent_color", "");
+		String accentColor = config.accentColor;
+		String customAccentColor = config.customAccentColor;
 		String colorOptions[] = getResources().getStringArray(R.array.accentcoloroptions);
 		// TODO I'm sure there's a better way to do this, I'm just not sure what it is...
 		for(int i = 0;i<colorOptions.length;i++){
@@ -633,9 +883,9 @@ public class NowPlaying extends Activity {
 			}
 		}
 		
-		String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-		String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
-		boolean fullScreen = sharedPref.getBoolean("pref_full_screen_now_playing", false);
+		String theme = config.theme;
+		String size = config.textSize;
+		boolean fullScreen = config.fullScreenNowPlaying;
 		Log.i(TAG, "got configured theme " + theme);
 		Log.i(TAG, "Got configured size " + size);
 		if(currentTheme == null){
@@ -22,9 +22,8 @@ import android.app.ActionBar;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
@@ -51,15 +50,17 @@ public class SongList extends AbstractMusicList {
 	private boolean hasResume = false;
 	private int resumeFilePos = -1;
 	private int resumeProgress;
-	private String resume;
+	private ResumeStore.Bookmark resume;
 	private String artistDir;
 	private File albumDir;
 	private boolean audiobookMode;
+	private ScanSongsTask scanTask;
 
-	private void populateSongs(String artistName, String albumDirName, String albumPath, String artistAbsDirName){
-		
-		songs = new ArrayList<Map<String,String>>();
-		
+	/**
+	 * Work out which directory the list is for, and whether there's a place
+	 * in it to resume from.
+	 */
+	private void findAlbum(String albumDirName, String albumPath, String artistAbsDirName){
 		File artistDir = new File(artistAbsDirName);
 		if(albumDirName != null && albumPath != null){
 			albumDir = new File(albumPath);
@@ -70,8 +71,7 @@ public class SongList extends AbstractMusicList {
 			albumDir = artistDir; 
 		}
 
-		SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-		resume = prefs.getString(albumDir.getAbsolutePath(), null);
+		resume = AndroidPlatform.getResumeStore(this).getLatest(albumDir.getAbsolutePath());
 		if(resume != null){
 			Log.i(TAG, "Found resumable time! " + resume);
 		} else {
@@ -79,17 +79,25 @@ public class SongList extends AbstractMusicList {
 		}
 		Log.i(TAG, "Artist dir: " + artistDir);
 		Log.i(TAG, "Album dir: " + albumDir);
+	}
 
+	/**
+	 * Find the songs to list. This walks the storage device and may read the
+	 * start of every file, so keep it off the UI thread.
+	 */
+	private static List<File> scanSongs(File albumDir, File artistDir, File baseDir){
 		List<File> songFiles = new ArrayList<File>();
 
 		// Did the user provide an exact path to the album?
 		if(albumDir.exists() && albumDir.isDirectory() && (albumDir.listFiles() != null)){
-			Log.d(TAG, "external storage directory = " + albumDir);
+			if (EventTrace.DEBUG) {
+				Log.d(TAG, "external storage directory = " + albumDir);
+			}
 			
 			for(File song : Utils.getAllSongsInDirRecursive(albumDir)){
 				if(Utils.isValidSongFile(song)){
 					songFiles.add(song);
-				} else {
+				} else if (EventTrace.VERBOSE) {
 					Log.v(TAG, "Found invalid song file " + song);
 				}
 			}
@@ -112,10 +120,9 @@ public class SongList extends AbstractMusicList {
 			songFiles.addAll(songs);
 		} else {
 			// If the album didn't exist, just list all of the songs we can find.
-			Log.d(TAG, "Adding all songs...");
-			File bestGuessMusicDir = Utils.getBestGuessMusicDirectory();
-			String prefDir = prefs.getString("ARTIST_DIRECTORY", bestGuessMusicDir.getAbsolutePath());
-			File baseDir = new File(prefDir);
+			if (EventTrace.DEBUG) {
+				Log.d(TAG, "Adding all songs...");
+			}
 			List<File> albums = Utils.getAllAlbumsInDirRecursive(baseDir);
 
 			Collections.sort(albums, Utils.albumFileComparator);
@@ -137,9 +144,19 @@ public class SongList extends AbstractMusicList {
 				}
 			}
 		}
-		
+		return songFiles;
+	}
+
+	/**
+	 * Show the scanned songs, with a resume entry first if there's one.
+	 * @param resumeChapters the chapters of the song to resume, if they're known
+	 */
+	private void showSongs(List<File> songFiles, ChapterIndex resumeChapters){
+		songs.clear();
 		for(File song : songFiles){
-			Log.v(TAG, "Adding song " + song);
+			if (EventTrace.VERBOSE) {
+				Log.v(TAG, "Adding song " + song);
+			}
 			Map<String,String> map = new HashMap<String, String>();
 			map.put("song", Utils.getPrettySongName(song));			
 			songs.add(map);
@@ -149,17 +166,28 @@ public class SongList extends AbstractMusicList {
 		// add an option to start where they left off
 		if(resume != null && audiobookMode){
 			try{
-				String resumeSongName = resume.substring(0, resume.lastIndexOf('~'));
+				String resumeSongName = resume.trackName;
 				
 				File resumeFile = new File(albumDir, resumeSongName);
 				if(resumeFile.exists()){
-					String progress = resume.substring(resume.lastIndexOf('~') + 1);
-					int prog = Integer.valueOf(progress);
+					int prog = resume.position;
 					resumeProgress = prog;
 					resumeSongName = Utils.getPrettySongName(resumeSongName);
-					int minutes = prog / (1000 * 60);
+					// Name the chapter too, if the book's chapters were read before
+					int chapter = resumeChapters == null ? -1 : resumeChapters.chapterAt(prog);
+					if(chapter >= 0){
+						String title = resumeChapters.getTitle(chapter);
+						if(title.length() == 0){
+							title = getResources().getString(R.string.chapter_number, chapter + 1);
+						}
+						resumeSongName += ", " + title;
+					}
+					int hours = prog / (1000 * 60 * 60);
+					int minutes = (prog % (1000 * 60 * 60)) / (1000 * 60);
 					int seconds = (prog % (1000 * 60)) / 1000;
-					String time = String.format(Locale.getDefault(), "%d:%02d", minutes, seconds);
+					String time = hours > 0
+							? String.format(Locale.getDefault(), "%d:%02d:%02d", hours, minutes, seconds)
+							: String.format(Locale.getDefault(), "%d:%02d", minutes, seconds);
 					Map<String, String> map = new HashMap<String, String>();
 					map.put("song", getResources().getString(R.string.resume) + ": " + resumeSongName + " (" + time + ")");
 					songs.add(0, map);
@@ -183,12 +211,61 @@ public class SongList extends AbstractMusicList {
 			}
 		}
 		
-		songAbsFileNameList = new ArrayList<String>();
+		songAbsFileNameList.clear();
 		for(File song : songFiles){
 			songAbsFileNameList.add(song.getAbsolutePath());
 		}
+		simpleAdpt.notifyDataSetChanged();
+	}
+
+	/**
+	 * Scans for the album's songs, and the chapters of the one to resume,
+	 * then shows them.
+	 */
+	private class ScanSongsTask extends AsyncTask<Void, Void, List<File>> {
+		private final File albumDir;
+		private final File artistDir;
+		private final File baseDir;
+		private final ResumeStore.Bookmark resume;
+		private ChapterIndex resumeChapters;
+
+		ScanSongsTask(File albumDir, File artistDir, File baseDir, ResumeStore.Bookmark resume){
+			this.albumDir = albumDir;
+			this.artistDir = artistDir;
+			this.baseDir = baseDir;
+			this.resume = resume;
+		}
+
+		@Override
+		protected List<File> doInBackground(Void... params) {
+			// Don't list songs that the probe is about to rule out
+			CodecRegistry.awaitDecodableTypes();
+			List<File> songFiles = null;
+			long traceStart = EventTrace.begin(EventTrace.SCAN_SONGS);
+			try {
+				songFiles = scanSongs(albumDir, artistDir, baseDir);
+			} finally {
+				EventTrace.end(EventTrace.SCAN_SONGS, traceStart, songFiles == null ? 0 : songFiles.size());
+			}
+			if(resume != null){
+				resumeChapters = AndroidPlatform.getSongIndexStore(SongList.this)
+						.getChapters(new File(albumDir, resume.trackName));
+			}
+			return songFiles;
+		}
+
+		@Override
+		protected void onPostExecute(List<File> songFiles) {
+			if(scanTask == this){
+				scanTask = null;
+			}
+			if(isCancelled()){
+				return;
+			}
+			showSongs(songFiles, resumeChapters);
+		}
 	}
-	
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -204,10 +281,10 @@ public class SongList extends AbstractMusicList {
 		actionBar.setDisplayHomeAsUpEnabled(true);
 		actionBar.setTitle(artistName + ": " + album);
 		
-		SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
-        audiobookMode = sharedPref.getBoolean("pref_audiobook_mode", false);
+		Config config = Config.get(this);
+        String theme = config.theme;
+        String size = config.textSize;
+        audiobookMode = config.audiobookMode;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "got configured size " + size);
         currentTheme = theme;
@@ -237,8 +314,9 @@ public class SongList extends AbstractMusicList {
 		
 	    Log.i(TAG, "Getting songs for " + album);
 	    
-	    populateSongs(artistName, album, albumPath, artistDir);
-	    
+	    findAlbum(album, albumPath, artistDir);
+	    songs = new ArrayList<Map<String,String>>();
+	    songAbsFileNameList = new ArrayList<String>();
         simpleAdpt = new SimpleAdapter(this, songs, R.layout.pgmp_list_item, new String[] {"song"}, new int[] {R.id.PGMPListItemText});
         ListView lv = (ListView) findViewById(R.id.songListView);
         lv.setAdapter(simpleAdpt);
@@ -282,6 +360,18 @@ public class SongList extends AbstractMusicList {
 			}
 		});
 
+		// The list fills in once the scan is done
+		scanTask = new ScanSongsTask(albumDir, new File(artistDir), new File(config.musicDirectory), resume);
+		scanTask.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if(scanTask != null){
+			scanTask.cancel(false);
+			scanTask = null;
+		}
 	}
 
 	private void showSongSettingsDialog(){
@@ -297,10 +387,10 @@ public class SongList extends AbstractMusicList {
     @Override
 	protected void onResume() {
 		super.onResume();
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String theme = sharedPref.getString("pref_theme", getString(R.string.light));
-        String size = sharedPref.getString("pref_text_size", getString(R.string.medium));
-        boolean audiobookModePref = sharedPref.getBoolean("pref_audiobook_mode", false);
+        Config config = Config.get(this);
+        String theme = config.theme;
+        String size = config.textSize;
+        boolean audiobookModePref = config.audiobookMode;
         Log.i(TAG, "got configured theme " + theme);
         Log.i(TAG, "Got configured size " + size);
         if(currentTheme == null){
@@ -315,8 +405,7 @@ public class SongList extends AbstractMusicList {
         if(audiobookMode != audiobookModePref){
         	resetResume = true;
         }
-        SharedPreferences prefs = getSharedPreferences("PrettyGoodMusicPlayer", MODE_PRIVATE);
-        String newResume = prefs.getString(albumDir.getAbsolutePath(), null);
+        ResumeStore.Bookmark newResume = AndroidPlatform.getResumeStore(this).getLatest(albumDir.getAbsolutePath());
         if(resume != null && newResume != null && !newResume.equals(resume)){
         	resetResume = true;
         }else if(resume == null && newResume != null){
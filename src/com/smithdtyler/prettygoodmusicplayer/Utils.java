@@ -18,105 +18,19 @@
 
 package com.smithdtyler.prettygoodmusicplayer;
 
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Environment;
-import android.util.Log;
-import android.webkit.MimeTypeMap;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-
-import libcore.net.MediaTypeUtils;
 
 /**
  * Utility functions for the Pretty Good Music Player
  */
 public class Utils {
-	private static final String TAG = "Utils";
-	public static final Comparator<File> songFileComparator = new SongFileComparator();
-	public static final Comparator<File> albumFileComparator = new AlbumFileComparator();
-	
-
-	// https://developer.android.com/guide/appendix/media-formats.html
-	private static final String[] legalFormatExtensions = { "mp3", "m4p",
-			"m4a", "wav", "ogg", "mkv", "3gp", "aac", "flac"};
-	private static final Set<String> decodeableMediaTypes = getSupportedTypes();
-	private static final Set<String> musicExtensions = MediaTypeUtils.getAllExtensions();
-
-	private static String mediaFileEndingRegex = "";
-	static {
-		boolean first = true;
-		for (String ending : musicExtensions) {
-			if (!first) {
-				mediaFileEndingRegex += "|" + "(\\." + ending + ")";
-			} else {
-				mediaFileEndingRegex += "(?i)(\\." + ending + ")";
-				first = false;
-			}
-		}
-		Log.d(TAG,"mediaFileEndingRegex:" + mediaFileEndingRegex);
-
-		Log.d(TAG, "legalFormatExtensions:");
-		Log.d(TAG, Arrays.toString(legalFormatExtensions));
-	}
-	/**
-	 * Retrieve decodeable media types in the system
-	 * @return A set containing the supported media types
-	 */
-	private static Set<String> getSupportedTypes() {
-		// These MediaCodecList methods are deprecated in API 21, but the newer
-		// ones aren't supported in API < 21
-		int numCodecs = MediaCodecList.getCodecCount();
-		Set<String> supportedMediaTypes = new HashSet<>();
-
-		for (int codec = 0; codec < numCodecs; codec++) {
-			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(codec);
-
-			if (codecInfo.isEncoder()) {
-				continue;
-			}
-
-			String[] codecTypes = codecInfo.getSupportedTypes();
-			for (int type = 0; type < codecTypes.length; type++) {
-				if (isMediaAudio(codecTypes[type]) && !supportedMediaTypes.contains(codecTypes[type])) {
-					Log.d(TAG, codecTypes[type] + " is decodeable by " + codecInfo.getName());
-					supportedMediaTypes.add(codecTypes[type]);
-				}
-			}
-		}
-		return supportedMediaTypes;
-	}
-
-	private static String[] getSupportedExtensions() {
-		Set<String> extensions = new HashSet<>();
-
-		for(String mediaType : decodeableMediaTypes) {
-			if(MediaTypeUtils.getExtensionsFromMimeType(mediaType) == null) {
-				Log.w(TAG, "Media type " + mediaType + " doesn't have any associated extension.");
-			} else {
-				extensions.addAll(MediaTypeUtils.getExtensionsFromMimeType(mediaType));
-			}
-		}
-
-		return extensions.toArray(new String[extensions.size()]);
-	}
-
-	/**
-	 * Return whether the media type is an audio subtype
-	 * @param mediaType the media type
-	 * @return is it an audio type?
-	 */
-	private static boolean isMediaAudio(String mediaType) {
-		return mediaType.startsWith("audio/");
-	}
+	public static final Comparator<File> songFileComparator = LibraryScanner.SONG_FILE_COMPARATOR;
+	public static final Comparator<File> albumFileComparator = LibraryScanner.ALBUM_FILE_COMPARATOR;
 
 	/**
 	 * Checks whether the provided directory is a legal artist directory.
@@ -124,15 +38,7 @@ public class Utils {
 	 * @return
 	 */
 	static boolean isValidArtistDirectory(File dir) {
-		if (dir == null) {
-			return false;
-		}
-
-		if (!dir.isDirectory()) {
-			return false;
-		}
-
-		return true;
+		return LibraryScanner.isValidDirectory(dir);
 	}
 
 	/**
@@ -141,15 +47,7 @@ public class Utils {
 	 * @return
 	 */
 	static boolean isValidAlbumDirectory(File dir) {
-		if (dir == null) {
-			return false;
-		}
-
-		if (!dir.isDirectory()) {
-			return false;
-		}
-
-		return true;
+		return LibraryScanner.isValidDirectory(dir);
 	}
 
 	/**
@@ -158,22 +56,7 @@ public class Utils {
 	 * @return True if the song ends with a music file extension and is not hidden.
 	 */
 	static boolean isValidSongFile(File song) {
-		if (song == null) {
-			return false;
-		}
-
-		if (!song.isFile()) {
-			return false;
-		}
-
-		if(song.isHidden()){
-			return false;
-		}
-
-		String name = song.getName();
-		String extension = getFileExtension(name);
-
-		return MediaTypeUtils.hasExtension(extension);
+		return LibraryScanner.isValidSongFile(song);
 	}
 
 	/**
@@ -182,59 +65,11 @@ public class Utils {
 	 * @return
 	 */
 	static List<File> getAllAlbumsInDirRecursive(File directory){
-		List<File> albums = new ArrayList<>();
-		_getAllAlbumsInDirRecurive(directory, albums);
-		return albums;
+		return LibraryScanner.getAllAlbumsInDirRecursive(directory);
 	}
 
-	private static void _getAllAlbumsInDirRecurive(File target, List<File> albums){
-		if(target.isDirectory() && target.listFiles() != null){
-			boolean hasSong = false;
-			for(File f : target.listFiles()){
-				if(Utils.isValidSongFile(f)){
-					hasSong = true;
-				}
-				if(f.isDirectory()){
-					_getAllAlbumsInDirRecurive(f, albums);
-				}
-			}
-			if(hasSong){
-				albums.add(target);
-			}
-		}
-	}
-
-
-
 	static List<File> getAllSongsInDirRecursive(File directory){
-        List<File> songFiles = new ArrayList<>();
-        _getAllSongsInDirRecursive(directory, songFiles);
-        return songFiles;
-    }
-
-    private static void _getAllSongsInDirRecursive(File target, List<File> songFiles){
-        if(target != null && target.isDirectory()) {
-            if (target.listFiles() != null) {
-				List<File> songsInDir = new ArrayList<>();
-                for (File f : target.listFiles()) {
-                    if (f.isFile() && isValidSongFile(f)) {
-                        songsInDir.add(f);
-                    } else {
-                        _getAllSongsInDirRecursive(f, songFiles);
-                    }
-                }
-				Collections.sort(songsInDir, Utils.songFileComparator);
-				songFiles.addAll(songsInDir);
-            }
-        }
-    }
-
-	private static String getFileExtension(String name) {
-		int i = name.lastIndexOf('.');
-		if (i > 0) {
-			return name.substring(i + 1);
-		}
-		return "";
+		return LibraryScanner.getAllSongsInDirRecursive(directory);
 	}
 
 	/**
@@ -243,7 +78,7 @@ public class Utils {
 	 * @return
 	 */
 	static String getPrettySongName(File songFile) {
-		return getPrettySongName(songFile.getName());
+		return LibraryScanner.getPrettySongName(songFile.getName());
 	}
 
 	/**
@@ -252,11 +87,7 @@ public class Utils {
 	 * @return
 	 */
 	static String getPrettySongName(String songName) {
-		if (songName.matches("^\\d+\\s.*")) {
-			return songName.replaceAll("^\\d+\\s", "").replaceAll(
-					mediaFileEndingRegex, "");
-		}
-		return songName.replaceAll(mediaFileEndingRegex, "");
+		return LibraryScanner.getPrettySongName(songName);
 	}
 
 	/**
@@ -266,36 +97,7 @@ public class Utils {
 	 * @return
 	 */
 	static String getArtistName(File songFile, String musicRoot) {
-		File albumDir = songFile.getParentFile().getParentFile();
-		if (albumDir.getAbsolutePath().equals(musicRoot)) {
-			return songFile.getParentFile().getName();
-		}
-		return songFile.getParentFile().getParentFile().getName();
-	}
-
-	/**
-	 * Comparator for ordering song files.
-	 */
-	private static class SongFileComparator implements Comparator<File> {
-
-		@Override
-		public int compare(File arg0, File arg1) {
-			String name0 = arg0.getName().toUpperCase(Locale.getDefault());
-			String name1 = arg1.getName().toUpperCase(Locale.getDefault());
-			return name0.compareTo(name1);
-		}
-
-	}
-
-	private static class AlbumFileComparator implements Comparator<File> {
-
-		@Override
-		public int compare(File arg0, File arg1) {
-			String name0 = arg0.getName().toUpperCase(Locale.getDefault());
-			String name1 = arg1.getName().toUpperCase(Locale.getDefault());
-			return name0.compareTo(name1);
-		}
-
+		return LibraryScanner.getArtistName(songFile, musicRoot);
 	}
 
 	/**
@@ -331,31 +133,4 @@ public class Utils {
 		}
 		return ext;
 	}
-
-	// TODO use a file filter?
-	/**
-	 * Returns a list of viable directories under the parent file.
-	 * 
-	 * @param parent
-	 * @return A list of viable files. An empty list is returned if none exist.
-	 */
-	static List<File> getPotentialSubDirectories(File parent) {
-		List<File> list = new ArrayList<File>();
-		if (parent.isDirectory() && !parent.isHidden()) {
-			File[] files = parent.listFiles();
-			if (files != null && files.length > 0) {
-				for (File f : files) {
-					// If the subfolder is non-empty, add it
-					if (f.isDirectory() && !f.isHidden()
-							&& !f.getName().startsWith(".")) {
-						if (f.listFiles() != null && f.listFiles().length > 0) {
-							list.add(f);
-						}
-					}
-				}
-				return list;
-			}
-		}
-		return list;
-	}
 }